@@ -0,0 +1,92 @@
+/*
+ * This file is part of LuckPerms, licensed under the MIT License.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in all
+ *  copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ *  SOFTWARE.
+ */
+
+package me.lucko.luckperms.extension.defaultassignments;
+
+import net.luckperms.api.util.Tristate;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AssignmentExpressionBenchmark {
+
+    @Param({"0", "2", "4", "6"})
+    public int depth;
+
+    @Param({"10", "200"})
+    public int userNodes;
+
+    private String source;
+    private AssignmentExpression expression;
+    private NodeTable table;
+    private FakeUser user;
+    private NodeStates states;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(0);
+        int permissions = Math.max(4, 1 << this.depth);
+
+        this.source = BenchmarkData.expression(random, this.depth, permissions);
+        NodeTable.Builder nodes = new NodeTable.Builder();
+        this.expression = new AssignmentExpression(this.source, nodes);
+        this.table = nodes.build();
+        this.user = BenchmarkData.user(random, this.userNodes, permissions);
+        this.states = this.table.resolve(this.user);
+    }
+
+    @Benchmark
+    public AssignmentExpression compile() {
+        return new AssignmentExpression(this.source, new NodeTable.Builder());
+    }
+
+    @Benchmark
+    public NodeStates resolve() {
+        return this.table.resolve(this.user);
+    }
+
+    @Benchmark
+    public boolean eval() {
+        return this.expression.eval(this.states, Tristate.TRUE);
+    }
+}
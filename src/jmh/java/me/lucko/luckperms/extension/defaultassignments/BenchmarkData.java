@@ -0,0 +1,106 @@
+/*
+ * This file is part of LuckPerms, licensed under the MIT License.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in all
+ *  copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ *  SOFTWARE.
+ */
+
+package me.lucko.luckperms.extension.defaultassignments;
+
+import com.google.common.collect.ImmutableList;
+
+import net.luckperms.api.node.Node;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+
+/**
+ * Synthetic users and rules for the benchmarks.
+ *
+ * <p>The users are the in-memory fakes from the tests, so the benchmarks
+ * run without a server or database.</p>
+ */
+final class BenchmarkData {
+    private BenchmarkData() {}
+
+    static {
+        TestFixtures.registerApi();
+    }
+
+    static String permission(int i) {
+        return "benchmark.permission." + i;
+    }
+
+    /**
+     * Generates a random expression, as a balanced tree of the given depth.
+     *
+     * @param random the random
+     * @param depth the depth, 0 being a single permission
+     * @param permissions the number of distinct permissions to pick from
+     * @return the expression
+     */
+    static String expression(Random random, int depth, int permissions) {
+        if (depth == 0) {
+            return (random.nextInt(4) == 0 ? "!" : "") + "<" + permission(random.nextInt(permissions)) + ">";
+        }
+        String operator = random.nextBoolean() ? " & " : " | ";
+        return "(" + expression(random, depth - 1, permissions) + operator + expression(random, depth - 1, permissions) + ")";
+    }
+
+    static RuleSet ruleSet(Random random, int rules, int depth, int permissions, AssignmentSettings settings) {
+        List<AssignmentRule> list = new ArrayList<>(rules);
+        NodeTable.Builder nodes = new NodeTable.Builder();
+        for (int i = 0; i < rules; i++) {
+            String hasTrue = expression(random, depth, permissions);
+            String lacks = random.nextBoolean() ? expression(random, depth, permissions) : null;
+            List<String> give = ImmutableList.of("group.rank" + (i % 10));
+            List<String> take = ImmutableList.of(permission(random.nextInt(permissions)));
+            String primaryGroup = random.nextInt(4) == 0 ? "rank" + (i % 10) : null;
+            list.add(new AssignmentRule("rule" + i, hasTrue, null, lacks, give, take, primaryGroup, false, nodes));
+        }
+        return new RuleSet(list, nodes.build(), settings);
+    }
+
+    /**
+     * Generates a user with the given number of nodes, some of which are
+     * permissions referenced by generated rules.
+     *
+     * @param random the random
+     * @param nodes the number of nodes
+     * @param permissions the number of distinct permissions used by generated rules
+     * @return the user
+     */
+    static FakeUser user(Random random, int nodes, int permissions) {
+        FakeNodeMap data = new FakeNodeMap();
+        for (int i = 0; i < nodes; i++) {
+            Node node;
+            if (random.nextInt(4) == 0) {
+                node = Node.builder(permission(random.nextInt(permissions))).value(random.nextInt(4) != 0).build();
+            } else {
+                node = Node.builder("unrelated.permission." + random.nextInt(nodes * 10)).build();
+            }
+            data.add(node);
+        }
+        return new FakeUser(new UUID(random.nextLong(), random.nextLong()), data);
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * This file is part of LuckPerms, licensed under the MIT License.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in all
+ *  copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ *  SOFTWARE.
+ */
+
+package me.lucko.luckperms.extension.defaultassignments;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Many threads running the login listener at once, each for its own stream
+ * of users, against a shared ruleset and save queue.
+ *
+ * <p>Saves take {@code saveLatency} milliseconds, and the save queue is kept
+ * small so it overflows, to reproduce storage falling behind during a storm -
+ * with and without admission control in front of the listener. Every login
+ * is for a user who hasn't been processed yet.</p>
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Threads(8)
+@Fork(1)
+public class LoginStormBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Shared {
+        @Param({"50", "250"})
+        public int rules;
+
+        @Param({"0", "1024"})
+        public int outcomeCacheSize;
+
+        @Param({"0", "20"})
+        public long saveLatency;
+
+        @Param({"false", "true"})
+        public boolean admission;
+
+        RuleSet ruleSet;
+        UserSaveQueue saveQueue;
+        LoginProcessor processor;
+        int permissions;
+
+        @Setup(Level.Trial)
+        public void setup() {
+            AssignmentSettings settings = AssignmentSettings.builder()
+                    .outcomeCacheSize(this.outcomeCacheSize)
+                    .saveQueueSize(100)
+                    .admission(this.admission)
+                    .admissionMaxConcurrent(4)
+                    .build();
+            this.permissions = this.rules * 2;
+            this.ruleSet = BenchmarkData.ruleSet(new Random(0), this.rules, 2, this.permissions, settings);
+            this.saveQueue = new UserSaveQueue(TestFixtures.userManager(this.saveLatency), TestFixtures.LOGGER, settings);
+            AdmissionController admissionController = this.admission ? new AdmissionController(settings) : null;
+            this.processor = new LoginProcessor(this.saveQueue, admissionController, null, null, new AssignmentMetrics(TestFixtures.LOGGER, settings));
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            this.saveQueue.shutdown();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Users {
+        private static final int USERS = 1024;
+
+        FakeUser[] template;
+        int next = 0;
+        FakeUser user;
+
+        @Setup(Level.Trial)
+        public void setup(Shared shared) {
+            Random random = new Random(Thread.currentThread().getId());
+            this.template = new FakeUser[USERS];
+            for (int i = 0; i < USERS; i++) {
+                this.template[i] = BenchmarkData.user(random, 100, shared.permissions);
+            }
+        }
+
+        @Setup(Level.Invocation)
+        public void next() {
+            // a new user each time, so no login finds the user already stamped
+            // or has its save coalesced with an earlier one
+            this.user = this.template[this.next++ & (USERS - 1)].copy(UUID.randomUUID());
+        }
+    }
+
+    @Benchmark
+    public AssignmentDelta login(Shared shared, Users users) {
+        return shared.processor.process(users.user, shared.ruleSet);
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * This file is part of LuckPerms, licensed under the MIT License.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in all
+ *  copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ *  SOFTWARE.
+ */
+
+package me.lucko.luckperms.extension.defaultassignments;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RuleSetBenchmark {
+
+    @Param({"10", "50", "250"})
+    public int rules;
+
+    @Param({"1", "3"})
+    public int depth;
+
+    @Param({"0", "1024"})
+    public int outcomeCacheSize;
+
+    @Param({"0", "1"})
+    public int parallelThreshold;
+
+    private static final int USER_NODES = 100;
+    private static final int USERS = 64;
+
+    private RuleSet ruleSet;
+    private FakeUser[] template;
+    private int next = 0;
+    private FakeUser user;
+
+    @Setup(Level.Trial)
+    public void setupTrial() {
+        Random random = new Random(0);
+        int permissions = this.rules * 2;
+        AssignmentSettings settings = AssignmentSettings.builder()
+                .outcomeCacheSize(this.outcomeCacheSize)
+                .parallelThreshold(this.parallelThreshold)
+                .build();
+        this.ruleSet = BenchmarkData.ruleSet(random, this.rules, this.depth, permissions, settings);
+        this.template = new FakeUser[USERS];
+        for (int i = 0; i < USERS; i++) {
+            this.template[i] = BenchmarkData.user(random, USER_NODES, permissions);
+        }
+    }
+
+    @Setup(Level.Invocation)
+    public void setupInvocation() {
+        // a fresh copy each time, so every call applies the rules to an
+        // unprocessed user rather than skipping one stamped by an earlier call
+        this.user = this.template[this.next++ & (USERS - 1)].copy();
+    }
+
+    @Benchmark
+    public AssignmentDelta apply() {
+        return this.ruleSet.apply(this.user);
+    }
+}
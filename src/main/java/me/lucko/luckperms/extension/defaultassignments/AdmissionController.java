@@ -0,0 +1,137 @@
+/*
+ * This file is part of LuckPerms, licensed under the MIT License.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in all
+ *  copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ *  SOFTWARE.
+ */
+package me.lucko.luckperms.extension.defaultassignments;
+
+import net.luckperms.api.model.user.User;
+
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Limits how many logins are processed at once, so a login storm doesn't
+ * have every login thread evaluating rules and saving at the same time.
+ *
+ * <p>Admission never blocks the login thread. A login is admitted if a
+ * permit is free the moment it asks, and otherwise is handled straight away
+ * according to the {@link Fallback} policy.</p>
+ *
+ * <p>Work for a user who is already being processed is not repeated - if
+ * the same {@link User} logs in again (e.g. after a quick reconnect), the
+ * in-flight work already covers it. If the user has been reloaded in the
+ * meantime, the login can't be processed alongside the first, so the
+ * fallback policy applies to it too.</p>
+ */
+final class AdmissionController {
+
+    /**
+     * What to do with a login which couldn't be admitted.
+     */
+    enum Fallback {
+        /** Process the login anyway, beyond the limit */
+        APPLY,
+        /** Leave the user alone - they are processed on their next login instead */
+        SKIP;
+
+        static Fallback parse(String value) {
+            return value != null && value.equalsIgnoreCase("skip") ? SKIP : APPLY;
+        }
+    }
+
+    private final Semaphore permits;
+    private final Fallback fallback;
+
+    /** The user currently being processed for each uuid */
+    private final Map<UUID, User> inFlight = new ConcurrentHashMap<>();
+
+    private final LongAdder coalesced = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+
+    AdmissionController(AssignmentSettings settings) {
+        this.permits = new Semaphore(settings.getAdmissionMaxConcurrent());
+        this.fallback = settings.getAdmissionFallback();
+    }
+
+    /**
+     * Runs the work for the given user, if admitted.
+     *
+     * @param user the user
+     * @param timings the timings to record if the login wasn't admitted in
+     * @param work the work
+     * @return the changes made by the work, an empty delta if the work is
+     *         already being done by a concurrent login, or null if the login
+     *         was skipped by the fallback policy
+     */
+    public AssignmentDelta admit(User user, LoginTimings timings, Supplier<AssignmentDelta> work) {
+        UUID uniqueId = user.getUniqueId();
+        User existing = this.inFlight.putIfAbsent(uniqueId, user);
+        if (existing == user) {
+            // the same user is already being processed - nothing more to do
+            this.coalesced.increment();
+            return new AssignmentDelta();
+        }
+        if (existing != null) {
+            // reloaded while their previous login is still being processed
+            return reject(timings, work);
+        }
+
+        if (!this.permits.tryAcquire()) {
+            this.inFlight.remove(uniqueId, user);
+            return reject(timings, work);
+        }
+        try {
+            return work.get();
+        } finally {
+            this.permits.release();
+            this.inFlight.remove(uniqueId, user);
+        }
+    }
+
+    private AssignmentDelta reject(LoginTimings timings, Supplier<AssignmentDelta> work) {
+        this.rejected.increment();
+        timings.rejected = true;
+        return this.fallback == Fallback.APPLY ? work.get() : null;
+    }
+
+    /**
+     * Gets the number of logins currently being processed.
+     *
+     * @return the number of logins in flight
+     */
+    public int getInFlight() {
+        return this.inFlight.size();
+    }
+
+    public long getCoalescedCount() {
+        return this.coalesced.sum();
+    }
+
+    public long getRejectedCount() {
+        return this.rejected.sum();
+    }
+}
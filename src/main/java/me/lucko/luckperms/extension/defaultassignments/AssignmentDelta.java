@@ -0,0 +1,95 @@
+/*
+ * This file is part of LuckPerms, licensed under the MIT License.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in all
+ *  copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ *  SOFTWARE.
+ */
+
+package me.lucko.luckperms.extension.defaultassignments;
+
+import net.luckperms.api.node.Node;
+
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * The changes actually made to a user by the rules applied to them.
+ *
+ * <p>The delta is recorded from the net change {@link MutationPlan#apply(AssignmentDelta) applied}
+ * to the user, so a node given by one rule and taken by a later one (or vice
+ * versa) never appears, and an empty delta means the user is unchanged.</p>
+ */
+final class AssignmentDelta {
+    private Set<Node> added = null;
+    private Set<Node> removed = null;
+    private boolean primaryGroupChanged = false;
+
+    void recordAdded(Node node) {
+        if (this.removed != null && this.removed.remove(node)) {
+            return;
+        }
+        if (this.added == null) {
+            this.added = new LinkedHashSet<>();
+        }
+        this.added.add(node);
+    }
+
+    void recordRemoved(Node node) {
+        if (this.added != null && this.added.remove(node)) {
+            return;
+        }
+        if (this.removed == null) {
+            this.removed = new LinkedHashSet<>();
+        }
+        this.removed.add(node);
+    }
+
+    void recordPrimaryGroupChanged() {
+        this.primaryGroupChanged = true;
+    }
+
+    public Set<Node> getAdded() {
+        return this.added == null ? Collections.emptySet() : Collections.unmodifiableSet(this.added);
+    }
+
+    public Set<Node> getRemoved() {
+        return this.removed == null ? Collections.emptySet() : Collections.unmodifiableSet(this.removed);
+    }
+
+    public boolean isPrimaryGroupChanged() {
+        return this.primaryGroupChanged;
+    }
+
+    public boolean isEmpty() {
+        return (this.added == null || this.added.isEmpty()) &&
+                (this.removed == null || this.removed.isEmpty()) &&
+                !this.primaryGroupChanged;
+    }
+
+    @Override
+    public String toString() {
+        return "AssignmentDelta(" +
+                "added=" + getAdded() + ", " +
+                "removed=" + getRemoved() + ", " +
+                "primaryGroupChanged=" + this.primaryGroupChanged + ")";
+    }
+}
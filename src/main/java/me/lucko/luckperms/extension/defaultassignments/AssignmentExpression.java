@@ -25,121 +25,472 @@
 
 package me.lucko.luckperms.extension.defaultassignments;
 
-import com.google.common.collect.ImmutableList;
-import net.luckperms.api.model.PermissionHolder;
-import net.luckperms.api.node.Node;
-import net.luckperms.api.node.NodeEqualityPredicate;
 import net.luckperms.api.util.Tristate;
 
-import java.util.List;
-import java.util.function.Predicate;
-import java.util.stream.Collectors;
+import java.util.BitSet;
 
-import javax.script.ScriptEngine;
+/**
+ * A boolean expression over permission nodes, in the legacy
+ * {@code <perm> & (<perm> | !<perm>)} format.
+ *
+ * <p>The expression is parsed once when constructed, and flattened into a
+ * compact program of ints which is interpreted on evaluation. Evaluation
+ * short-circuits in the same way as the javascript expressions it replaces.</p>
+ *
+ * <p>Constant sub-expressions are folded while parsing, so for example
+ * {@code <a> | !<a>} becomes {@code true} and {@code false & <a>} becomes
+ * {@code false}.</p>
+ *
+ * <p>Permissions in the expression are registered with a {@link NodeTable}
+ * when parsed, and read back from the holder's resolved {@link NodeStates}
+ * when evaluated. The program only holds their ids.</p>
+ *
+ * <p>The program is immutable and holds no per-evaluation state, so an
+ * expression can be evaluated concurrently from multiple threads.</p>
+ */
+final class AssignmentExpression {
+
+    // Program encoding, in prefix order:
+    //   id >= 0                  test the state of the node with that id
+    //   TRUE, FALSE              a constant
+    //   NOT, operand             the negation of the operand
+    //   AND/OR, length, l, r     the conjunction/disjunction of l and r, where length is the size of l
+    private static final int TRUE = -1;
+    private static final int FALSE = -2;
+    private static final int NOT = -3;
+    private static final int AND = -4;
+    private static final int OR = -5;
 
-class AssignmentExpression {
-    private final List<Token> expression;
+    private final String source;
+    private final int[] program;
 
-    AssignmentExpression(String expression) {
-        this.expression = generateExpression(expression);
+    AssignmentExpression(String expression, NodeTable.Builder nodes) throws IllegalArgumentException {
+        this.source = expression;
+        Expression root = new Parser(expression, nodes).parse();
+        this.program = new int[root.size()];
+        root.emit(this.program, 0);
     }
 
-    public boolean eval(PermissionHolder holder, Tristate tristate) throws IllegalArgumentException {
-        ScriptEngine engine = DefaultAssignmentsExtension.getScriptEngine();
-        if (engine == null) {
-            throw new NullPointerException("script engine");
-        }
+    public boolean eval(NodeStates states, Tristate tristate) {
+        return eval(0, states, tristate);
+    }
 
-        Predicate<Node> checker = node -> holder.data().contains(node, NodeEqualityPredicate.IGNORE_VALUE_OR_IF_TEMPORARY) == tristate;
+    private boolean eval(int pc, NodeStates states, Tristate tristate) {
+        int op = this.program[pc];
+        switch (op) {
+            case TRUE:
+                return true;
+            case FALSE:
+                return false;
+            case NOT:
+                return !eval(pc + 1, states, tristate);
+            case AND:
+                return eval(pc + 2, states, tristate) && eval(pc + 2 + this.program[pc + 1], states, tristate);
+            case OR:
+                return eval(pc + 2, states, tristate) || eval(pc + 2 + this.program[pc + 1], states, tristate);
+            default:
+                return states.get(op) == tristate;
+        }
+    }
 
-        String exp = this.expression.stream().map(t -> t.forExpression(checker)).collect(Collectors.joining())
-                .replace("&", "&&")
-                .replace("|", "||");
+    /**
+     * Gets if the expression always evaluates to the same value.
+     *
+     * @return true if the expression is constant
+     */
+    public boolean isConstant() {
+        return this.program[0] == TRUE || this.program[0] == FALSE;
+    }
 
-        try {
-            String result = engine.eval(exp).toString();
+    /**
+     * Gets the value of a {@link #isConstant() constant} expression.
+     *
+     * @return the value
+     * @throws IllegalStateException if the expression is not constant
+     */
+    public boolean getConstantValue() {
+        if (!isConstant()) {
+            throw new IllegalStateException("Expression is not constant: " + this);
+        }
+        return this.program[0] == TRUE;
+    }
 
-            if (!result.equals("true") && !result.equals("false")) {
-                throw new IllegalArgumentException();
+    /**
+     * Adds the id of every node referenced by the expression to the set.
+     *
+     * @param ids the set to add to
+     */
+    public void collectIds(BitSet ids) {
+        int pc = 0;
+        while (pc < this.program.length) {
+            int op = this.program[pc];
+            if (op >= 0) {
+                ids.set(op);
             }
+            // skip over the length of the left operand
+            pc += op == AND || op == OR ? 2 : 1;
+        }
+    }
 
-            return Boolean.parseBoolean(result);
+    /**
+     * Collects the nodes which the expression requires to be in (or not to
+     * be in) the tested state for it to be true.
+     *
+     * <p>Only the top level conjunction is considered, so this is
+     * incomplete, but never wrong.</p>
+     *
+     * @param required the set to add the ids of nodes which must be in the tested state to
+     * @param excluded the set to add the ids of nodes which must not be in the tested state to
+     */
+    public void collectConstraints(BitSet required, BitSet excluded) {
+        collectConstraints(0, required, excluded);
+    }
 
-        } catch (Throwable t) {
-            throw new IllegalArgumentException(exp, t);
+    private void collectConstraints(int pc, BitSet required, BitSet excluded) {
+        int op = this.program[pc];
+        if (op == AND) {
+            collectConstraints(pc + 2, required, excluded);
+            collectConstraints(pc + 2 + this.program[pc + 1], required, excluded);
+        } else if (op >= 0) {
+            required.set(op);
+        } else if (op == NOT && this.program[pc + 1] >= 0) {
+            excluded.set(this.program[pc + 1]);
         }
     }
 
-    private static List<Token> generateExpression(String input) {
-        ImmutableList.Builder<Token> exp = ImmutableList.builder();
+    @Override
+    public String toString() {
+        return this.source;
+    }
 
-        while (true) {
-            int start = input.indexOf("<");
-            int end = input.indexOf(">");
-            if (start == -1 || end == -1) {
-                break;
-            }
+    /**
+     * The parsed form of an expression, used while folding constants and
+     * then flattened into the program.
+     */
+    private interface Expression {
 
-            if (start != 0) {
-                Token before = new StringToken(input.substring(0, start));
-                exp.add(before);
-            }
+        /**
+         * Gets the number of ints needed to encode the expression.
+         *
+         * @return the size
+         */
+        int size();
+
+        /**
+         * Encodes the expression into the program.
+         *
+         * @param program the program
+         * @param pc the position to start at
+         * @return the position after the encoded expression
+         */
+        int emit(int[] program, int pc);
+    }
+
+    private static Expression not(Expression expression) {
+        if (expression instanceof Constant) {
+            return ((Constant) expression).value ? Constant.FALSE : Constant.TRUE;
+        }
+        if (expression instanceof Not) {
+            return ((Not) expression).expression;
+        }
+        return new Not(expression);
+    }
+
+    private static Expression and(Expression left, Expression right) {
+        if (left == Constant.FALSE || right == Constant.FALSE || isComplement(left, right)) {
+            return Constant.FALSE;
+        }
+        if (left == Constant.TRUE || left.equals(right)) {
+            return right;
+        }
+        if (right == Constant.TRUE) {
+            return left;
+        }
+        return new Binary(AND, left, right);
+    }
+
+    private static Expression or(Expression left, Expression right) {
+        if (left == Constant.TRUE || right == Constant.TRUE || isComplement(left, right)) {
+            return Constant.TRUE;
+        }
+        if (left == Constant.FALSE || left.equals(right)) {
+            return right;
+        }
+        if (right == Constant.FALSE) {
+            return left;
+        }
+        return new Binary(OR, left, right);
+    }
 
-            String match = input.substring(start, end + 1);
-            String matchContent = match.substring(1, match.length() - 1);
+    private static boolean isComplement(Expression left, Expression right) {
+        return (left instanceof Not && ((Not) left).expression.equals(right)) ||
+                (right instanceof Not && ((Not) right).expression.equals(left));
+    }
+
+    private static final class Constant implements Expression {
+        private static final Constant TRUE = new Constant(true);
+        private static final Constant FALSE = new Constant(false);
 
-            Token permission = new PermissionToken(matchContent);
-            exp.add(permission);
+        private final boolean value;
 
-            input = input.substring(end + 1);
+        private Constant(boolean value) {
+            this.value = value;
         }
 
-        if (!input.isEmpty()) {
-            exp.add(new StringToken(input));
+        @Override
+        public int size() {
+            return 1;
         }
 
-        return exp.build();
+        @Override
+        public int emit(int[] program, int pc) {
+            program[pc] = this.value ? AssignmentExpression.TRUE : AssignmentExpression.FALSE;
+            return pc + 1;
+        }
     }
 
-    private interface Token {
-        String forExpression(Predicate<Node> checker);
+    private static final class Permission implements Expression {
+        private final int id;
+
+        private Permission(int id) {
+            this.id = id;
+        }
+
+        @Override
+        public int size() {
+            return 1;
+        }
+
+        @Override
+        public int emit(int[] program, int pc) {
+            program[pc] = this.id;
+            return pc + 1;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            // permissions with the same id always evaluate the same
+            return this == o || o instanceof Permission && this.id == ((Permission) o).id;
+        }
+
+        @Override
+        public int hashCode() {
+            return this.id;
+        }
     }
 
-    private static final class StringToken implements Token {
-        private final String string;
+    private static final class Not implements Expression {
+        private final Expression expression;
+
+        private Not(Expression expression) {
+            this.expression = expression;
+        }
+
+        @Override
+        public int size() {
+            return 1 + this.expression.size();
+        }
 
-        private StringToken(String string) {
-            this.string = string;
+        @Override
+        public int emit(int[] program, int pc) {
+            program[pc] = NOT;
+            return this.expression.emit(program, pc + 1);
         }
 
         @Override
-        public String forExpression(Predicate<Node> checker) {
-            return this.string;
+        public boolean equals(Object o) {
+            return this == o || o instanceof Not && this.expression.equals(((Not) o).expression);
         }
 
         @Override
-        public String toString() {
-            return this.string;
+        public int hashCode() {
+            return ~this.expression.hashCode();
         }
     }
 
-    private static final class PermissionToken implements Token {
-        private final String permission;
-        private final Node node;
+    private static final class Binary implements Expression {
+        private final int operator;
+        private final Expression left;
+        private final Expression right;
+
+        private Binary(int operator, Expression left, Expression right) {
+            this.operator = operator;
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        public int size() {
+            return 2 + this.left.size() + this.right.size();
+        }
 
-        private PermissionToken(String permission) {
-            this.permission = permission;
-            this.node = LegacyNodeFactory.fromLegacyString(permission);
+        @Override
+        public int emit(int[] program, int pc) {
+            program[pc] = this.operator;
+            int right = this.left.emit(program, pc + 2);
+            program[pc + 1] = right - (pc + 2);
+            return this.right.emit(program, right);
         }
 
         @Override
-        public String forExpression(Predicate<Node> checker) {
-            return Boolean.toString(checker.test(this.node));
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Binary)) {
+                return false;
+            }
+            Binary other = (Binary) o;
+            return this.operator == other.operator && this.left.equals(other.left) && this.right.equals(other.right);
         }
 
         @Override
-        public String toString() {
-            return "<" + this.permission + ">";
+        public int hashCode() {
+            return 31 * (31 * this.operator + this.left.hashCode()) + this.right.hashCode();
+        }
+    }
+
+    /**
+     * Recursive descent parser for the expression grammar.
+     *
+     * <pre>
+     *   or      = and ( '|' and )*
+     *   and     = unary ( '&' unary )*
+     *   unary   = '!' unary | primary
+     *   primary = '(' or ')' | '&lt;' permission '&gt;' | 'true' | 'false'
+     * </pre>
+     *
+     * <p>Doubled operators ({@code &&}, {@code ||}) are accepted as well, as
+     * long as nothing separates the two characters. {@code true} and
+     * {@code false} have to be whole words.</p>
+     */
+    private static final class Parser {
+        private final String input;
+        private final NodeTable.Builder nodes;
+        private int cursor = 0;
+
+        private Parser(String input, NodeTable.Builder nodes) {
+            this.input = input;
+            this.nodes = nodes;
+        }
+
+        Expression parse() {
+            Expression expression = parseOr();
+            skipWhitespace();
+            if (this.cursor != this.input.length()) {
+                throw error("Unexpected '" + this.input.charAt(this.cursor) + "'");
+            }
+            return expression;
+        }
+
+        private Expression parseOr() {
+            Expression expression = parseAnd();
+            while (consumeOperator('|')) {
+                expression = or(expression, parseAnd());
+            }
+            return expression;
+        }
+
+        private Expression parseAnd() {
+            Expression expression = parseUnary();
+            while (consumeOperator('&')) {
+                expression = and(expression, parseUnary());
+            }
+            return expression;
+        }
+
+        private Expression parseUnary() {
+            if (consume('!')) {
+                return not(parseUnary());
+            }
+            return parsePrimary();
+        }
+
+        private Expression parsePrimary() {
+            if (consume('(')) {
+                Expression expression = parseOr();
+                if (!consume(')')) {
+                    throw error("Expected ')'");
+                }
+                return expression;
+            }
+
+            if (consume('<')) {
+                int end = this.input.indexOf('>', this.cursor);
+                if (end == -1) {
+                    throw error("Unterminated permission, expected '>'");
+                }
+                String permission = this.input.substring(this.cursor, end);
+                this.cursor = end + 1;
+                return new Permission(this.nodes.register(LegacyNodeFactory.fromLegacyString(permission)));
+            }
+
+            if (consumeWord("true")) {
+                return Constant.TRUE;
+            }
+            if (consumeWord("false")) {
+                return Constant.FALSE;
+            }
+
+            if (this.cursor == this.input.length()) {
+                throw error("Unexpected end of expression");
+            }
+            if (isWordPart(this.input.charAt(this.cursor))) {
+                // report the whole word, not just its first letter
+                int end = this.cursor;
+                while (end < this.input.length() && isWordPart(this.input.charAt(end))) {
+                    end++;
+                }
+                throw error("Unexpected '" + this.input.substring(this.cursor, end) + "'");
+            }
+            throw error("Unexpected '" + this.input.charAt(this.cursor) + "'");
+        }
+
+        private boolean consume(char c) {
+            skipWhitespace();
+            if (this.cursor < this.input.length() && this.input.charAt(this.cursor) == c) {
+                this.cursor++;
+                return true;
+            }
+            return false;
+        }
+
+        /**
+         * Consumes a single or doubled operator - the second character has
+         * to follow the first directly, so {@code & &} is not an operator.
+         */
+        private boolean consumeOperator(char c) {
+            if (!consume(c)) {
+                return false;
+            }
+            if (this.cursor < this.input.length() && this.input.charAt(this.cursor) == c) {
+                this.cursor++;
+            }
+            return true;
+        }
+
+        private boolean consumeWord(String word) {
+            skipWhitespace();
+            int end = this.cursor + word.length();
+            if (this.input.startsWith(word, this.cursor) && (end == this.input.length() || !isWordPart(this.input.charAt(end)))) {
+                this.cursor = end;
+                return true;
+            }
+            return false;
+        }
+
+        private static boolean isWordPart(char c) {
+            return Character.isJavaIdentifierPart(c);
+        }
+
+        private void skipWhitespace() {
+            while (this.cursor < this.input.length() && Character.isWhitespace(this.input.charAt(this.cursor))) {
+                this.cursor++;
+            }
+        }
+
+        private IllegalArgumentException error(String message) {
+            return new IllegalArgumentException(message + " at index " + this.cursor + " in expression: " + this.input);
         }
     }
-}
\ No newline at end of file
+}
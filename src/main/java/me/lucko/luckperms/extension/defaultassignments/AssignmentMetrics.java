@@ -0,0 +1,298 @@
+/*
+ * This file is part of LuckPerms, licensed under the MIT License.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in all
+ *  copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ *  SOFTWARE.
+ */
+
+package me.lucko.luckperms.extension.defaultassignments;
+
+import com.google.common.cache.CacheStats;
+
+import me.lucko.luckperms.common.plugin.logging.PluginLogger;
+
+import net.luckperms.api.model.user.User;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+/**
+ * Metrics for the login listener and persistence, exposed over JMX along
+ * with the {@link RuleMetrics} of each rule.
+ *
+ * <p>Logins slower than the configured threshold are logged with a
+ * breakdown of where the time went, at most once per
+ * {@link #SLOW_LOGIN_LOG_INTERVAL}.</p>
+ */
+final class AssignmentMetrics implements AssignmentMetricsMBean {
+    static final String DOMAIN = "me.lucko.luckperms.extension.defaultassignments";
+
+    private static final long SLOW_LOGIN_LOG_INTERVAL = TimeUnit.SECONDS.toNanos(5);
+
+    private final PluginLogger logger;
+    private final long slowLoginThreshold;
+
+    private final LatencyHistogram logins = new LatencyHistogram();
+    private final LongAdder loginsChanged = new LongAdder();
+    private final LongAdder loginsSkipped = new LongAdder();
+    private final LongAdder slowLogins = new LongAdder();
+    private final AtomicLong lastSlowLoginLog = new AtomicLong(System.nanoTime() - SLOW_LOGIN_LOG_INTERVAL);
+
+    private volatile RuleSet rules;
+    private volatile UserSaveQueue saveQueue;
+    private volatile AdmissionController admission;
+
+    /** If the metrics are registered with JMX - guarded by this */
+    private boolean jmx = false;
+    private final List<ObjectName> registered = new ArrayList<>();
+    private final List<ObjectName> registeredRules = new ArrayList<>();
+
+    AssignmentMetrics(PluginLogger logger, AssignmentSettings settings) {
+        this.logger = logger;
+        this.slowLoginThreshold = TimeUnit.MILLISECONDS.toNanos(settings.getSlowLoginThreshold());
+    }
+
+    /**
+     * Sets the ruleset currently in use, replacing the registered metrics
+     * of the previous ruleset's rules if necessary.
+     *
+     * @param rules the ruleset
+     */
+    public synchronized void setRules(RuleSet rules) {
+        this.rules = rules;
+        if (this.jmx) {
+            unregister(this.registeredRules);
+            registerRules(rules);
+        }
+    }
+
+    public void setSaveQueue(UserSaveQueue saveQueue) {
+        this.saveQueue = saveQueue;
+    }
+
+    public void setAdmission(AdmissionController admission) {
+        this.admission = admission;
+    }
+
+    /**
+     * Records a processed login.
+     *
+     * @param user the user
+     * @param delta the changes made to the user
+     * @param timings where the time went
+     * @param nanos the total time spent
+     */
+    public void recordLogin(User user, AssignmentDelta delta, LoginTimings timings, long nanos) {
+        this.logins.record(nanos);
+        if (!delta.isEmpty()) {
+            this.loginsChanged.increment();
+        }
+        if (timings.stamped) {
+            this.loginsSkipped.increment();
+        }
+
+        if (this.slowLoginThreshold > 0 && nanos >= this.slowLoginThreshold) {
+            this.slowLogins.increment();
+
+            long now = System.nanoTime();
+            long last = this.lastSlowLoginLog.get();
+            if (now - last >= SLOW_LOGIN_LOG_INTERVAL && this.lastSlowLoginLog.compareAndSet(last, now)) {
+                this.logger.warn("[default-assignments] Slow login for " + user.getUniqueId() + ": took " +
+                        TimeUnit.NANOSECONDS.toMillis(nanos) + "ms - " + timings);
+            }
+        }
+    }
+
+    /**
+     * Registers this and the metrics of each rule with the platform MBean server.
+     */
+    public synchronized void register() {
+        this.jmx = true;
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            ObjectName name = new ObjectName(DOMAIN + ":type=Metrics");
+            server.registerMBean(new StandardMBean(this, AssignmentMetricsMBean.class), name);
+            this.registered.add(name);
+        } catch (JMException e) {
+            this.logger.warn("[default-assignments] Unable to register metrics with JMX: " + e);
+        }
+        registerRules(this.rules);
+    }
+
+    private void registerRules(RuleSet rules) {
+        if (rules == null) {
+            return;
+        }
+
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            for (RuleMetrics metrics : rules.getRuleMetrics()) {
+                ObjectName ruleName = new ObjectName(DOMAIN + ":type=Rule,name=" + ObjectName.quote(metrics.getName()));
+                server.registerMBean(new StandardMBean(metrics, RuleMetricsMBean.class), ruleName);
+                this.registeredRules.add(ruleName);
+            }
+        } catch (JMException e) {
+            this.logger.warn("[default-assignments] Unable to register rule metrics with JMX: " + e);
+        }
+    }
+
+    public synchronized void unregister() {
+        this.jmx = false;
+        unregister(this.registeredRules);
+        unregister(this.registered);
+    }
+
+    private static void unregister(List<ObjectName> names) {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        for (ObjectName name : names) {
+            try {
+                server.unregisterMBean(name);
+            } catch (JMException e) {
+                // ignore
+            }
+        }
+        names.clear();
+    }
+
+    @Override
+    public long getLogins() {
+        return this.logins.getCount();
+    }
+
+    @Override
+    public long getLoginsChanged() {
+        return this.loginsChanged.sum();
+    }
+
+    @Override
+    public long getLoginsSkipped() {
+        return this.loginsSkipped.sum();
+    }
+
+    @Override
+    public long getLoginMeanMicros() {
+        return this.logins.getMeanMicros();
+    }
+
+    @Override
+    public long getLoginPercentile99Micros() {
+        return this.logins.getPercentileMicros(0.99);
+    }
+
+    @Override
+    public long getLoginMaxMicros() {
+        return this.logins.getMaxMicros();
+    }
+
+    @Override
+    public long getSlowLogins() {
+        return this.slowLogins.sum();
+    }
+
+    @Override
+    public int getLoginsInFlight() {
+        AdmissionController admission = this.admission;
+        return admission == null ? 0 : admission.getInFlight();
+    }
+
+    @Override
+    public long getLoginsCoalesced() {
+        AdmissionController admission = this.admission;
+        return admission == null ? 0 : admission.getCoalescedCount();
+    }
+
+    @Override
+    public long getLoginsRejected() {
+        AdmissionController admission = this.admission;
+        return admission == null ? 0 : admission.getRejectedCount();
+    }
+
+    @Override
+    public long getOutcomeCacheHits() {
+        RuleSet rules = this.rules;
+        CacheStats stats = rules == null ? null : rules.getOutcomeCacheStats();
+        return stats == null ? 0 : stats.hitCount();
+    }
+
+    @Override
+    public long getOutcomeCacheMisses() {
+        RuleSet rules = this.rules;
+        CacheStats stats = rules == null ? null : rules.getOutcomeCacheStats();
+        return stats == null ? 0 : stats.missCount();
+    }
+
+    @Override
+    public int getSaveQueueDepth() {
+        UserSaveQueue saveQueue = this.saveQueue;
+        return saveQueue == null ? 0 : saveQueue.getQueueDepth();
+    }
+
+    @Override
+    public long getSaves() {
+        UserSaveQueue saveQueue = this.saveQueue;
+        return saveQueue == null ? 0 : saveQueue.getSavedCount();
+    }
+
+    @Override
+    public long getSavesBypassingQueue() {
+        UserSaveQueue saveQueue = this.saveQueue;
+        return saveQueue == null ? 0 : saveQueue.getOverflowCount();
+    }
+
+    @Override
+    public long getSaveFailures() {
+        UserSaveQueue saveQueue = this.saveQueue;
+        return saveQueue == null ? 0 : saveQueue.getFailedCount();
+    }
+
+    @Override
+    public long getSavesDropped() {
+        UserSaveQueue saveQueue = this.saveQueue;
+        return saveQueue == null ? 0 : saveQueue.getDroppedCount();
+    }
+
+    @Override
+    public long getSaveFlushMeanMicros() {
+        UserSaveQueue saveQueue = this.saveQueue;
+        return saveQueue == null ? 0 : saveQueue.getFlushLatency().getMeanMicros();
+    }
+
+    @Override
+    public long getSaveFlushPercentile99Micros() {
+        UserSaveQueue saveQueue = this.saveQueue;
+        return saveQueue == null ? 0 : saveQueue.getFlushLatency().getPercentileMicros(0.99);
+    }
+
+    @Override
+    public long getSaveFlushMaxMicros() {
+        UserSaveQueue saveQueue = this.saveQueue;
+        return saveQueue == null ? 0 : saveQueue.getFlushLatency().getMaxMicros();
+    }
+}
@@ -25,83 +25,294 @@
 
 package me.lucko.luckperms.extension.defaultassignments;
 
-import net.luckperms.api.model.user.User;
-import net.luckperms.api.node.Node;
 import net.luckperms.api.util.Tristate;
 
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.List;
 import java.util.stream.Collectors;
 
-class AssignmentRule {
+/**
+ * A single default assignment rule.
+ *
+ * <p>Rules are immutable once constructed, so the same instances can be
+ * applied from any number of login threads at once without locking.</p>
+ *
+ * <p>Rules hold no nodes of their own - conditions refer to nodes by their
+ * id in the {@link NodeTable}, and the nodes to give and take by their
+ * effect id, so rules compiled against the same table share each node.</p>
+ */
+final class AssignmentRule {
+    private final String name;
+
     private final AssignmentExpression hasTrueExpression;
     private final AssignmentExpression hasFalseExpression;
     private final AssignmentExpression lacksExpression;
 
-    private final List<Node> toGive;
-    private final List<Node> toTake;
+    /** The effect ids of the nodes to give */
+    private final int[] toGive;
+    /** The effect ids of the nodes to take */
+    private final int[] toTake;
     private final String setPrimaryGroup;
 
-    AssignmentRule(String hasTrueExpression, String hasFalseExpression, String lacksExpression, List<String> toGive, List<String> toTake, String setPrimaryGroup) {
-        this.hasTrueExpression = hasTrueExpression == null ? null : new AssignmentExpression(hasTrueExpression);
-        this.hasFalseExpression = hasFalseExpression == null ? null : new AssignmentExpression(hasFalseExpression);
-        this.lacksExpression = lacksExpression == null ? null : new AssignmentExpression(lacksExpression);
-        this.toGive = toGive.stream().map(s -> LegacyNodeFactory.fromLegacyString(s)).collect(Collectors.toList());
-        this.toTake = toTake.stream().map(s -> LegacyNodeFactory.fromLegacyString(s)).collect(Collectors.toList());
+    /** If the rule should be checked on every login, even for users who have already been processed */
+    private final boolean alwaysCheck;
+
+    AssignmentRule(String name, String hasTrueExpression, String hasFalseExpression, String lacksExpression, List<String> toGive, List<String> toTake, String setPrimaryGroup, boolean alwaysCheck, NodeTable.Builder nodes) {
+        this.name = name;
+        this.hasTrueExpression = parseExpression("if.has-true", hasTrueExpression, nodes);
+        this.hasFalseExpression = parseExpression("if.has-false", hasFalseExpression, nodes);
+        this.lacksExpression = parseExpression("if.lacks", lacksExpression, nodes);
+        this.toGive = parseNodes("give", toGive, nodes);
+        this.toTake = parseNodes("take", toTake, nodes);
         this.setPrimaryGroup = setPrimaryGroup;
+        this.alwaysCheck = alwaysCheck;
     }
 
-    private boolean evalExpression(User user, AssignmentExpression expression, Tristate tristate) {
-        if (expression != null) {
+    private static AssignmentExpression parseExpression(String option, String expression, NodeTable.Builder nodes) throws IllegalArgumentException {
+        if (expression == null) {
+            return null;
+        }
+        try {
+            return new AssignmentExpression(expression, nodes);
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Invalid '" + option + "' condition: " + e.getMessage(), e);
+        }
+    }
+
+    private static int[] parseNodes(String option, List<String> nodes, NodeTable.Builder table) throws IllegalArgumentException {
+        int[] ids = new int[nodes.size()];
+        for (int i = 0; i < ids.length; i++) {
             try {
-                boolean b = expression.eval(user, tristate);
-                if (!b) {
-                    return false;
-                }
+                ids[i] = table.registerEffect(LegacyNodeFactory.fromLegacyString(nodes.get(i)));
             } catch (IllegalArgumentException e) {
-                e.printStackTrace();
-                return false;
+                throw new IllegalArgumentException("Invalid '" + option + "' node: " + e.getMessage(), e);
             }
         }
-        return true;
+        return ids;
     }
 
-    public boolean apply(User user) {
-        if (!evalExpression(user, this.hasTrueExpression, Tristate.TRUE)) {
-            return false;
+    public String getName() {
+        return this.name;
+    }
+
+    public boolean isAlwaysCheck() {
+        return this.alwaysCheck;
+    }
+
+    /**
+     * Gets the effect ids of the nodes given by this rule.
+     *
+     * <p>The array is not copied, and must not be modified.</p>
+     *
+     * @return the effect ids
+     */
+    public int[] getToGive() {
+        return this.toGive;
+    }
+
+    /**
+     * Gets the effect ids of the nodes taken by this rule.
+     *
+     * <p>The array is not copied, and must not be modified.</p>
+     *
+     * @return the effect ids
+     */
+    public int[] getToTake() {
+        return this.toTake;
+    }
+
+    public String getSetPrimaryGroup() {
+        return this.setPrimaryGroup;
+    }
+
+    /**
+     * Gets if applying the rule could change anything about a user.
+     *
+     * @return true if the rule gives, takes or sets anything
+     */
+    public boolean hasEffects() {
+        return this.toGive.length != 0 || this.toTake.length != 0 || this.setPrimaryGroup != null;
+    }
+
+    /**
+     * Gets if the rule matches every user, regardless of their nodes.
+     *
+     * @return true if every condition is absent or constantly true
+     */
+    public boolean isAlwaysMatching() {
+        return isConstant(this.hasTrueExpression, true) &&
+                isConstant(this.hasFalseExpression, true) &&
+                isConstant(this.lacksExpression, true);
+    }
+
+    /**
+     * Gets if the rule can be shown to never match any user.
+     *
+     * @return true if the rule can never match
+     */
+    public boolean isNeverMatching() {
+        if (isConstant(this.hasTrueExpression, false) || isConstant(this.hasFalseExpression, false) || isConstant(this.lacksExpression, false)) {
+            return true;
         }
 
-        if (!evalExpression(user, this.hasFalseExpression, Tristate.FALSE)) {
-            return false;
+        // each node is in exactly one state, so look for conditions which require otherwise
+        AssignmentExpression[] expressions = {this.hasTrueExpression, this.hasFalseExpression, this.lacksExpression};
+        BitSet[] required = new BitSet[expressions.length];
+        BitSet[] excluded = new BitSet[expressions.length];
+        for (int i = 0; i < expressions.length; i++) {
+            required[i] = new BitSet();
+            excluded[i] = new BitSet();
+            if (expressions[i] != null) {
+                expressions[i].collectConstraints(required[i], excluded[i]);
+            }
         }
 
-        if (!evalExpression(user, this.lacksExpression, Tristate.UNDEFINED)) {
+        BitSet seen = new BitSet();
+        for (int i = 0; i < expressions.length; i++) {
+            // required to be in two different states, or both required and excluded from one
+            if (required[i].intersects(seen) || required[i].intersects(excluded[i])) {
+                return true;
+            }
+            seen.or(required[i]);
+        }
+
+        // excluded from every state
+        BitSet excludedFromAll = (BitSet) excluded[0].clone();
+        for (int i = 1; i < expressions.length; i++) {
+            excludedFromAll.and(excluded[i]);
+        }
+        return !excludedFromAll.isEmpty();
+    }
+
+    /**
+     * Adds the id of every node referenced by the rule's conditions to the set.
+     *
+     * @param ids the set to add to
+     */
+    public void collectConditionIds(BitSet ids) {
+        if (this.hasTrueExpression != null) {
+            this.hasTrueExpression.collectIds(ids);
+        }
+        if (this.hasFalseExpression != null) {
+            this.hasFalseExpression.collectIds(ids);
+        }
+        if (this.lacksExpression != null) {
+            this.lacksExpression.collectIds(ids);
+        }
+    }
+
+    /**
+     * Adds the id of every node which must be in the given state for the
+     * rule to match to the set.
+     *
+     * <p>This is incomplete (see {@link AssignmentExpression#collectConstraints(BitSet, BitSet)}),
+     * but never wrong.</p>
+     *
+     * @param state the state, either {@link Tristate#TRUE} or {@link Tristate#FALSE}
+     * @param ids the set to add to
+     */
+    public void collectRequiredIds(Tristate state, BitSet ids) {
+        AssignmentExpression expression = state == Tristate.TRUE ? this.hasTrueExpression : state == Tristate.FALSE ? this.hasFalseExpression : this.lacksExpression;
+        if (expression != null) {
+            expression.collectConstraints(ids, new BitSet());
+        }
+    }
+
+    private static boolean isConstant(AssignmentExpression expression, boolean value) {
+        if (expression == null) {
+            return value;
+        }
+        return expression.isConstant() && expression.getConstantValue() == value;
+    }
+
+    private static boolean evalExpression(NodeStates states, AssignmentExpression expression, Tristate tristate) {
+        return expression == null || expression.eval(states, tristate);
+    }
+
+    /**
+     * Gets if a holder with the given node states meets all of the
+     * requirements of this rule.
+     *
+     * @param states the resolved node states
+     * @return true if the rule matches
+     */
+    public boolean matches(NodeStates states) {
+        return evalExpression(states, this.hasTrueExpression, Tristate.TRUE) &&
+                evalExpression(states, this.hasFalseExpression, Tristate.FALSE) &&
+                evalExpression(states, this.lacksExpression, Tristate.UNDEFINED);
+    }
+
+    /**
+     * Applies the rule to the user, if they meet its conditions.
+     *
+     * @param plan the planned changes to the user
+     * @param states the resolved node states for the user, updated to
+     *               reflect any nodes given or taken by this rule
+     * @return true if the rule matched, whether or not it changed anything
+     */
+    public boolean apply(MutationPlan plan, NodeStates states) {
+        if (!matches(states)) {
             return false;
         }
 
-        // The holder meets all of the requirements of this rule.
-        for (Node n : this.toTake) {
-            user.data().remove(n);
+        perform(plan, states.getTable());
+        states.refresh(plan, this.toTake);
+        states.refresh(plan, this.toGive);
+        return true;
+    }
+
+    /**
+     * Gives and takes the nodes specified by this rule, without checking its conditions.
+     *
+     * @param plan the planned changes to the user
+     * @param nodes the node table the rule was compiled against
+     */
+    public void perform(MutationPlan plan, NodeTable nodes) {
+        for (int id : this.toTake) {
+            plan.remove(nodes.getEffect(id));
         }
 
-        for (Node n : this.toGive) {
-            user.data().add(n);
+        for (int id : this.toGive) {
+            plan.add(nodes.getEffect(id));
         }
 
         if (this.setPrimaryGroup != null) {
-            user.setPrimaryGroup(this.setPrimaryGroup);
+            plan.setPrimaryGroup(this.setPrimaryGroup);
         }
+    }
 
-        return true;
+    /**
+     * Describes the rule, with the nodes it gives and takes rather than their ids.
+     *
+     * <p>Unlike ids, which can be reused for a different node when the rules
+     * are recompiled, this always changes when the rule does.</p>
+     *
+     * @param nodes the node table the rule was compiled against
+     * @return the description
+     */
+    public String toString(NodeTable nodes) {
+        return toString(describe(this.toGive, nodes), describe(this.toTake, nodes));
+    }
+
+    private static String describe(int[] effectIds, NodeTable nodes) {
+        return Arrays.stream(effectIds).mapToObj(nodes::getEffect).collect(Collectors.toList()).toString();
     }
 
     @Override
     public String toString() {
+        return toString(Arrays.toString(this.toGive), Arrays.toString(this.toTake));
+    }
+
+    private String toString(String toGive, String toTake) {
         return "AssignmentRule(" +
+                "name=" + this.name + ", " +
                 "hasTrueExpression=" + this.hasTrueExpression + ", " +
                 "hasFalseExpression=" + this.hasFalseExpression + ", " +
                 "lacksExpression=" + this.lacksExpression + ", " +
-                "toGive=" + this.toGive + ", " +
-                "toTake=" + this.toTake + ", " +
-                "setPrimaryGroup=" + this.setPrimaryGroup + ")";
+                "toGive=" + toGive + ", " +
+                "toTake=" + toTake + ", " +
+                "setPrimaryGroup=" + this.setPrimaryGroup + ", " +
+                "alwaysCheck=" + this.alwaysCheck + ")";
     }
-}
\ No newline at end of file
+}
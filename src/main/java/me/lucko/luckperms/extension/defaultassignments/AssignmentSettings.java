@@ -0,0 +1,355 @@
+/*
+ * This file is part of LuckPerms, licensed under the MIT License.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in all
+ *  copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ *  SOFTWARE.
+ */
+
+package me.lucko.luckperms.extension.defaultassignments;
+
+/**
+ * Options controlling how the extension applies rules, read from the
+ * {@code default-assignments-settings} section of the LuckPerms config.
+ */
+final class AssignmentSettings {
+
+    /** The maximum number of rule outcomes to cache, or 0 to disable caching */
+    private final int outcomeCacheSize;
+
+    /** The maximum number of users waiting to be saved before saves bypass the queue */
+    private final int saveQueueSize;
+    /** The maximum number of users saved at once */
+    private final int saveBatchSize;
+    /** The delay in milliseconds between flushes of the save queue */
+    private final long saveInterval;
+
+    /** If users should be stamped with the ruleset version, and skipped on later logins */
+    private final boolean versionStamp;
+
+    /** If the rules should be applied to every user in storage when the extension loads */
+    private final boolean backfill;
+    /** The maximum number of users loaded at once by the backfill */
+    private final int backfillConcurrency;
+    /** The maximum number of users processed per second by the backfill, or 0 for no limit */
+    private final int backfillRateLimit;
+    /** If the backfill should only report what it would change */
+    private final boolean backfillDryRun;
+
+    /** If metrics should be registered with JMX */
+    private final boolean jmx;
+    /** The duration in milliseconds above which logins are logged as slow, or 0 to disable */
+    private final long slowLoginThreshold;
+
+    /** If the extension should refuse to load (or reload) rules when any of them are invalid */
+    private final boolean strict;
+
+    /** If instances sharing storage should coordinate so each user is only saved by one of them */
+    private final boolean cluster;
+    /** How long in milliseconds an instance waits after claiming a user before checking its claim held */
+    private final long clusterSettleTime;
+
+    /** If the rules should be re-applied to loaded users when their nodes change */
+    private final boolean reevaluate;
+    /** The delay in milliseconds before re-applying the rules, to group changes together */
+    private final long reevaluateDelay;
+
+    /** The number of rules at or above which independent rules are evaluated in parallel, or 0 to disable */
+    private final int parallelThreshold;
+
+    /** If the number of logins processed at once should be limited */
+    private final boolean admission;
+    /** The maximum number of logins processed at once */
+    private final int admissionMaxConcurrent;
+    /** What to do with logins which couldn't be admitted */
+    private final AdmissionController.Fallback admissionFallback;
+
+    private AssignmentSettings(Builder builder) {
+        this.outcomeCacheSize = builder.outcomeCacheSize;
+        this.saveQueueSize = builder.saveQueueSize;
+        this.saveBatchSize = Math.max(1, builder.saveBatchSize);
+        this.saveInterval = Math.max(1, builder.saveInterval);
+        // cluster mode relies on the stamp to tell when a user has been processed
+        this.versionStamp = builder.versionStamp || builder.cluster;
+        this.backfill = builder.backfill;
+        this.backfillConcurrency = Math.max(1, builder.backfillConcurrency);
+        this.backfillRateLimit = builder.backfillRateLimit;
+        this.backfillDryRun = builder.backfillDryRun;
+        this.jmx = builder.jmx;
+        this.slowLoginThreshold = builder.slowLoginThreshold;
+        this.strict = builder.strict;
+        this.cluster = builder.cluster;
+        this.clusterSettleTime = Math.max(0, builder.clusterSettleTime);
+        this.reevaluate = builder.reevaluate;
+        this.reevaluateDelay = Math.max(1, builder.reevaluateDelay);
+        this.admission = builder.admission;
+        this.admissionMaxConcurrent = Math.max(1, builder.admissionMaxConcurrent);
+        this.admissionFallback = builder.admissionFallback;
+        this.parallelThreshold = Math.max(0, builder.parallelThreshold);
+    }
+
+    /**
+     * Creates a builder, starting from the default settings.
+     *
+     * @return a new builder
+     */
+    static Builder builder() {
+        return new Builder();
+    }
+
+    public int getOutcomeCacheSize() {
+        return this.outcomeCacheSize;
+    }
+
+    public int getSaveQueueSize() {
+        return this.saveQueueSize;
+    }
+
+    public int getSaveBatchSize() {
+        return this.saveBatchSize;
+    }
+
+    public long getSaveInterval() {
+        return this.saveInterval;
+    }
+
+    public boolean isVersionStamp() {
+        return this.versionStamp;
+    }
+
+    public boolean isBackfill() {
+        return this.backfill;
+    }
+
+    public int getBackfillConcurrency() {
+        return this.backfillConcurrency;
+    }
+
+    public int getBackfillRateLimit() {
+        return this.backfillRateLimit;
+    }
+
+    public boolean isBackfillDryRun() {
+        return this.backfillDryRun;
+    }
+
+    public boolean isJmx() {
+        return this.jmx;
+    }
+
+    public long getSlowLoginThreshold() {
+        return this.slowLoginThreshold;
+    }
+
+    public boolean isStrict() {
+        return this.strict;
+    }
+
+    public boolean isCluster() {
+        return this.cluster;
+    }
+
+    public long getClusterSettleTime() {
+        return this.clusterSettleTime;
+    }
+
+    public boolean isReevaluate() {
+        return this.reevaluate;
+    }
+
+    public long getReevaluateDelay() {
+        return this.reevaluateDelay;
+    }
+
+    public boolean isAdmission() {
+        return this.admission;
+    }
+
+    public int getAdmissionMaxConcurrent() {
+        return this.admissionMaxConcurrent;
+    }
+
+    public AdmissionController.Fallback getAdmissionFallback() {
+        return this.admissionFallback;
+    }
+
+    public int getParallelThreshold() {
+        return this.parallelThreshold;
+    }
+
+    @Override
+    public String toString() {
+        return "AssignmentSettings(" +
+                "outcomeCacheSize=" + this.outcomeCacheSize + ", " +
+                "saveQueueSize=" + this.saveQueueSize + ", " +
+                "saveBatchSize=" + this.saveBatchSize + ", " +
+                "saveInterval=" + this.saveInterval + ", " +
+                "versionStamp=" + this.versionStamp + ", " +
+                "backfill=" + this.backfill + ", " +
+                "backfillConcurrency=" + this.backfillConcurrency + ", " +
+                "backfillRateLimit=" + this.backfillRateLimit + ", " +
+                "backfillDryRun=" + this.backfillDryRun + ", " +
+                "jmx=" + this.jmx + ", " +
+                "slowLoginThreshold=" + this.slowLoginThreshold + ", " +
+                "strict=" + this.strict + ", " +
+                "cluster=" + this.cluster + ", " +
+                "clusterSettleTime=" + this.clusterSettleTime + ", " +
+                "reevaluate=" + this.reevaluate + ", " +
+                "reevaluateDelay=" + this.reevaluateDelay + ", " +
+                "admission=" + this.admission + ", " +
+                "admissionMaxConcurrent=" + this.admissionMaxConcurrent + ", " +
+                "admissionFallback=" + this.admissionFallback + ", " +
+                "parallelThreshold=" + this.parallelThreshold + ")";
+    }
+
+    /**
+     * Builds {@link AssignmentSettings}. Anything which isn't set keeps its
+     * default, which is also the default when it is missing from the config.
+     */
+    static final class Builder {
+        private int outcomeCacheSize = 1024;
+        private int saveQueueSize = 10000;
+        private int saveBatchSize = 50;
+        private long saveInterval = 500;
+        private boolean versionStamp = false;
+        private boolean backfill = false;
+        private int backfillConcurrency = 4;
+        private int backfillRateLimit = 100;
+        private boolean backfillDryRun = false;
+        private boolean jmx = false;
+        private long slowLoginThreshold = 0;
+        private boolean strict = false;
+        private boolean cluster = false;
+        private long clusterSettleTime = 1000;
+        private boolean reevaluate = false;
+        private long reevaluateDelay = 500;
+        private boolean admission = false;
+        private int admissionMaxConcurrent = 16;
+        private AdmissionController.Fallback admissionFallback = AdmissionController.Fallback.APPLY;
+        private int parallelThreshold = 1000;
+
+        private Builder() {
+        }
+
+        public Builder outcomeCacheSize(int outcomeCacheSize) {
+            this.outcomeCacheSize = outcomeCacheSize;
+            return this;
+        }
+
+        public Builder saveQueueSize(int saveQueueSize) {
+            this.saveQueueSize = saveQueueSize;
+            return this;
+        }
+
+        public Builder saveBatchSize(int saveBatchSize) {
+            this.saveBatchSize = saveBatchSize;
+            return this;
+        }
+
+        public Builder saveInterval(long saveInterval) {
+            this.saveInterval = saveInterval;
+            return this;
+        }
+
+        public Builder versionStamp(boolean versionStamp) {
+            this.versionStamp = versionStamp;
+            return this;
+        }
+
+        public Builder backfill(boolean backfill) {
+            this.backfill = backfill;
+            return this;
+        }
+
+        public Builder backfillConcurrency(int backfillConcurrency) {
+            this.backfillConcurrency = backfillConcurrency;
+            return this;
+        }
+
+        public Builder backfillRateLimit(int backfillRateLimit) {
+            this.backfillRateLimit = backfillRateLimit;
+            return this;
+        }
+
+        public Builder backfillDryRun(boolean backfillDryRun) {
+            this.backfillDryRun = backfillDryRun;
+            return this;
+        }
+
+        public Builder jmx(boolean jmx) {
+            this.jmx = jmx;
+            return this;
+        }
+
+        public Builder slowLoginThreshold(long slowLoginThreshold) {
+            this.slowLoginThreshold = slowLoginThreshold;
+            return this;
+        }
+
+        public Builder strict(boolean strict) {
+            this.strict = strict;
+            return this;
+        }
+
+        public Builder cluster(boolean cluster) {
+            this.cluster = cluster;
+            return this;
+        }
+
+        public Builder clusterSettleTime(long clusterSettleTime) {
+            this.clusterSettleTime = clusterSettleTime;
+            return this;
+        }
+
+        public Builder reevaluate(boolean reevaluate) {
+            this.reevaluate = reevaluate;
+            return this;
+        }
+
+        public Builder reevaluateDelay(long reevaluateDelay) {
+            this.reevaluateDelay = reevaluateDelay;
+            return this;
+        }
+
+        public Builder admission(boolean admission) {
+            this.admission = admission;
+            return this;
+        }
+
+        public Builder admissionMaxConcurrent(int admissionMaxConcurrent) {
+            this.admissionMaxConcurrent = admissionMaxConcurrent;
+            return this;
+        }
+
+        public Builder admissionFallback(AdmissionController.Fallback admissionFallback) {
+            this.admissionFallback = admissionFallback;
+            return this;
+        }
+
+        public Builder parallelThreshold(int parallelThreshold) {
+            this.parallelThreshold = parallelThreshold;
+            return this;
+        }
+
+        public AssignmentSettings build() {
+            return new AssignmentSettings(this);
+        }
+    }
+}
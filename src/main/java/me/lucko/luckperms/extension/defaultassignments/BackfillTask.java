@@ -0,0 +1,242 @@
+/*
+ * This file is part of LuckPerms, licensed under the MIT License.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in all
+ *  copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ *  SOFTWARE.
+ */
+
+package me.lucko.luckperms.extension.defaultassignments;
+
+import me.lucko.luckperms.common.plugin.logging.PluginLogger;
+
+import net.luckperms.api.model.user.User;
+import net.luckperms.api.model.user.UserManager;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Applies the rules to every user in storage, not just those who log in.
+ *
+ * <p>Users are processed in ascending uuid order, in chunks no larger than
+ * the configured concurrency: each chunk is loaded, evaluated, saved and
+ * then released before the next is started, so only a handful of users are
+ * ever held in memory or hitting the storage at once.</p>
+ *
+ * <p>Progress is checkpointed to a file after each chunk, so an interrupted
+ * backfill resumes where it left off. The checkpoint records the
+ * {@link RuleSet#getVersion() ruleset version}, so a backfill is only run
+ * once per version of the rules.</p>
+ *
+ * <p>A dry run only works out the changes the rules would make - users
+ * are never modified, whether or not they're in use on the server.</p>
+ */
+final class BackfillTask implements Runnable {
+    private static final long PROGRESS_INTERVAL = TimeUnit.SECONDS.toNanos(10);
+
+    private final UserManager userManager;
+    private final PluginLogger logger;
+    private final RuleSet rules;
+    /** Told about the changes made, if re-evaluation is enabled - may be null */
+    private final IncrementalEvaluator incrementalEvaluator;
+    private final Path checkpointFile;
+
+    private final int concurrency;
+    private final int rateLimit;
+    private final boolean dryRun;
+
+    private volatile boolean cancelled = false;
+
+    private int processed = 0;
+    private int changed = 0;
+    private int skipped = 0;
+
+    BackfillTask(UserManager userManager, PluginLogger logger, RuleSet rules, IncrementalEvaluator incrementalEvaluator, Path checkpointFile, AssignmentSettings settings) {
+        this.userManager = userManager;
+        this.logger = logger;
+        this.rules = rules;
+        this.incrementalEvaluator = incrementalEvaluator;
+        this.checkpointFile = checkpointFile;
+        this.concurrency = settings.getBackfillConcurrency();
+        this.rateLimit = settings.getBackfillRateLimit();
+        this.dryRun = settings.isBackfillDryRun();
+    }
+
+    public void cancel() {
+        this.cancelled = true;
+    }
+
+    @Override
+    public void run() {
+        try {
+            run0();
+        } catch (Exception e) {
+            this.logger.severe("[default-assignments] Backfill failed: " + e);
+        }
+    }
+
+    private void run0() throws IOException {
+        Checkpoint checkpoint = this.dryRun ? null : Checkpoint.read(this.checkpointFile);
+        if (checkpoint != null && checkpoint.version.equals(this.rules.getVersion()) && checkpoint.complete) {
+            return;
+        }
+
+        UUID resumeAfter = checkpoint != null && checkpoint.version.equals(this.rules.getVersion()) ? checkpoint.last : null;
+
+        UUID[] uniqueIds = this.userManager.getUniqueUsers().join().toArray(new UUID[0]);
+        Arrays.sort(uniqueIds);
+
+        int start = 0;
+        if (resumeAfter != null) {
+            int index = Arrays.binarySearch(uniqueIds, resumeAfter);
+            start = index >= 0 ? index + 1 : -(index + 1);
+        }
+
+        this.logger.info("[default-assignments] " + (this.dryRun ? "Dry-running" : "Running") + " backfill of " + (uniqueIds.length - start) +
+                " users" + (start != 0 ? " (resuming after " + start + ")" : ""));
+
+        long lastProgress = System.nanoTime();
+        for (int i = start; i < uniqueIds.length && !this.cancelled; i += this.concurrency) {
+            long chunkStart = System.nanoTime();
+
+            int end = Math.min(i + this.concurrency, uniqueIds.length);
+            processChunk(Arrays.copyOfRange(uniqueIds, i, end));
+
+            if (!this.dryRun) {
+                Checkpoint.write(this.checkpointFile, new Checkpoint(this.rules.getVersion(), uniqueIds[end - 1], end == uniqueIds.length));
+            }
+
+            long now = System.nanoTime();
+            if (now - lastProgress >= PROGRESS_INTERVAL) {
+                lastProgress = now;
+                this.logger.info("[default-assignments] Backfill progress: " + end + "/" + uniqueIds.length + " users");
+            }
+
+            throttle(end - i, now - chunkStart);
+        }
+
+        this.logger.info("[default-assignments] Backfill " + (this.cancelled ? "stopped" : "complete") + ": " +
+                this.processed + " processed, " + this.changed + (this.dryRun ? " would be changed, " : " changed, ") +
+                this.skipped + " skipped");
+    }
+
+    private void processChunk(UUID[] uniqueIds) {
+        List<CompletableFuture<User>> loads = new ArrayList<>(uniqueIds.length);
+        boolean[] wasLoaded = new boolean[uniqueIds.length];
+        for (int i = 0; i < uniqueIds.length; i++) {
+            wasLoaded[i] = this.userManager.isLoaded(uniqueIds[i]);
+            loads.add(this.userManager.loadUser(uniqueIds[i]));
+        }
+
+        List<CompletableFuture<Void>> saves = new ArrayList<>();
+        List<User> loaded = new ArrayList<>(uniqueIds.length);
+        for (int i = 0; i < uniqueIds.length; i++) {
+            User user = loads.get(i).join();
+            if (user == null) {
+                this.skipped++;
+                continue;
+            }
+            if (!wasLoaded[i]) {
+                loaded.add(user);
+            }
+
+            this.processed++;
+            if (this.dryRun) {
+                if (this.rules.plan(user).hasChanges()) {
+                    this.changed++;
+                }
+                continue;
+            }
+
+            AssignmentDelta delta = this.rules.apply(user, new LoginTimings(), this.incrementalEvaluator == null ? null : this.incrementalEvaluator.recorder(user));
+            if (!delta.isEmpty()) {
+                this.changed++;
+                saves.add(this.userManager.saveUser(user));
+            }
+        }
+
+        CompletableFuture.allOf(saves.toArray(new CompletableFuture<?>[0])).join();
+
+        // release the users we loaded
+        for (User user : loaded) {
+            this.userManager.cleanupUser(user);
+        }
+    }
+
+    private void throttle(int users, long elapsedNanos) {
+        if (this.rateLimit <= 0) {
+            return;
+        }
+
+        long minimumNanos = TimeUnit.SECONDS.toNanos(users) / this.rateLimit;
+        long sleepNanos = minimumNanos - elapsedNanos;
+        if (sleepNanos > 0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(sleepNanos);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                this.cancelled = true;
+            }
+        }
+    }
+
+    private static final class Checkpoint {
+        private final String version;
+        private final UUID last;
+        private final boolean complete;
+
+        private Checkpoint(String version, UUID last, boolean complete) {
+            this.version = version;
+            this.last = last;
+            this.complete = complete;
+        }
+
+        static Checkpoint read(Path file) throws IOException {
+            if (!Files.exists(file)) {
+                return null;
+            }
+
+            List<String> lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+            if (lines.size() < 3) {
+                return null;
+            }
+
+            try {
+                return new Checkpoint(lines.get(0), UUID.fromString(lines.get(1)), Boolean.parseBoolean(lines.get(2)));
+            } catch (IllegalArgumentException e) {
+                return null;
+            }
+        }
+
+        static void write(Path file, Checkpoint checkpoint) throws IOException {
+            List<String> lines = Arrays.asList(checkpoint.version, checkpoint.last.toString(), Boolean.toString(checkpoint.complete));
+            Files.write(file, lines, StandardCharsets.UTF_8);
+        }
+    }
+}
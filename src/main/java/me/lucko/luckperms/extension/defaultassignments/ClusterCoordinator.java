@@ -0,0 +1,316 @@
+/*
+ * This file is part of LuckPerms, licensed under the MIT License.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in all
+ *  copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ *  SOFTWARE.
+ */
+package me.lucko.luckperms.extension.defaultassignments;
+
+import me.lucko.luckperms.common.plugin.logging.PluginLogger;
+
+import net.luckperms.api.messaging.MessagingService;
+import net.luckperms.api.model.user.User;
+import net.luckperms.api.model.user.UserManager;
+import net.luckperms.api.node.Node;
+import net.luckperms.api.node.NodeType;
+import net.luckperms.api.node.types.MetaNode;
+
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Coordinates saving users between multiple LuckPerms instances sharing the
+ * same storage, so that each user is saved by exactly one of them per
+ * {@link RuleSet#getVersion() ruleset version}.
+ *
+ * <p>Every instance applies the rules when a user logs in, as usual, so
+ * their session starts with their assignments. Only the save is
+ * coordinated: for a user who wasn't stamped with the ruleset version, the
+ * instances claim the user in the background, and only the one whose claim
+ * holds saves the result, then pushes a user update over the messaging
+ * service so the others re-read it.</p>
+ *
+ * <p>LuckPerms storage has no compare-and-set, so claims use Fischer's
+ * timed mutual exclusion over a claim marker node. An instance re-reads the
+ * user, and if they aren't stamped and no other instance holds a live claim
+ * for this version, saves its own claim in place of any other. It then waits
+ * for the settle time and re-reads the user again - it has won if its claim
+ * is still there, and the user still isn't stamped. Since a claim only
+ * replaces another if it was read before that one was saved, two instances
+ * can't both win, provided every claim is saved within the settle time of
+ * the read before it. A claim which took longer isn't trusted, and is
+ * tried again.</p>
+ *
+ * <p>Re-reading a user replaces this instance's copy of them, so the rules
+ * are applied to it again straight away (without the stamp), and their
+ * session carries on as it was.</p>
+ */
+final class ClusterCoordinator implements AutoCloseable {
+    /** The meta key used to claim a user for an instance */
+    static final String CLAIM_META_KEY = "default-assignments-claim";
+
+    /** How long a claim is honoured for, in case the instance holding it stops before saving */
+    private static final long CLAIM_LIFETIME_SECONDS = 60;
+    /** How many times to claim a user when storage is slower than the settle time */
+    private static final int MAX_ATTEMPTS = 3;
+
+    private final UserManager userManager;
+    /** The service to push updates over, or null if LuckPerms has none */
+    private final MessagingService messagingService;
+    private final PluginLogger logger;
+    private final String instanceId;
+    private final long settleTime;
+
+    private final ScheduledExecutorService executor;
+    /** The users being claimed by this instance */
+    private final Set<UUID> pending = ConcurrentHashMap.newKeySet();
+
+    private final LongAdder claimsWon = new LongAdder();
+    private final LongAdder claimsLost = new LongAdder();
+
+    ClusterCoordinator(UserManager userManager, MessagingService messagingService, PluginLogger logger, String serverName, AssignmentSettings settings) {
+        this.userManager = userManager;
+        this.messagingService = messagingService;
+        this.logger = logger;
+        // several instances can share a server name, so make it unique
+        this.instanceId = serverName + "-" + UUID.randomUUID().toString().substring(0, 8);
+        this.settleTime = settings.getClusterSettleTime();
+        this.executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "luckperms-default-assignments-cluster");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public String getInstanceId() {
+        return this.instanceId;
+    }
+
+    public long getClaimsWon() {
+        return this.claimsWon.sum();
+    }
+
+    public long getClaimsLost() {
+        return this.claimsLost.sum();
+    }
+
+    /**
+     * Claims the user in the background, and saves them if the claim holds.
+     *
+     * @param uniqueId the unique id of the user, who was not stamped with the ruleset version when they logged in
+     * @param rules the rules applied to the user
+     * @param incrementalEvaluator the evaluator to record the changes made with, or null
+     * @return a future completed with true if this instance saved the user, or false if it left them to another
+     */
+    public CompletableFuture<Boolean> process(UUID uniqueId, RuleSet rules, IncrementalEvaluator incrementalEvaluator) {
+        CompletableFuture<Boolean> result = new CompletableFuture<>();
+        if (!this.pending.add(uniqueId)) {
+            // already being claimed, e.g. after logging in twice in quick succession
+            result.complete(false);
+            return result;
+        }
+
+        result.whenComplete((won, e) -> this.pending.remove(uniqueId));
+        Claim claim = new Claim(uniqueId, rules, incrementalEvaluator, result);
+        schedule(claim::attempt, 0, claim);
+        return result;
+    }
+
+    private void schedule(Runnable task, long delay, Claim claim) {
+        try {
+            this.executor.schedule(task, delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // shutting down
+            claim.result.complete(false);
+        }
+    }
+
+    @Override
+    public void close() {
+        this.executor.shutdownNow();
+    }
+
+    /**
+     * An attempt by this instance to claim and save a user.
+     */
+    private final class Claim {
+        private final UUID uniqueId;
+        private final RuleSet rules;
+        private final IncrementalEvaluator incrementalEvaluator;
+        private final CompletableFuture<Boolean> result;
+        /** The value of this instance's claim node */
+        private final String value;
+        private int attempts = 0;
+
+        Claim(UUID uniqueId, RuleSet rules, IncrementalEvaluator incrementalEvaluator, CompletableFuture<Boolean> result) {
+            this.uniqueId = uniqueId;
+            this.rules = rules;
+            this.incrementalEvaluator = incrementalEvaluator;
+            this.result = result;
+            this.value = rules.getVersion() + "/" + ClusterCoordinator.this.instanceId;
+        }
+
+        void attempt() {
+            this.attempts++;
+            long start = System.nanoTime();
+            ClusterCoordinator.this.userManager.loadUser(this.uniqueId).thenCompose(user -> {
+                if (!isFree(user)) {
+                    // another instance has saved the user, or is about to
+                    reapply(user);
+                    return CompletableFuture.completedFuture(false);
+                }
+
+                // claim the user, along with the changes made to them for their session (but not the stamp)
+                reapply(user);
+                user.data().clear(ClusterCoordinator::isClaim);
+                user.data().add(MetaNode.builder(CLAIM_META_KEY, this.value).expiry(CLAIM_LIFETIME_SECONDS, TimeUnit.SECONDS).build());
+                return ClusterCoordinator.this.userManager.saveUser(user).thenApply(v -> true);
+            }).whenComplete((claimed, e) -> {
+                if (e != null) {
+                    fail(e);
+                    return;
+                }
+                if (!claimed) {
+                    lose();
+                    return;
+                }
+
+                long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+                if (elapsed < ClusterCoordinator.this.settleTime) {
+                    // once every claim read before this one was saved must have been saved too, see if this one held
+                    schedule(this::verify, ClusterCoordinator.this.settleTime, this);
+                } else if (this.attempts < MAX_ATTEMPTS) {
+                    schedule(this::attempt, ClusterCoordinator.this.settleTime, this);
+                } else {
+                    ClusterCoordinator.this.logger.warn("[default-assignments] Claiming " + this.uniqueId + " took " + elapsed + "ms, longer than the cluster settle time - " +
+                            "they'll be saved on their next login. The settle time should be raised above the time taken to save a user.");
+                    this.result.complete(false);
+                }
+            });
+        }
+
+        private void verify() {
+            ClusterCoordinator.this.userManager.loadUser(this.uniqueId).thenCompose(user -> {
+                // check the stamp again, now the user has been re-read
+                if (this.rules.isStamped(user) || !isHeld(user)) {
+                    reapply(user);
+                    return CompletableFuture.completedFuture(false);
+                }
+
+                user.data().clear(ClusterCoordinator::isClaim);
+                this.rules.apply(user, new LoginTimings(), recorder(user));
+                return ClusterCoordinator.this.userManager.saveUser(user).thenApply(v -> {
+                    // let the other instances know to re-read the user
+                    if (ClusterCoordinator.this.messagingService != null) {
+                        ClusterCoordinator.this.messagingService.pushUserUpdate(user);
+                    }
+                    return true;
+                });
+            }).whenComplete((saved, e) -> {
+                if (e != null) {
+                    fail(e);
+                } else if (saved) {
+                    ClusterCoordinator.this.claimsWon.increment();
+                    this.result.complete(true);
+                } else {
+                    lose();
+                }
+            });
+        }
+
+        /**
+         * Gets if the user can be claimed - they aren't stamped, and any live
+         * claim for this version of the rules is this instance's.
+         */
+        private boolean isFree(User user) {
+            if (this.rules.isStamped(user)) {
+                return false;
+            }
+            for (Node node : user.data().toCollection()) {
+                if (isClaim(node) && !node.hasExpired() && isForVersion(node) && !isOwn(node)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Gets if this instance's claim is the one stored for the user.
+         */
+        private boolean isHeld(User user) {
+            for (Node node : user.data().toCollection()) {
+                if (isClaim(node) && !node.hasExpired() && isOwn(node)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private boolean isForVersion(Node node) {
+            return NodeType.META.cast(node).getMetaValue().startsWith(this.rules.getVersion() + "/");
+        }
+
+        private boolean isOwn(Node node) {
+            return NodeType.META.cast(node).getMetaValue().equals(this.value);
+        }
+
+        /**
+         * Applies the rules to the re-read user again, without saving them or
+         * stamping them, so their session is as it was before.
+         */
+        private void reapply(User user) {
+            MutationPlan plan = this.rules.plan(user);
+            if (plan.hasChanges()) {
+                Consumer<AssignmentDelta> recorder = recorder(user);
+                if (recorder != null) {
+                    recorder.accept(plan.getChanges());
+                }
+                plan.apply(new AssignmentDelta());
+            }
+        }
+
+        private Consumer<AssignmentDelta> recorder(User user) {
+            return this.incrementalEvaluator == null ? null : this.incrementalEvaluator.recorder(user);
+        }
+
+        private void lose() {
+            ClusterCoordinator.this.claimsLost.increment();
+            this.result.complete(false);
+        }
+
+        private void fail(Throwable e) {
+            ClusterCoordinator.this.logger.warn("[default-assignments] Unable to save " + this.uniqueId + ", they'll be saved on their next login: " + e);
+            this.result.complete(false);
+        }
+    }
+
+    private static boolean isClaim(Node node) {
+        return NodeType.META.matches(node) && NodeType.META.cast(node).getMetaKey().equals(CLAIM_META_KEY);
+    }
+}
@@ -1,70 +1,305 @@
 package me.lucko.luckperms.extension.defaultassignments;
 
+import com.google.common.cache.CacheStats;
+
+import me.lucko.luckperms.common.plugin.logging.PluginLogger;
+
 import net.luckperms.api.LuckPerms;
 import net.luckperms.api.event.EventSubscription;
 import net.luckperms.api.event.player.PlayerLoginProcessEvent;
+import net.luckperms.api.event.sync.ConfigReloadEvent;
 import net.luckperms.api.extension.Extension;
-import net.luckperms.api.model.user.User;
+import net.luckperms.api.messaging.MessagingService;
 
+import java.nio.file.Path;
 import java.util.List;
-
-import javax.script.ScriptEngine;
-import javax.script.ScriptEngineManager;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 
 public class DefaultAssignmentsExtension implements Extension {
 
-    private static ScriptEngine engine = null;
     private final LuckPerms luckPerms;
+
+    // the current ruleset - swapped atomically when the config is reloaded,
+    // so a login always sees either the old rules or the new ones, never a mix
+    private final AtomicReference<RuleSet> rules = new AtomicReference<>();
+    private final RuleSetCompiler compiler = new RuleSetCompiler();
+
+    // the fields below are guarded by this
+    private AssignmentSettings settings;
+    private PluginLogger logger;
+    private EventSubscription<ConfigReloadEvent> reloadListener;
     private EventSubscription<PlayerLoginProcessEvent> listener;
+    private UserSaveQueue saveQueue;
+    private AdmissionController admission;
+    private ClusterCoordinator cluster;
+    private IncrementalEvaluator incrementalEvaluator;
+    private BackfillTask backfill;
+    private Thread backfillThread;
+    private AssignmentMetrics metrics;
 
     public DefaultAssignmentsExtension(LuckPerms luckPerms) {
         this.luckPerms = luckPerms;
     }
 
     @Override
-    public void load() {
-        // get a list of rules from the config
-        List<AssignmentRule> rules = LuckPermsConfigAccessor.getAssignmentRules(this.luckPerms);
+    public synchronized void load() {
+        // settings are only read once, changes to them need a restart
+        this.settings = LuckPermsConfigAccessor.getSettings(this.luckPerms);
+        this.logger = LuckPermsConfigAccessor.getLogger(this.luckPerms);
 
-        // if there are no rules present, don't bother to setup a connection listener
-        if (rules.isEmpty()) {
+        RuleSet rules = compileRules();
+        if (!logErrors()) {
+            throw new IllegalStateException("Invalid default assignment rules, refusing to load in strict mode");
+        }
+        this.rules.set(rules);
+        logAnalysis();
+        onRulesChanged(rules);
+
+        // recompile the rules whenever the LuckPerms config is reloaded
+        this.reloadListener = this.luckPerms.getEventBus().subscribe(ConfigReloadEvent.class, event -> reload());
+    }
+
+    private synchronized void reload() {
+        if (this.reloadListener == null) {
+            // unloaded
             return;
         }
 
-        // setup a listener to apply default assignment rules when players login
-        this.listener = this.luckPerms.getEventBus().subscribe(PlayerLoginProcessEvent.class, event -> {
-            if (event.getUser() == null) {
-                return;
+        RuleSet previous = this.rules.get();
+        RuleSet rules = compileRules();
+        if (!logErrors()) {
+            this.logger.severe("[default-assignments] Invalid rules in strict mode, keeping the previous rules");
+            return;
+        }
+        if (rules.getVersion().equals(previous.getVersion())) {
+            // nothing changed - keep the existing ruleset and its cached outcomes
+            return;
+        }
+
+        this.rules.set(rules);
+        this.logger.info("[default-assignments] Reloaded " + rules.getRules().size() + " rules (" +
+                this.compiler.getLastCompiledCount() + " recompiled)");
+        logAnalysis();
+        onRulesChanged(rules);
+    }
+
+    private RuleSet compileRules() {
+        return this.compiler.compile(LuckPermsConfigAccessor.getRuleDefinitions(this.luckPerms), this.settings);
+    }
+
+    private boolean logErrors() {
+        return logErrors(this.compiler.getLastErrors(), this.settings, this.logger);
+    }
+
+    /**
+     * Logs an error for each rule which failed to compile.
+     *
+     * @param errors the errors
+     * @param settings the settings
+     * @param logger the logger
+     * @return false if the rules should be rejected
+     */
+    static boolean logErrors(List<String> errors, AssignmentSettings settings, PluginLogger logger) {
+        for (String error : errors) {
+            logger.severe("[default-assignments] " + error + (settings.isStrict() ? "" : " - it will be ignored"));
+        }
+        return errors.isEmpty() || !settings.isStrict();
+    }
+
+    private void logAnalysis() {
+        RuleSetAnalysis analysis = this.compiler.getLastAnalysis();
+        if (analysis.getRules().isEmpty() && analysis.getRemoved().isEmpty()) {
+            // no rules configured
+            return;
+        }
+        for (String line : analysis.getReport()) {
+            this.logger.info("[default-assignments] " + line);
+        }
+    }
+
+    private void onRulesChanged(RuleSet rules) {
+        // if there are no rules present, don't bother to have a connection listener
+        if (rules.isEmpty()) {
+            if (this.listener != null) {
+                this.listener.close();
+                this.listener = null;
+            }
+            if (this.incrementalEvaluator != null) {
+                this.incrementalEvaluator.close();
+                this.incrementalEvaluator = null;
             }
+            stopBackfill();
+            if (this.metrics != null) {
+                this.metrics.setRules(rules);
+            }
+            return;
+        }
+
+        if (this.saveQueue == null) {
+            this.saveQueue = new UserSaveQueue(this.luckPerms.getUserManager(), this.logger, this.settings);
 
-            User user = event.getUser();
+            if (this.settings.isAdmission()) {
+                this.admission = new AdmissionController(this.settings);
+            }
 
-            boolean saveRequired = false;
-            for (AssignmentRule rule : rules) {
-                if (rule.apply(user)) {
-                    saveRequired = true;
+            if (this.settings.isCluster()) {
+                MessagingService messagingService = this.luckPerms.getMessagingService().orElse(null);
+                this.cluster = new ClusterCoordinator(this.luckPerms.getUserManager(), messagingService, this.logger, this.luckPerms.getServerName(), this.settings);
+                this.logger.info("[default-assignments] Cluster mode enabled, this instance is " + this.cluster.getInstanceId());
+                if (messagingService == null) {
+                    this.logger.warn("[default-assignments] Cluster mode is enabled, but LuckPerms has no messaging service - other instances " +
+                            "won't hear about users processed by this one, so may process them again");
                 }
+
+                // once saved, let the other instances know to re-read the user
+                this.saveQueue.setSaveListener(user -> this.luckPerms.getMessagingService().ifPresent(service -> service.pushUserUpdate(user)));
             }
+        }
 
-            // If they were given a default, persist the new assignments back to the storage.
-            if (saveRequired) {
-                this.luckPerms.getUserManager().saveUser(user).join();
+        if (this.metrics == null) {
+            this.metrics = new AssignmentMetrics(this.logger, this.settings);
+            this.metrics.setRules(rules);
+            this.metrics.setSaveQueue(this.saveQueue);
+            this.metrics.setAdmission(this.admission);
+            if (this.settings.isJmx()) {
+                this.metrics.register();
             }
-        });
+        } else {
+            this.metrics.setRules(rules);
+        }
+
+        // re-apply the rules to loaded users when their nodes change
+        if (this.settings.isReevaluate() && this.incrementalEvaluator == null) {
+            this.incrementalEvaluator = new IncrementalEvaluator(this.luckPerms, this.logger, this.rules::get, this.saveQueue, this.settings);
+        }
+
+        if (this.listener == null) {
+            LoginProcessor processor = new LoginProcessor(this.saveQueue, this.admission, this.cluster, this.incrementalEvaluator, this.metrics);
+
+            // setup a listener to apply default assignment rules when players login
+            this.listener = this.luckPerms.getEventBus().subscribe(PlayerLoginProcessEvent.class, event -> {
+                if (event.getUser() == null) {
+                    return;
+                }
+
+                // read the current rules once, so the whole login sees the same ones
+                RuleSet current = this.rules.get();
+                if (current == null || current.isEmpty()) {
+                    // unloaded, or no rules
+                    return;
+                }
+
+                processor.process(event.getUser(), current);
+            });
+        }
+
+        // apply the rules to users who aren't logging in, in the background
+        if (this.settings.isBackfill()) {
+            Thread previous = stopBackfill();
+            Path checkpointFile = LuckPermsConfigAccessor.getDataDirectory(this.luckPerms).resolve("default-assignments-backfill.txt");
+            BackfillTask backfill = new BackfillTask(this.luckPerms.getUserManager(), this.logger, rules, this.incrementalEvaluator, checkpointFile, this.settings);
+            this.backfill = backfill;
+            this.backfillThread = new Thread(() -> {
+                // wait for the previous backfill to stop, so they don't both write the checkpoint
+                if (previous != null) {
+                    try {
+                        previous.join();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                backfill.run();
+            }, "luckperms-default-assignments-backfill");
+            this.backfillThread.setDaemon(true);
+            this.backfillThread.start();
+        }
+    }
+
+    /**
+     * Tells the running backfill to stop, without waiting for it - it stops
+     * once its current chunk of users is done.
+     *
+     * @return the backfill's thread, or null if there was no backfill
+     */
+    private Thread stopBackfill() {
+        if (this.backfill == null) {
+            return null;
+        }
+
+        Thread thread = this.backfillThread;
+        this.backfill.cancel();
+        this.backfill = null;
+        this.backfillThread = null;
+        return thread;
     }
 
     @Override
-    public void unload() {
+    public synchronized void unload() {
+        if (this.reloadListener != null) {
+            this.reloadListener.close();
+            this.reloadListener = null;
+        }
+
         if (this.listener != null) {
             this.listener.close();
+            this.listener = null;
+        }
+
+        if (this.incrementalEvaluator != null) {
+            this.incrementalEvaluator.close();
+            if (this.incrementalEvaluator.getReevaluations() != 0) {
+                this.logger.info("[default-assignments] Re-evaluated rules after " + this.incrementalEvaluator.getReevaluations() +
+                        " node changes, updating " + this.incrementalEvaluator.getUsersChanged() + " users");
+            }
+            this.incrementalEvaluator = null;
+        }
+
+        stopBackfill();
+
+        if (this.metrics != null) {
+            this.metrics.unregister();
+            this.metrics = null;
+        }
+
+        if (this.saveQueue != null) {
+            this.saveQueue.shutdown();
+            LatencyHistogram flushLatency = this.saveQueue.getFlushLatency();
+            if (flushLatency.getCount() != 0) {
+                this.logger.info("[default-assignments] Saved " + this.saveQueue.getSavedCount() + " users in " + flushLatency.getCount() + " batches " +
+                        "(avg " + TimeUnit.MICROSECONDS.toMillis(flushLatency.getMeanMicros()) + "ms, " +
+                        "max " + TimeUnit.MICROSECONDS.toMillis(flushLatency.getMaxMicros()) + "ms, " +
+                        this.saveQueue.getOverflowCount() + " bypassed the queue)");
+            }
+            if (this.saveQueue.getFailedCount() != 0) {
+                this.logger.warn("[default-assignments] " + this.saveQueue.getFailedCount() + " saves failed, " +
+                        this.saveQueue.getDroppedCount() + " users were given up on");
+            }
+            this.saveQueue = null;
+        }
+
+        if (this.admission != null && this.admission.getCoalescedCount() + this.admission.getRejectedCount() != 0) {
+            this.logger.info("[default-assignments] Admission: " + this.admission.getCoalescedCount() + " logins coalesced, " +
+                    this.admission.getRejectedCount() + " over the limit (" + this.settings.getAdmissionFallback().name().toLowerCase() + ")");
+        }
+        this.admission = null;
+
+        if (this.cluster != null) {
+            this.cluster.close();
+            if (this.cluster.getClaimsWon() + this.cluster.getClaimsLost() != 0) {
+                this.logger.info("[default-assignments] Cluster: saved " + this.cluster.getClaimsWon() + " users, left " +
+                        this.cluster.getClaimsLost() + " to other instances");
+            }
+            this.cluster = null;
         }
-    }
 
-    static synchronized ScriptEngine getScriptEngine() {
-        if (engine == null) {
-            engine = new ScriptEngineManager(null).getEngineByName("nashorn");
+        // anything still holding on to the old components sees there are no rules left
+        RuleSet rules = this.rules.getAndSet(null);
+        CacheStats stats = rules == null ? null : rules.getOutcomeCacheStats();
+        if (stats != null && stats.requestCount() != 0) {
+            this.logger.info("[default-assignments] Outcome cache: " + stats.hitCount() + " hits, " + stats.missCount() + " misses (" +
+                    Math.round(stats.hitRate() * 100) + "% hit rate)");
         }
-        return engine;
     }
 
 }
@@ -0,0 +1,281 @@
+/*
+ * This file is part of LuckPerms, licensed under the MIT License.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in all
+ *  copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ *  SOFTWARE.
+ */
+
+package me.lucko.luckperms.extension.defaultassignments;
+
+import me.lucko.luckperms.common.plugin.logging.PluginLogger;
+
+import net.luckperms.api.LuckPerms;
+import net.luckperms.api.event.EventSubscription;
+import net.luckperms.api.event.node.NodeAddEvent;
+import net.luckperms.api.event.node.NodeClearEvent;
+import net.luckperms.api.event.node.NodeMutateEvent;
+import net.luckperms.api.event.node.NodeRemoveEvent;
+import net.luckperms.api.model.data.DataType;
+import net.luckperms.api.model.user.User;
+import net.luckperms.api.model.user.UserManager;
+import net.luckperms.api.node.Node;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * Re-applies the rules to loaded users when their nodes change, rather than
+ * waiting for them to log in again.
+ *
+ * <p>Node add, remove and clear events (including the removal of expired
+ * temporary nodes) are collected per user, and processed after a short
+ * delay, so a burst of changes is handled in one go. Only the rules which
+ * read the changed nodes - and any later rules affected by those - are
+ * {@link RuleSet#reevaluate(User, BitSet) evaluated again}.</p>
+ *
+ * <p>Changes made by the extension itself also fire events. They are
+ * recorded with {@link #recordOwnChanges(User, AssignmentDelta)} and
+ * ignored, so rules don't chase their own tail. Each recorded change is
+ * forgotten as soon as its event has been ignored, or once the user's next
+ * batch has been processed, so a later change made by someone else is
+ * never mistaken for one of them.</p>
+ */
+final class IncrementalEvaluator implements AutoCloseable {
+    private final UserManager userManager;
+    private final PluginLogger logger;
+    private final Supplier<RuleSet> rules;
+    private final UserSaveQueue saveQueue;
+    private final long delay;
+
+    private final List<EventSubscription<?>> subscriptions = new ArrayList<>();
+    private final ScheduledExecutorService executor;
+
+    /** The changes to each user's nodes since they were last processed */
+    private final Map<UUID, Set<NodeChange>> pending = new ConcurrentHashMap<>();
+    /** The changes made by the extension itself to each user, with the version they were recorded at */
+    private final Map<UUID, Map<NodeChange, Long>> ownChanges = new ConcurrentHashMap<>();
+    /** Counts up as own changes are recorded, so a batch knows which were recorded before it */
+    private final AtomicLong version = new AtomicLong();
+
+    private final LongAdder reevaluations = new LongAdder();
+    private final LongAdder usersChanged = new LongAdder();
+
+    IncrementalEvaluator(LuckPerms luckPerms, PluginLogger logger, Supplier<RuleSet> rules, UserSaveQueue saveQueue, AssignmentSettings settings) {
+        this.userManager = luckPerms.getUserManager();
+        this.logger = logger;
+        this.rules = rules;
+        this.saveQueue = saveQueue;
+        this.delay = settings.getReevaluateDelay();
+        this.executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "luckperms-default-assignments-reevaluate");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        this.subscriptions.add(luckPerms.getEventBus().subscribe(NodeAddEvent.class, e -> onMutate(e, Collections.singleton(e.getNode()), true)));
+        this.subscriptions.add(luckPerms.getEventBus().subscribe(NodeRemoveEvent.class, e -> onMutate(e, Collections.singleton(e.getNode()), false)));
+        this.subscriptions.add(luckPerms.getEventBus().subscribe(NodeClearEvent.class, e -> {
+            Set<Node> removed = new HashSet<>(e.getDataBefore());
+            removed.removeAll(e.getDataAfter());
+            onMutate(e, removed, false);
+        }));
+    }
+
+    public long getReevaluations() {
+        return this.reevaluations.sum();
+    }
+
+    public long getUsersChanged() {
+        return this.usersChanged.sum();
+    }
+
+    /**
+     * Records changes made to a user by the extension, so the events they
+     * fire don't trigger another evaluation.
+     *
+     * @param user the user
+     * @param delta the changes made
+     */
+    public void recordOwnChanges(User user, AssignmentDelta delta) {
+        if (delta.getAdded().isEmpty() && delta.getRemoved().isEmpty()) {
+            return;
+        }
+
+        long version = this.version.incrementAndGet();
+        this.ownChanges.compute(user.getUniqueId(), (k, changes) -> {
+            if (changes == null) {
+                changes = new HashMap<>();
+            }
+            for (Node node : delta.getAdded()) {
+                changes.put(new NodeChange(node, true), version);
+            }
+            for (Node node : delta.getRemoved()) {
+                changes.put(new NodeChange(node, false), version);
+            }
+            return changes;
+        });
+    }
+
+    /**
+     * Gets a callback which records the changes about to be made to a user
+     * by the extension, to pass to {@link RuleSet#apply(User, LoginTimings, Consumer)}.
+     *
+     * <p>Recording them before they are made means their events are always
+     * recognised, however quickly they fire.</p>
+     *
+     * @param user the user
+     * @return the callback
+     */
+    public Consumer<AssignmentDelta> recorder(User user) {
+        return delta -> recordOwnChanges(user, delta);
+    }
+
+    private void onMutate(NodeMutateEvent event, Collection<Node> changed, boolean added) {
+        if (!event.isUser() || event.getDataType() != DataType.NORMAL || changed.isEmpty()) {
+            return;
+        }
+
+        UUID uniqueId = ((User) event.getTarget()).getUniqueId();
+        boolean[] scheduled = {false};
+        this.pending.compute(uniqueId, (k, changes) -> {
+            if (changes == null) {
+                changes = new HashSet<>();
+                scheduled[0] = true;
+            }
+            for (Node node : changed) {
+                changes.add(new NodeChange(node, added));
+            }
+            return changes;
+        });
+
+        // the first change for a user schedules processing, later ones just join it
+        if (scheduled[0]) {
+            this.executor.schedule(() -> processSafely(uniqueId), this.delay, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void processSafely(UUID uniqueId) {
+        try {
+            process(uniqueId);
+        } catch (Exception e) {
+            this.logger.severe("[default-assignments] Exception occurred whilst re-evaluating rules for " + uniqueId + ": " + e);
+        }
+    }
+
+    private void process(UUID uniqueId) {
+        // own changes recorded from here on may not have fired their events yet, so are kept for the next batch
+        long version = this.version.get();
+        Set<NodeChange> changes = this.pending.remove(uniqueId);
+        if (changes == null) {
+            return;
+        }
+
+        this.ownChanges.computeIfPresent(uniqueId, (k, own) -> {
+            for (Iterator<Map.Entry<NodeChange, Long>> it = own.entrySet().iterator(); it.hasNext(); ) {
+                Map.Entry<NodeChange, Long> e = it.next();
+                if (changes.remove(e.getKey()) || e.getValue() <= version) {
+                    it.remove();
+                }
+            }
+            return own.isEmpty() ? null : own;
+        });
+
+        Set<Node> changed = new HashSet<>();
+        for (NodeChange change : changes) {
+            changed.add(change.node);
+        }
+
+        User user = this.userManager.getUser(uniqueId);
+        if (changed.isEmpty() || user == null) {
+            return;
+        }
+
+        RuleSet rules = this.rules.get();
+        if (rules == null) {
+            // unloaded
+            return;
+        }
+        BitSet affected = rules.getAffectedRules(changed);
+        if (affected.isEmpty()) {
+            return;
+        }
+
+        this.reevaluations.increment();
+        AssignmentDelta delta = rules.reevaluate(user, affected, recorder(user));
+        if (!delta.isEmpty()) {
+            this.usersChanged.increment();
+            this.saveQueue.submit(user);
+        }
+    }
+
+    @Override
+    public void close() {
+        for (EventSubscription<?> subscription : this.subscriptions) {
+            subscription.close();
+        }
+        this.subscriptions.clear();
+        this.executor.shutdownNow();
+    }
+
+    /**
+     * A node added to or removed from a user.
+     */
+    private static final class NodeChange {
+        private final Node node;
+        private final boolean added;
+
+        NodeChange(Node node, boolean added) {
+            this.node = node;
+            this.added = added;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof NodeChange)) return false;
+            NodeChange that = (NodeChange) o;
+            return this.added == that.added && this.node.equals(that.node);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(this.node, this.added);
+        }
+    }
+}
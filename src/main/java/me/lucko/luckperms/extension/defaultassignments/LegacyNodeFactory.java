@@ -25,135 +25,199 @@
 
 package me.lucko.luckperms.extension.defaultassignments;
 
-import com.google.common.base.Splitter;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import net.luckperms.api.context.DefaultContextKeys;
 import net.luckperms.api.node.Node;
 import net.luckperms.api.node.NodeBuilder;
 
-import java.util.Iterator;
+import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
-import java.util.Map;
-import java.util.regex.Pattern;
-import java.util.regex.PatternSyntaxException;
+import java.util.Set;
 
+/**
+ * Parses nodes in the legacy {@code server-world/(key=value)permission$expiry} format.
+ *
+ * <p>Strings are parsed in a single walk over their characters. Delimiters
+ * preceded by a backslash are ignored, and within contexts the escape is
+ * then removed.</p>
+ *
+ * <p>Malformed strings are rejected with an {@link IllegalArgumentException}
+ * describing the problem. Nodes are only parsed when rules are compiled, so
+ * this never happens on login.</p>
+ */
 final class LegacyNodeFactory {
     private LegacyNodeFactory() {}
 
-    private static final String[] CONTEXT_DELIMITERS = new String[]{"=", "(", ")", ","};
-    private static final Pattern NODE_CONTEXTS_PATTERN = Pattern.compile("\\(.+\\).*");
-    private static final Pattern LEGACY_SERVER_DELIM = compileDelimiterPattern("/", "\\");
-    private static final Splitter LEGACY_SERVER_SPLITTER = Splitter.on(LEGACY_SERVER_DELIM).limit(2);
-    private static final Pattern LEGACY_WORLD_DELIM = compileDelimiterPattern("-", "\\");
-    private static final Splitter LEGACY_WORLD_SPLITTER = Splitter.on(LEGACY_WORLD_DELIM).limit(2);
-    private static final Pattern LEGACY_EXPIRY_DELIM = compileDelimiterPattern("$", "\\");
-    private static final Splitter LEGACY_EXPIRY_SPLITTER = Splitter.on(LEGACY_EXPIRY_DELIM).limit(2);
-    private static final Pattern LEGACY_CONTEXT_DELIM = compileDelimiterPattern(")", "\\");
-    private static final Splitter CONTEXT_SPLITTER = Splitter.on(LEGACY_CONTEXT_DELIM).limit(2);
-    private static final Pattern LEGACY_CONTEXT_PAIR_DELIM = compileDelimiterPattern(",", "\\");
-    private static final Pattern LEGACY_CONTEXT_PAIR_PART_DELIM = compileDelimiterPattern("=", "\\");
-    private static final Splitter.MapSplitter LEGACY_CONTEXT_PART_SPLITTER = Splitter.on(LEGACY_CONTEXT_PAIR_DELIM)
-            .withKeyValueSeparator(Splitter.on(LEGACY_CONTEXT_PAIR_PART_DELIM));
+    /** Nodes already parsed - the same strings tend to appear in lots of rules */
+    private static final Cache<String, Node> CACHE = CacheBuilder.newBuilder().maximumSize(10000).build();
 
     public static Node fromLegacyString(String s) {
-        return unpackLegacyFormat(s, true).build();
+        Node node = CACHE.getIfPresent(s);
+        if (node == null) {
+            node = unpackLegacyFormat(s, true).build();
+            CACHE.put(s, node);
+        }
+        return node;
     }
 
     private static NodeBuilder<?, ?> unpackLegacyFormat(String permission, boolean value) {
-        // if contains /
-        if (LEGACY_SERVER_DELIM.matcher(permission).find()) {
-            // 0=server(+world)   1=node
-            Iterator<String> parts = LEGACY_SERVER_SPLITTER.split(permission).iterator();
-            String parts0 = parts.next();
-            String parts1 = parts.next();
-
-            // WORLD SPECIFIC
-            // if parts[0] contains -
-            if (LEGACY_WORLD_DELIM.matcher(parts0).find()) {
-                // 0=server   1=world
-                Iterator<String> serverParts = LEGACY_WORLD_SPLITTER.split(parts0).iterator();
-                String serverParts0 = serverParts.next();
-                String serverParts1 = serverParts.next();
-
-                // if parts[1] contains $
-                if (LEGACY_EXPIRY_DELIM.matcher(parts1).find()) {
-                    // 0=node   1=expiry
-                    Iterator<String> tempParts = LEGACY_EXPIRY_SPLITTER.split(parts1).iterator();
-                    String tempParts0 = tempParts.next();
-                    String tempParts1 = tempParts.next();
-
-                    return unpackContexts(tempParts0).withContext(DefaultContextKeys.SERVER_KEY, serverParts0).withContext(DefaultContextKeys.WORLD_KEY, serverParts1).expiry(Long.parseLong(tempParts1)).value(value);
-                } else {
-                    return unpackContexts(parts1).withContext(DefaultContextKeys.SERVER_KEY, serverParts0).withContext(DefaultContextKeys.WORLD_KEY, serverParts1).value(value);
-                }
+        int length = permission.length();
+
+        // 0=server(+world)   1=node
+        int serverEnd = indexOfDelimiter(permission, '/', 0, length);
+        String server = null;
+        String world = null;
+        int nodeStart = 0;
+
+        if (serverEnd != -1) {
+            nodeStart = serverEnd + 1;
+
+            // 0=server   1=world
+            int worldStart = indexOfDelimiter(permission, '-', 0, serverEnd);
+            if (worldStart != -1) {
+                server = permission.substring(0, worldStart);
+                world = permission.substring(worldStart + 1, serverEnd);
             } else {
-                // SERVER BUT NOT WORLD SPECIFIC
-
-                // if parts[1] contains $
-                if (LEGACY_EXPIRY_DELIM.matcher(parts1).find()) {
-                    // 0=node   1=expiry
-                    Iterator<String> tempParts = LEGACY_EXPIRY_SPLITTER.split(parts1).iterator();
-                    String tempParts0 = tempParts.next();
-                    String tempParts1 = tempParts.next();
-
-                    return unpackContexts(tempParts0).withContext(DefaultContextKeys.SERVER_KEY, parts0).expiry(Long.parseLong(tempParts1)).value(value);
-                } else {
-                    return unpackContexts(parts1).withContext(DefaultContextKeys.SERVER_KEY, parts0).value(value);
-                }
+                server = permission.substring(0, serverEnd);
             }
-        } else {
-            // NOT SERVER SPECIFIC
+        }
 
-            // if s contains $
-            if (LEGACY_EXPIRY_DELIM.matcher(permission).find()) {
-                // 0=node   1=expiry
-                Iterator<String> tempParts = LEGACY_EXPIRY_SPLITTER.split(permission).iterator();
-                String tempParts0 = tempParts.next();
-                String tempParts1 = tempParts.next();
+        // 0=node   1=expiry
+        int nodeEnd = indexOfDelimiter(permission, '$', nodeStart, length);
+        NodeBuilder<?, ?> builder = unpackContexts(permission, nodeStart, nodeEnd == -1 ? length : nodeEnd);
 
-                return unpackContexts(tempParts0).expiry(Long.parseLong(tempParts1)).value(value);
-            } else {
-                return unpackContexts(permission).value(value);
+        if (server != null) {
+            builder.withContext(DefaultContextKeys.SERVER_KEY, server);
+        }
+        if (world != null) {
+            builder.withContext(DefaultContextKeys.WORLD_KEY, world);
+        }
+        if (nodeEnd != -1) {
+            String expiry = permission.substring(nodeEnd + 1);
+            try {
+                builder.expiry(Long.parseLong(expiry));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid expiry '" + expiry + "' in legacy node: " + permission);
             }
         }
+        return builder.value(value);
     }
 
-    private static NodeBuilder<?, ?> unpackContexts(String permission) {
-        if (!NODE_CONTEXTS_PATTERN.matcher(permission).matches()) {
-            return Node.builder(permission);
-        } else {
-            List<String> contextParts = CONTEXT_SPLITTER.splitToList(permission.substring(1));
-            // 0 = context, 1 = node
+    private static NodeBuilder<?, ?> unpackContexts(String s, int start, int end) {
+        // (key=value,key=value)permission
+        if (!hasContexts(s, start, end)) {
+            return builder(s, start, end);
+        }
+
+        int contextEnd = indexOfDelimiter(s, ')', start + 1, end);
+        if (contextEnd == -1) {
+            throw new IllegalArgumentException("Unterminated contexts in legacy node: " + s);
+        }
 
-            NodeBuilder<?, ?> builder = Node.builder(contextParts.get(1));
-            try {
-                Map<String, String> map = LEGACY_CONTEXT_PART_SPLITTER.split(contextParts.get(0));
-                for (Map.Entry<String, String> e : map.entrySet()) {
-                    builder.withContext(
-                            unescapeDelimiters(e.getKey(), CONTEXT_DELIMITERS),
-                            unescapeDelimiters(e.getValue(), CONTEXT_DELIMITERS)
-                    );
-                }
-            } catch (IllegalArgumentException e) {
-                e.printStackTrace();
+        NodeBuilder<?, ?> builder = builder(s, contextEnd + 1, end);
+
+        List<String> contexts = new ArrayList<>();
+        Set<String> keys = new HashSet<>();
+        int entryStart = start + 1;
+        while (true) {
+            int entryEnd = indexOfDelimiter(s, ',', entryStart, contextEnd);
+            if (entryEnd == -1) {
+                entryEnd = contextEnd;
+            }
+
+            int separator = indexOfDelimiter(s, '=', entryStart, entryEnd);
+            if (separator == -1 || indexOfDelimiter(s, '=', separator + 1, entryEnd) != -1) {
+                throw new IllegalArgumentException("Invalid context '" + s.substring(entryStart, entryEnd) + "' in legacy node: " + s);
+            }
+
+            if (!keys.add(s.substring(entryStart, separator))) {
+                throw new IllegalArgumentException("Duplicate context key '" + s.substring(entryStart, separator) + "' in legacy node: " + s);
+            }
+            contexts.add(unescapeDelimiters(s, entryStart, separator));
+            contexts.add(unescapeDelimiters(s, separator + 1, entryEnd));
+
+            if (entryEnd == contextEnd) {
+                break;
             }
-            return builder;
+            entryStart = entryEnd + 1;
         }
+
+        for (int i = 0; i < contexts.size(); i += 2) {
+            builder.withContext(contexts.get(i), contexts.get(i + 1));
+        }
+        return builder;
     }
 
-    private static Pattern compileDelimiterPattern(String delimiter, String escape) throws PatternSyntaxException {
-        String pattern = "(?<!" + Pattern.quote(escape) + ")" + Pattern.quote(delimiter);
-        return Pattern.compile(pattern);
+    private static NodeBuilder<?, ?> builder(String s, int start, int end) {
+        if (start == end) {
+            throw new IllegalArgumentException("Missing permission in legacy node: " + s);
+        }
+        return Node.builder(s.substring(start, end));
     }
 
-    private static String unescapeDelimiters(String s, String... delimiters) {
-        if (s == null) {
-            return null;
+    /**
+     * Gets if the section of the string starts with a context block, i.e. it
+     * matches the pattern {@code \(.+\).*}.
+     */
+    private static boolean hasContexts(String s, int start, int end) {
+        if (end - start < 3 || s.charAt(start) != '(') {
+            return false;
+        }
+
+        boolean closed = false;
+        for (int i = start + 1; i < end; i++) {
+            char c = s.charAt(i);
+            if (c == '\n' || c == '\r' || c == 0x85 || c == 0x2028 || c == 0x2029) {
+                return false;
+            }
+            if (c == ')' && i > start + 1) {
+                closed = true;
+            }
         }
+        return closed;
+    }
 
-        for (String d : delimiters) {
-            s = s.replace("\\" + d, d);
+    /**
+     * Finds the first occurrence of the delimiter in the section of the
+     * string which is not preceded by a backslash.
+     */
+    private static int indexOfDelimiter(String s, char delimiter, int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (s.charAt(i) == delimiter && (i == start || s.charAt(i - 1) != '\\')) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean isContextDelimiter(char c) {
+        return c == '=' || c == '(' || c == ')' || c == ',';
+    }
+
+    private static String unescapeDelimiters(String s, int start, int end) {
+        int escape = -1;
+        for (int i = start; i < end - 1; i++) {
+            if (s.charAt(i) == '\\' && isContextDelimiter(s.charAt(i + 1))) {
+                escape = i;
+                break;
+            }
+        }
+        if (escape == -1) {
+            return s.substring(start, end);
+        }
+
+        StringBuilder sb = new StringBuilder(end - start);
+        sb.append(s, start, escape);
+        for (int i = escape; i < end; i++) {
+            char c = s.charAt(i);
+            if (c == '\\' && i + 1 < end && isContextDelimiter(s.charAt(i + 1))) {
+                continue;
+            }
+            sb.append(c);
         }
-        return s;
+        return sb.toString();
     }
 
-}
\ No newline at end of file
+}
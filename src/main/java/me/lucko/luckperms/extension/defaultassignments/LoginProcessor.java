@@ -0,0 +1,94 @@
+/*
+ * This file is part of LuckPerms, licensed under the MIT License.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in all
+ *  copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ *  SOFTWARE.
+ */
+package me.lucko.luckperms.extension.defaultassignments;
+
+import net.luckperms.api.model.user.User;
+
+import java.util.function.Supplier;
+
+/**
+ * Applies the rules to a user as they log in, and hands any changes off to
+ * be saved in the background.
+ */
+final class LoginProcessor {
+    private final UserSaveQueue saveQueue;
+    /** Limits the number of logins processed at once, or null for no limit */
+    private final AdmissionController admission;
+    /** Decides which instance saves a new user, or null outside of a cluster */
+    private final ClusterCoordinator cluster;
+    /** Told about the changes made to each user, or null */
+    private final IncrementalEvaluator incrementalEvaluator;
+    private final AssignmentMetrics metrics;
+
+    LoginProcessor(UserSaveQueue saveQueue, AdmissionController admission, ClusterCoordinator cluster,
+                   IncrementalEvaluator incrementalEvaluator, AssignmentMetrics metrics) {
+        this.saveQueue = saveQueue;
+        this.admission = admission;
+        this.cluster = cluster;
+        this.incrementalEvaluator = incrementalEvaluator;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Processes a login.
+     *
+     * @param user the user logging in
+     * @param rules the rules to apply
+     * @return the changes made to the user
+     */
+    public AssignmentDelta process(User user, RuleSet rules) {
+        long start = System.nanoTime();
+
+        LoginTimings timings = new LoginTimings();
+        Supplier<AssignmentDelta> work = () -> {
+            // checked before the rules are applied, since applying them stamps the user
+            boolean unprocessed = this.cluster != null && !rules.isStamped(user);
+            AssignmentDelta delta = rules.apply(user, timings, this.incrementalEvaluator == null ? null : this.incrementalEvaluator.recorder(user));
+
+            // If they were given a default, persist the new assignments back to the storage.
+            // This happens in the background, the login doesn't need to wait for it.
+            if (!delta.isEmpty()) {
+                long submitStart = System.nanoTime();
+                if (unprocessed) {
+                    // saved by whichever instance claims them, which pushes the result to the others
+                    this.cluster.process(user.getUniqueId(), rules, this.incrementalEvaluator);
+                } else {
+                    this.saveQueue.submit(user);
+                }
+                timings.submitNanos = System.nanoTime() - submitStart;
+            }
+            return delta;
+        };
+
+        AssignmentDelta delta = this.admission == null ? work.get() : this.admission.admit(user, timings, work);
+        if (delta == null) {
+            // skipped by the admission fallback policy, they'll be processed on their next login
+            delta = new AssignmentDelta();
+        }
+
+        this.metrics.recordLogin(user, delta, timings, System.nanoTime() - start);
+        return delta;
+    }
+}
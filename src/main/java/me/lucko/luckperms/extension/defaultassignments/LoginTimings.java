@@ -0,0 +1,90 @@
+/*
+ * This file is part of LuckPerms, licensed under the MIT License.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in all
+ *  copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ *  SOFTWARE.
+ */
+
+package me.lucko.luckperms.extension.defaultassignments;
+
+/**
+ * Where the time went while processing a single login, used to explain
+ * slow logins. Confined to the login thread.
+ */
+final class LoginTimings {
+    long resolveNanos = 0;
+    long evaluateNanos = 0;
+    long stampNanos = 0;
+    long mutateNanos = 0;
+    long submitNanos = 0;
+
+    boolean stamped = false;
+    boolean rejected = false;
+    boolean cacheHit = false;
+    int rulesEvaluated = 0;
+
+    String slowestRule = null;
+    long slowestRuleNanos = 0;
+
+    void recordRule(AssignmentRule rule, long nanos) {
+        this.rulesEvaluated++;
+        if (nanos > this.slowestRuleNanos) {
+            this.slowestRuleNanos = nanos;
+            this.slowestRule = rule.getName();
+        }
+    }
+
+    /**
+     * Adds the rules evaluated for another part of the same login, e.g. on
+     * another thread.
+     *
+     * @param other the timings of the other part
+     */
+    void merge(LoginTimings other) {
+        this.rulesEvaluated += other.rulesEvaluated;
+        if (other.slowestRuleNanos > this.slowestRuleNanos) {
+            this.slowestRuleNanos = other.slowestRuleNanos;
+            this.slowestRule = other.slowestRule;
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        if (this.stamped) {
+            sb.append("already stamped, ");
+        }
+        if (this.rejected) {
+            sb.append("not admitted, ");
+        }
+        sb.append("resolve=").append(this.resolveNanos / 1000).append("us, ");
+        sb.append("evaluate=").append(this.evaluateNanos / 1000).append("us");
+        sb.append(" (").append(this.cacheHit ? "cache hit" : this.rulesEvaluated + " rules evaluated");
+        if (this.slowestRule != null) {
+            sb.append(", slowest rule '").append(this.slowestRule).append("' ").append(this.slowestRuleNanos / 1000).append("us");
+        }
+        sb.append("), ");
+        sb.append("stamp=").append(this.stampNanos / 1000).append("us, ");
+        sb.append("mutate=").append(this.mutateNanos / 1000).append("us, ");
+        sb.append("save=").append(this.submitNanos / 1000).append("us");
+        return sb.toString();
+    }
+}
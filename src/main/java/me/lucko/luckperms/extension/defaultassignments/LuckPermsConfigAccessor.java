@@ -7,51 +7,101 @@ import me.lucko.luckperms.common.config.LuckPermsConfiguration;
 import me.lucko.luckperms.common.config.generic.KeyedConfiguration;
 import me.lucko.luckperms.common.config.generic.adapter.ConfigurationAdapter;
 import me.lucko.luckperms.common.plugin.LuckPermsPlugin;
+import me.lucko.luckperms.common.plugin.logging.PluginLogger;
 
 import net.luckperms.api.LuckPerms;
 
 import java.lang.reflect.Field;
+import java.nio.file.Path;
 import java.util.List;
-import java.util.stream.Collectors;
 
 public enum LuckPermsConfigAccessor {
     ;
 
-    public static List<AssignmentRule> getAssignmentRules(LuckPerms luckPerms) {
-        if (!(luckPerms instanceof LuckPermsApiProvider)) {
-            throw new RuntimeException("Unexpected API implementation: " + luckPerms.getClass().getName());
-        }
+    private static final String SETTINGS = "default-assignments-settings.";
 
-        // get the config adapter so we can read the yaml/hocon file directly
-        ConfigurationAdapter config;
-        try {
-            config = getConfigurationAdapter((LuckPermsApiProvider) luckPerms);
-        } catch (Exception e) {
-            throw new RuntimeException(e);
-        }
+    public static List<RuleDefinition> getRuleDefinitions(LuckPerms luckPerms) {
+        ConfigurationAdapter config = getConfigurationAdapter(luckPerms);
 
         // get a list of rules from the config
-        return ImmutableList.copyOf(config.getKeys("default-assignments", ImmutableList.of()).stream().map(name -> {
+        ImmutableList.Builder<RuleDefinition> rules = ImmutableList.builder();
+        for (String name : config.getKeys("default-assignments", ImmutableList.of())) {
             String hasTrue = config.getString("default-assignments." + name + ".if.has-true", null);
             String hasFalse = config.getString("default-assignments." + name + ".if.has-false", null);
             String lacks = config.getString("default-assignments." + name + ".if.lacks", null);
-            List<String> give = ImmutableList.copyOf(config.getStringList("default-assignments." + name + ".give", ImmutableList.of()));
-            List<String> take = ImmutableList.copyOf(config.getStringList("default-assignments." + name + ".take", ImmutableList.of()));
+            List<String> give = config.getStringList("default-assignments." + name + ".give", ImmutableList.of());
+            List<String> take = config.getStringList("default-assignments." + name + ".take", ImmutableList.of());
             String pg = config.getString("default-assignments." + name + ".set-primary-group", null);
-            return new AssignmentRule(hasTrue, hasFalse, lacks, give, take, pg);
-        }).collect(Collectors.toList()));
+            boolean alwaysCheck = config.getBoolean("default-assignments." + name + ".always-check", false);
+
+            rules.add(new RuleDefinition(name, hasTrue, hasFalse, lacks, give, take, pg, alwaysCheck));
+        }
+        return rules.build();
     }
 
-    private static ConfigurationAdapter getConfigurationAdapter(LuckPermsApiProvider luckPerms) throws Exception {
-        Field apiProviderPluginField = LuckPermsApiProvider.class.getDeclaredField("plugin");
-        apiProviderPluginField.setAccessible(true);
-        LuckPermsPlugin plugin = (LuckPermsPlugin) apiProviderPluginField.get(luckPerms);
+    public static AssignmentSettings getSettings(LuckPerms luckPerms) {
+        ConfigurationAdapter config = getConfigurationAdapter(luckPerms);
+
+        // anything missing from the config keeps its default
+        AssignmentSettings defaults = AssignmentSettings.builder().build();
+        String admissionFallback = config.getString(SETTINGS + "admission.fallback", null);
+        return AssignmentSettings.builder()
+                .outcomeCacheSize(config.getInteger(SETTINGS + "outcome-cache-size", defaults.getOutcomeCacheSize()))
+                .saveQueueSize(config.getInteger(SETTINGS + "save-queue-size", defaults.getSaveQueueSize()))
+                .saveBatchSize(config.getInteger(SETTINGS + "save-batch-size", defaults.getSaveBatchSize()))
+                .saveInterval(config.getInteger(SETTINGS + "save-interval", (int) defaults.getSaveInterval()))
+                .versionStamp(config.getBoolean(SETTINGS + "version-stamp", defaults.isVersionStamp()))
+                .backfill(config.getBoolean(SETTINGS + "backfill.enabled", defaults.isBackfill()))
+                .backfillConcurrency(config.getInteger(SETTINGS + "backfill.concurrency", defaults.getBackfillConcurrency()))
+                .backfillRateLimit(config.getInteger(SETTINGS + "backfill.rate-limit", defaults.getBackfillRateLimit()))
+                .backfillDryRun(config.getBoolean(SETTINGS + "backfill.dry-run", defaults.isBackfillDryRun()))
+                .jmx(config.getBoolean(SETTINGS + "metrics.jmx", defaults.isJmx()))
+                .slowLoginThreshold(config.getInteger(SETTINGS + "metrics.slow-login-threshold", (int) defaults.getSlowLoginThreshold()))
+                .strict(config.getBoolean(SETTINGS + "strict", defaults.isStrict()))
+                .cluster(config.getBoolean(SETTINGS + "cluster.enabled", defaults.isCluster()))
+                .clusterSettleTime(config.getInteger(SETTINGS + "cluster.settle-time", (int) defaults.getClusterSettleTime()))
+                .reevaluate(config.getBoolean(SETTINGS + "reevaluate.enabled", defaults.isReevaluate()))
+                .reevaluateDelay(config.getInteger(SETTINGS + "reevaluate.delay", (int) defaults.getReevaluateDelay()))
+                .admission(config.getBoolean(SETTINGS + "admission.enabled", defaults.isAdmission()))
+                .admissionMaxConcurrent(config.getInteger(SETTINGS + "admission.max-concurrent", defaults.getAdmissionMaxConcurrent()))
+                .admissionFallback(admissionFallback == null ? defaults.getAdmissionFallback() : AdmissionController.Fallback.parse(admissionFallback))
+                .parallelThreshold(config.getInteger(SETTINGS + "parallel-threshold", defaults.getParallelThreshold()))
+                .build();
+    }
 
-        LuckPermsConfiguration configuration = plugin.getConfiguration();
+    public static PluginLogger getLogger(LuckPerms luckPerms) {
+        return getPlugin(luckPerms).getLogger();
+    }
 
-        Field configurationAdapterField = KeyedConfiguration.class.getDeclaredField("adapter");
-        configurationAdapterField.setAccessible(true);
-        return (ConfigurationAdapter) configurationAdapterField.get(configuration);
+    public static Path getDataDirectory(LuckPerms luckPerms) {
+        return getPlugin(luckPerms).getBootstrap().getDataDirectory();
+    }
+
+    private static LuckPermsPlugin getPlugin(LuckPerms luckPerms) {
+        if (!(luckPerms instanceof LuckPermsApiProvider)) {
+            throw new RuntimeException("Unexpected API implementation: " + luckPerms.getClass().getName());
+        }
+
+        try {
+            Field apiProviderPluginField = LuckPermsApiProvider.class.getDeclaredField("plugin");
+            apiProviderPluginField.setAccessible(true);
+            return (LuckPermsPlugin) apiProviderPluginField.get(luckPerms);
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    // get the config adapter so we can read the yaml/hocon file directly
+    private static ConfigurationAdapter getConfigurationAdapter(LuckPerms luckPerms) {
+        LuckPermsConfiguration configuration = getPlugin(luckPerms).getConfiguration();
+
+        try {
+            Field configurationAdapterField = KeyedConfiguration.class.getDeclaredField("adapter");
+            configurationAdapterField.setAccessible(true);
+            return (ConfigurationAdapter) configurationAdapterField.get(configuration);
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
     }
 
 }
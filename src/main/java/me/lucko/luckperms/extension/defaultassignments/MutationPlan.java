@@ -0,0 +1,242 @@
+/*
+ * This file is part of LuckPerms, licensed under the MIT License.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in all
+ *  copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ *  SOFTWARE.
+ */
+
+package me.lucko.luckperms.extension.defaultassignments;
+
+import net.luckperms.api.model.user.User;
+import net.luckperms.api.node.Node;
+import net.luckperms.api.node.NodeEqualityPredicate;
+import net.luckperms.api.node.types.InheritanceNode;
+import net.luckperms.api.util.Tristate;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The changes to be made to a single user by the rules, collected so they
+ * can be applied in one go.
+ *
+ * <p>Every mutation to a user's nodes invalidates (and eventually
+ * recalculates) their cached permission data. Rules are instead applied to
+ * a working copy of the user's nodes, which follows the same rules as
+ * {@link net.luckperms.api.model.data.NodeMap#add(Node)} and
+ * {@link net.luckperms.api.model.data.NodeMap#remove(Node)}, so later rules
+ * see the changes made by earlier ones exactly as before.</p>
+ *
+ * <p>Once all of the rules have been applied, the net change is
+ * {@link #apply() applied} to the user - nodes which were added and then
+ * removed again (or vice versa) never touch the user, every removal happens
+ * in a single {@link net.luckperms.api.model.data.NodeMap#clear(java.util.function.Predicate)},
+ * and the primary group is only set once, to its final value.</p>
+ *
+ * <p>Instances are created per user and are not thread safe.</p>
+ */
+final class MutationPlan {
+    private final User user;
+
+    /** The user's nodes before any changes, or null if nothing has changed yet */
+    private Collection<Node> original = null;
+    /** The working copy of the user's nodes, or null if nothing has changed yet */
+    private List<Node> nodes = null;
+
+    private final String originalPrimaryGroup;
+    private String primaryGroup;
+
+    MutationPlan(User user) {
+        this.user = user;
+        this.originalPrimaryGroup = user.getPrimaryGroup();
+        this.primaryGroup = this.originalPrimaryGroup;
+    }
+
+    public User getUser() {
+        return this.user;
+    }
+
+    private List<Node> nodes() {
+        if (this.nodes == null) {
+            this.original = this.user.data().toCollection();
+            this.nodes = new ArrayList<>(this.original);
+        }
+        return this.nodes;
+    }
+
+    /**
+     * Gets the user's nodes, including the planned changes.
+     *
+     * @return the nodes
+     */
+    public Collection<Node> getNodes() {
+        return this.nodes == null ? this.user.data().toCollection() : this.nodes;
+    }
+
+    /**
+     * Equivalent to {@link net.luckperms.api.model.data.NodeMap#contains(Node, NodeEqualityPredicate)},
+     * including the planned changes.
+     *
+     * @param node the node
+     * @param equalityPredicate how to compare nodes
+     * @return the state of the node
+     */
+    public Tristate contains(Node node, NodeEqualityPredicate equalityPredicate) {
+        if (this.nodes == null) {
+            return this.user.data().contains(node, equalityPredicate);
+        }
+        for (Node n : this.nodes) {
+            if (n.equals(node, equalityPredicate)) {
+                return Tristate.of(n.getValue());
+            }
+        }
+        return Tristate.UNDEFINED;
+    }
+
+    /**
+     * Plans to add a node, equivalent to {@link net.luckperms.api.model.data.NodeMap#add(Node)}.
+     *
+     * @param node the node
+     * @return true if the node would be added
+     */
+    public boolean add(Node node) {
+        if (contains(node, NodeEqualityPredicate.IGNORE_EXPIRY_TIME) != Tristate.UNDEFINED) {
+            return false;
+        }
+        nodes().add(node);
+        return true;
+    }
+
+    /**
+     * Plans to remove a node, equivalent to {@link net.luckperms.api.model.data.NodeMap#remove(Node)}.
+     *
+     * @param node the node
+     * @return true if anything would be removed
+     */
+    public boolean remove(Node node) {
+        if (contains(node, NodeEqualityPredicate.IGNORE_EXPIRY_TIME_AND_VALUE) == Tristate.UNDEFINED) {
+            return false;
+        }
+        nodes().removeIf(n -> n.equals(node, NodeEqualityPredicate.IGNORE_EXPIRY_TIME_AND_VALUE));
+        return true;
+    }
+
+    /**
+     * Plans to set the primary group, equivalent to {@link User#setPrimaryGroup(String)}.
+     *
+     * <p>As with the user, the primary group can only be set to a group the
+     * user (including the planned changes) inherits from.</p>
+     *
+     * @param group the group
+     * @return true if the primary group would change
+     */
+    public boolean setPrimaryGroup(String group) {
+        if (this.primaryGroup.equalsIgnoreCase(group)) {
+            return false;
+        }
+        if (!contains(InheritanceNode.builder(group).build(), NodeEqualityPredicate.IGNORE_EXPIRY_TIME_AND_VALUE).asBoolean()) {
+            return false;
+        }
+        this.primaryGroup = group;
+        return true;
+    }
+
+    /**
+     * Gets if applying the plan would change the user.
+     *
+     * @return true if there is a net change
+     */
+    public boolean hasChanges() {
+        if (!this.primaryGroup.equalsIgnoreCase(this.originalPrimaryGroup)) {
+            return true;
+        }
+        return this.nodes != null && !new HashSet<>(this.nodes).equals(new HashSet<>(this.original));
+    }
+
+    /**
+     * Gets the net change applying the plan would make to the user, without
+     * applying it.
+     *
+     * <p>Unlike the delta recorded by {@link #apply(AssignmentDelta)}, this
+     * is what is planned rather than what was actually changed.</p>
+     *
+     * @return the planned changes
+     */
+    public AssignmentDelta getChanges() {
+        AssignmentDelta delta = new AssignmentDelta();
+        if (!this.primaryGroup.equalsIgnoreCase(this.originalPrimaryGroup)) {
+            delta.recordPrimaryGroupChanged();
+        }
+        if (this.nodes != null) {
+            Set<Node> remaining = new HashSet<>(this.nodes);
+            for (Node node : this.original) {
+                if (!remaining.remove(node)) {
+                    delta.recordRemoved(node);
+                }
+            }
+            remaining.forEach(delta::recordAdded);
+        }
+        return delta;
+    }
+
+    /**
+     * Applies the net change to the user.
+     *
+     * @param delta the delta to record the changes made in
+     */
+    public void apply(AssignmentDelta delta) {
+        boolean primaryGroupChanged = !this.primaryGroup.equalsIgnoreCase(this.originalPrimaryGroup);
+
+        // the user must be in the group when it's set - try before any nodes are removed, and again once they've been added
+        if (primaryGroupChanged && this.user.setPrimaryGroup(this.primaryGroup).wasSuccessful()) {
+            delta.recordPrimaryGroupChanged();
+            primaryGroupChanged = false;
+        }
+
+        if (this.nodes != null) {
+            Set<Node> remaining = new HashSet<>(this.nodes);
+            Set<Node> removed = new HashSet<>();
+            for (Node node : this.original) {
+                if (!remaining.remove(node)) {
+                    removed.add(node);
+                }
+            }
+
+            // whatever is left over was added
+            if (!removed.isEmpty()) {
+                this.user.data().clear(removed::contains);
+                removed.forEach(delta::recordRemoved);
+            }
+            for (Node node : this.nodes) {
+                if (remaining.contains(node) && this.user.data().add(node).wasSuccessful()) {
+                    delta.recordAdded(node);
+                }
+            }
+        }
+
+        if (primaryGroupChanged && this.user.setPrimaryGroup(this.primaryGroup).wasSuccessful()) {
+            delta.recordPrimaryGroupChanged();
+        }
+    }
+}
@@ -0,0 +1,175 @@
+/*
+ * This file is part of LuckPerms, licensed under the MIT License.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in all
+ *  copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ *  SOFTWARE.
+ */
+
+package me.lucko.luckperms.extension.defaultassignments;
+
+import net.luckperms.api.model.PermissionHolder;
+import net.luckperms.api.node.Node;
+import net.luckperms.api.util.Tristate;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * The {@link Tristate} of each node in a {@link NodeTable}, for a single holder.
+ *
+ * <p>Instances are created per login by {@link NodeTable#resolve(PermissionHolder)}
+ * and are not thread safe.</p>
+ */
+final class NodeStates {
+    private final NodeTable table;
+
+    /** Ids of the nodes the holder has, set or unset */
+    private final BitSet defined;
+    /** Ids of the nodes the holder has set to true */
+    private final BitSet values;
+    /** The holder's nodes which share a key with a node in the table, in order */
+    private final List<Node> sources;
+
+    NodeStates(NodeTable table) {
+        this.table = table;
+        this.defined = new BitSet(table.size());
+        this.values = new BitSet(table.size());
+        this.sources = new ArrayList<>();
+    }
+
+    private NodeStates(NodeStates other) {
+        this.table = other.table;
+        this.defined = (BitSet) other.defined.clone();
+        this.values = (BitSet) other.values.clone();
+        this.sources = other.sources;
+    }
+
+    /**
+     * Creates an independent copy of the states, which can be refreshed
+     * (on another thread) without affecting these.
+     *
+     * @return a copy
+     */
+    public NodeStates copy() {
+        return new NodeStates(this);
+    }
+
+    /**
+     * Gets the id of the next node the holder has (set or unset), starting
+     * from the given id.
+     *
+     * @param fromId the id to start from, inclusive
+     * @return the id, or -1 if there are no more
+     */
+    public int nextDefined(int fromId) {
+        return this.defined.nextSetBit(fromId);
+    }
+
+    NodeTable getTable() {
+        return this.table;
+    }
+
+    public Tristate get(int id) {
+        if (!this.defined.get(id)) {
+            return Tristate.UNDEFINED;
+        }
+        return Tristate.of(this.values.get(id));
+    }
+
+    boolean isDefined(int id) {
+        return this.defined.get(id);
+    }
+
+    void set(int id, boolean value) {
+        this.defined.set(id);
+        this.values.set(id, value);
+    }
+
+    /**
+     * Records one of the holder's nodes which the states were resolved from.
+     *
+     * @param node the node
+     */
+    void addSource(Node node) {
+        this.sources.add(node);
+    }
+
+    void set(int id, Tristate state) {
+        this.defined.set(id, state != Tristate.UNDEFINED);
+        this.values.set(id, state == Tristate.TRUE);
+    }
+
+    /**
+     * Re-reads the state of any nodes in the table which could have been
+     * affected by a change to the given effects.
+     *
+     * @param plan the planned changes to the holder
+     * @param effectIds the effect ids of the nodes which were added or removed
+     */
+    public void refresh(MutationPlan plan, int[] effectIds) {
+        for (int effectId : effectIds) {
+            for (int id : this.table.getEffectCandidates(effectId)) {
+                set(id, plan.contains(this.table.get(id), NodeTable.EQUALITY));
+            }
+        }
+    }
+
+    /**
+     * Takes a fingerprint of the holder's nodes the states were resolved
+     * from, suitable for use as a map key.
+     *
+     * <p>The fingerprint covers the nodes themselves rather than the states,
+     * as giving or taking a node can succeed or fail depending on details
+     * (e.g. expiry times) which the states don't capture. Every comparison
+     * is between nodes with the same key though, so which rules fire can't
+     * depend on any other nodes.</p>
+     *
+     * @return a fingerprint of the holder's nodes which share a key with a node in the table
+     */
+    public Fingerprint fingerprint() {
+        return new Fingerprint(this.sources.toArray(new Node[0]));
+    }
+
+    static final class Fingerprint {
+        private final Node[] nodes;
+        private final int hashCode;
+
+        private Fingerprint(Node[] nodes) {
+            this.nodes = nodes;
+            this.hashCode = Arrays.hashCode(nodes);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Fingerprint)) return false;
+            Fingerprint other = (Fingerprint) o;
+            return this.hashCode == other.hashCode && Arrays.equals(this.nodes, other.nodes);
+        }
+
+        @Override
+        public int hashCode() {
+            return this.hashCode;
+        }
+    }
+}
@@ -0,0 +1,226 @@
+/*
+ * This file is part of LuckPerms, licensed under the MIT License.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in all
+ *  copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ *  SOFTWARE.
+ */
+
+package me.lucko.luckperms.extension.defaultassignments;
+
+import com.google.common.collect.ImmutableMap;
+import net.luckperms.api.model.PermissionHolder;
+import net.luckperms.api.node.Node;
+import net.luckperms.api.node.NodeEqualityPredicate;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * A deduplicated table of every distinct node referenced by the conditions
+ * of a set of {@link AssignmentRule}s.
+ *
+ * <p>Each distinct node is given an integer id when the rules are compiled.
+ * On login, the holder's nodes are scanned once to produce a {@link NodeStates}
+ * vector which the rule expressions then read by id, rather than each
+ * expression querying the holder's node map separately.</p>
+ *
+ * <p>The nodes given and taken by the rules are pooled separately, as
+ * "effects" - identical nodes share one instance and one effect id, however
+ * many rules use them. The ids of the conditions each effect could change
+ * are worked out once, when the table is built.</p>
+ */
+final class NodeTable {
+
+    /** The predicate used by rule conditions when checking whether a holder "has" a node */
+    static final NodeEqualityPredicate EQUALITY = NodeEqualityPredicate.IGNORE_VALUE_OR_IF_TEMPORARY;
+
+    private static final int[] NONE = new int[0];
+
+    private final Node[] nodes;
+    private final Map<String, int[]> idsByKey;
+
+    private final Node[] effects;
+    /** The ids of the nodes sharing a key with each effect */
+    private final int[][] effectCandidates;
+
+    private NodeTable(Node[] nodes, Map<String, int[]> idsByKey, Node[] effects) {
+        this.nodes = nodes;
+        this.idsByKey = idsByKey;
+        this.effects = effects;
+        this.effectCandidates = new int[effects.length][];
+        for (int i = 0; i < effects.length; i++) {
+            int[] candidates = candidates(effects[i]);
+            this.effectCandidates[i] = candidates == null ? NONE : candidates;
+        }
+    }
+
+    public int size() {
+        return this.nodes.length;
+    }
+
+    public Node get(int id) {
+        return this.nodes[id];
+    }
+
+    public int effectCount() {
+        return this.effects.length;
+    }
+
+    public Node getEffect(int effectId) {
+        return this.effects[effectId];
+    }
+
+    /**
+     * Gets the ids of the nodes in the table whose state could be changed
+     * by giving or taking the given effect.
+     *
+     * @param effectId the effect id
+     * @return the candidate ids, possibly empty
+     */
+    int[] getEffectCandidates(int effectId) {
+        return this.effectCandidates[effectId];
+    }
+
+    /**
+     * Gets the ids of the nodes in the table which share the given node's key.
+     *
+     * @param node the node
+     * @return the candidate ids, or null if there are none
+     */
+    int[] candidates(Node node) {
+        return this.idsByKey.get(bucket(node));
+    }
+
+    /**
+     * Resolves the state of every node in the table for the given holder, in a
+     * single pass over the holder's nodes.
+     *
+     * @param holder the holder
+     * @return the resolved states
+     */
+    public NodeStates resolve(PermissionHolder holder) {
+        NodeStates states = new NodeStates(this);
+        if (this.nodes.length == 0) {
+            return states;
+        }
+
+        for (Node node : holder.data().toCollection()) {
+            int[] ids = candidates(node);
+            if (ids == null) {
+                continue;
+            }
+            states.addSource(node);
+            for (int id : ids) {
+                // the first match wins, the same as NodeMap#contains
+                if (!states.isDefined(id) && this.nodes[id].equals(node, EQUALITY)) {
+                    states.set(id, node.getValue());
+                }
+            }
+        }
+        return states;
+    }
+
+    static String bucket(Node node) {
+        return node.getKey().toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Builds a {@link NodeTable} while rules are being compiled.
+     */
+    static final class Builder {
+        private final List<Node> nodes = new ArrayList<>();
+        private final Map<String, List<Integer>> idsByKey = new HashMap<>();
+        private final List<Node> effects = new ArrayList<>();
+        private final Map<Node, Integer> effectIds = new HashMap<>();
+
+        Builder() {
+        }
+
+        /**
+         * Creates a builder containing every node in an existing table,
+         * with the same ids.
+         *
+         * <p>Rules compiled against the existing table remain valid for
+         * the table produced by this builder.</p>
+         *
+         * @param previous the existing table
+         */
+        Builder(NodeTable previous) {
+            for (Node node : previous.nodes) {
+                register(node);
+            }
+            for (Node effect : previous.effects) {
+                registerEffect(effect);
+            }
+        }
+
+        /**
+         * Registers a node with the table, returning its id.
+         *
+         * <p>Nodes which are equal according to {@link #EQUALITY} share the same id.</p>
+         *
+         * @param node the node
+         * @return the id
+         */
+        public int register(Node node) {
+            List<Integer> ids = this.idsByKey.computeIfAbsent(bucket(node), k -> new ArrayList<>());
+            for (int id : ids) {
+                if (this.nodes.get(id).equals(node, EQUALITY)) {
+                    return id;
+                }
+            }
+
+            int id = this.nodes.size();
+            this.nodes.add(node);
+            ids.add(id);
+            return id;
+        }
+
+        /**
+         * Registers a node given or taken by a rule, returning its effect id.
+         *
+         * <p>Only identical nodes share the same id.</p>
+         *
+         * @param node the node
+         * @return the effect id
+         */
+        public int registerEffect(Node node) {
+            Integer id = this.effectIds.get(node);
+            if (id == null) {
+                id = this.effects.size();
+                this.effects.add(node);
+                this.effectIds.put(node, id);
+            }
+            return id;
+        }
+
+        public NodeTable build() {
+            ImmutableMap.Builder<String, int[]> idsByKey = ImmutableMap.builder();
+            for (Map.Entry<String, List<Integer>> e : this.idsByKey.entrySet()) {
+                idsByKey.put(e.getKey(), e.getValue().stream().mapToInt(Integer::intValue).toArray());
+            }
+            return new NodeTable(this.nodes.toArray(new Node[0]), idsByKey.build(), this.effects.toArray(new Node[0]));
+        }
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * This file is part of LuckPerms, licensed under the MIT License.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in all
+ *  copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ *  SOFTWARE.
+ */
+
+package me.lucko.luckperms.extension.defaultassignments;
+
+import com.google.common.collect.ImmutableList;
+
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * The uncompiled definition of an {@link AssignmentRule}, exactly as it was
+ * read from the config.
+ *
+ * <p>Definitions are compared by value, so a rule which hasn't changed
+ * between two reads of the config can be recognised and its compiled form
+ * reused.</p>
+ */
+final class RuleDefinition {
+    private final String name;
+    private final String hasTrue;
+    private final String hasFalse;
+    private final String lacks;
+    private final List<String> give;
+    private final List<String> take;
+    private final String setPrimaryGroup;
+    private final boolean alwaysCheck;
+
+    RuleDefinition(String name, String hasTrue, String hasFalse, String lacks, List<String> give, List<String> take, String setPrimaryGroup, boolean alwaysCheck) {
+        this.name = name;
+        this.hasTrue = hasTrue;
+        this.hasFalse = hasFalse;
+        this.lacks = lacks;
+        this.give = ImmutableList.copyOf(give);
+        this.take = ImmutableList.copyOf(take);
+        this.setPrimaryGroup = setPrimaryGroup;
+        this.alwaysCheck = alwaysCheck;
+    }
+
+    public String getName() {
+        return this.name;
+    }
+
+    /**
+     * Compiles the rule, registering the nodes it references with the table.
+     *
+     * @param nodes the node table being built
+     * @return the compiled rule
+     * @throws IllegalArgumentException if the rule is malformed
+     */
+    public AssignmentRule compile(NodeTable.Builder nodes) {
+        return new AssignmentRule(this.name, this.hasTrue, this.hasFalse, this.lacks, this.give, this.take, this.setPrimaryGroup, this.alwaysCheck, nodes);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof RuleDefinition)) return false;
+        RuleDefinition other = (RuleDefinition) o;
+        return this.alwaysCheck == other.alwaysCheck &&
+                this.name.equals(other.name) &&
+                Objects.equals(this.hasTrue, other.hasTrue) &&
+                Objects.equals(this.hasFalse, other.hasFalse) &&
+                Objects.equals(this.lacks, other.lacks) &&
+                this.give.equals(other.give) &&
+                this.take.equals(other.take) &&
+                Objects.equals(this.setPrimaryGroup, other.setPrimaryGroup);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(this.name, this.hasTrue, this.hasFalse, this.lacks, this.give, this.take, this.setPrimaryGroup, this.alwaysCheck);
+    }
+
+    @Override
+    public String toString() {
+        return "RuleDefinition(" +
+                "name=" + this.name + ", " +
+                "hasTrue=" + this.hasTrue + ", " +
+                "hasFalse=" + this.hasFalse + ", " +
+                "lacks=" + this.lacks + ", " +
+                "give=" + this.give + ", " +
+                "take=" + this.take + ", " +
+                "setPrimaryGroup=" + this.setPrimaryGroup + ", " +
+                "alwaysCheck=" + this.alwaysCheck + ")";
+    }
+}
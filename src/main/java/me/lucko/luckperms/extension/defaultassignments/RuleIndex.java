@@ -0,0 +1,356 @@
+/*
+ * This file is part of LuckPerms, licensed under the MIT License.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in all
+ *  copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ *  SOFTWARE.
+ */
+
+package me.lucko.luckperms.extension.defaultassignments;
+
+import net.luckperms.api.node.Node;
+import net.luckperms.api.node.NodeType;
+import net.luckperms.api.util.Tristate;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A discrimination index over a list of {@link AssignmentRule}s, used to
+ * find the rules which could possibly match a holder without evaluating
+ * every one.
+ *
+ * <p>Where a rule's conditions require a node to be set (to true in
+ * {@code has-true}, or false in {@code has-false}), the rule "watches" that
+ * node, and is only a candidate for holders with the node in that state.
+ * Rules which don't require any node to be set are always candidates.</p>
+ *
+ * <p>Applying a rule can change the state of the nodes it gives or takes,
+ * so the candidates are {@link #update(BitSet, BitSet, NodeStates, int) updated}
+ * after each rule fires, to keep the results identical to evaluating every
+ * rule in order.</p>
+ *
+ * <p>The index also records which rules read each node, and which give or
+ * take nodes with each key, so that when a holder's nodes change, only the
+ * {@link #collectAffected(Node, BitSet) affected} rules need to be evaluated
+ * again - those which could see the change, and those which could undo it.</p>
+ *
+ * <p>The index is immutable once constructed, so can be used from any
+ * number of login threads at once.</p>
+ */
+final class RuleIndex {
+    private static final int[] NONE = new int[0];
+
+    /** The id of the node watched by each rule, or -1 if the rule doesn't watch a node */
+    private final int[] watchedIds;
+    /** The state each rule requires its watched node to be in */
+    private final Tristate[] watchedStates;
+    /** The indexes of the rules watching each node, in order, or null if none do */
+    private final int[][] watchers;
+    /** The rules which don't watch a node, and so are always candidates */
+    private final BitSet unwatched;
+    /** The ids of the nodes each rule can change the state of when applied */
+    private final int[][] writes;
+    /** The indexes of the rules whose conditions read each node, in order, or null if none do */
+    private final int[][] readers;
+    /** The (lower case) keys of the nodes each rule gives or takes */
+    private final String[][] writtenKeys;
+    /** The indexes of the rules which give or take a node with each key, in order */
+    private final Map<String, int[]> writersByKey;
+    /** If each rule sets the primary group, or gives or takes a group (so decides whether it can be set) */
+    private final boolean[] affectsPrimaryGroup;
+    /** The indexes of the rules which set the primary group, in order */
+    private final int[] primaryGroupSetters;
+    /** If a node with some key is given by one rule and taken by another */
+    private final boolean givenAndTaken;
+    private final NodeTable nodes;
+
+    RuleIndex(List<AssignmentRule> rules, NodeTable nodes) {
+        this.nodes = nodes;
+        int size = rules.size();
+        this.watchedIds = new int[size];
+        this.watchedStates = new Tristate[size];
+        this.unwatched = new BitSet(size);
+        this.writes = new int[size][];
+        this.writtenKeys = new String[size][];
+        this.affectsPrimaryGroup = new boolean[size];
+
+        Map<String, List<Integer>> writersByKey = new HashMap<>();
+        Set<String> givenKeys = new HashSet<>();
+        Set<String> takenKeys = new HashSet<>();
+        List<Integer> primaryGroupSetters = new ArrayList<>();
+        List<List<Integer>> watchers = new ArrayList<>(nodes.size());
+        List<List<Integer>> readers = new ArrayList<>(nodes.size());
+        for (int id = 0; id < nodes.size(); id++) {
+            watchers.add(null);
+            readers.add(null);
+        }
+
+        for (int i = 0; i < size; i++) {
+            AssignmentRule rule = rules.get(i);
+
+            int watched = -1;
+            for (Tristate state : new Tristate[]{Tristate.TRUE, Tristate.FALSE}) {
+                BitSet required = new BitSet();
+                rule.collectRequiredIds(state, required);
+                if (!required.isEmpty()) {
+                    watched = required.nextSetBit(0);
+                    this.watchedStates[i] = state;
+                    break;
+                }
+            }
+
+            this.watchedIds[i] = watched;
+            if (watched == -1) {
+                this.unwatched.set(i);
+            } else {
+                if (watchers.get(watched) == null) {
+                    watchers.set(watched, new ArrayList<>());
+                }
+                watchers.get(watched).add(i);
+            }
+
+            BitSet reads = new BitSet();
+            rule.collectConditionIds(reads);
+            for (int id = reads.nextSetBit(0); id >= 0; id = reads.nextSetBit(id + 1)) {
+                if (readers.get(id) == null) {
+                    readers.set(id, new ArrayList<>());
+                }
+                readers.get(id).add(i);
+            }
+
+            BitSet writes = new BitSet();
+            addEffectCandidates(writes, nodes, rule.getToGive());
+            addEffectCandidates(writes, nodes, rule.getToTake());
+            this.writes[i] = writes.isEmpty() ? NONE : writes.stream().toArray();
+
+            Set<String> keys = new LinkedHashSet<>();
+            for (int[] effectIds : new int[][]{rule.getToGive(), rule.getToTake()}) {
+                for (int effectId : effectIds) {
+                    Node effect = nodes.getEffect(effectId);
+                    keys.add(NodeTable.bucket(effect));
+                    if (NodeType.INHERITANCE.matches(effect)) {
+                        this.affectsPrimaryGroup[i] = true;
+                    }
+                }
+            }
+            this.writtenKeys[i] = keys.toArray(new String[0]);
+            for (int effectId : rule.getToGive()) {
+                givenKeys.add(NodeTable.bucket(nodes.getEffect(effectId)));
+            }
+            for (int effectId : rule.getToTake()) {
+                takenKeys.add(NodeTable.bucket(nodes.getEffect(effectId)));
+            }
+            for (String key : keys) {
+                writersByKey.computeIfAbsent(key, k -> new ArrayList<>()).add(i);
+            }
+
+            if (rule.getSetPrimaryGroup() != null) {
+                this.affectsPrimaryGroup[i] = true;
+                primaryGroupSetters.add(i);
+            }
+        }
+
+        this.watchers = toArrays(watchers);
+        this.readers = toArrays(readers);
+        this.writersByKey = new HashMap<>();
+        for (Map.Entry<String, List<Integer>> e : writersByKey.entrySet()) {
+            this.writersByKey.put(e.getKey(), e.getValue().stream().mapToInt(Integer::intValue).toArray());
+        }
+        this.primaryGroupSetters = primaryGroupSetters.stream().mapToInt(Integer::intValue).toArray();
+        givenKeys.retainAll(takenKeys);
+        this.givenAndTaken = !givenKeys.isEmpty();
+    }
+
+    private static int[][] toArrays(List<List<Integer>> lists) {
+        int[][] arrays = new int[lists.size()][];
+        for (int i = 0; i < lists.size(); i++) {
+            List<Integer> list = lists.get(i);
+            if (list != null) {
+                arrays[i] = list.stream().mapToInt(Integer::intValue).toArray();
+            }
+        }
+        return arrays;
+    }
+
+    private static void addEffectCandidates(BitSet ids, NodeTable nodes, int[] effectIds) {
+        for (int effectId : effectIds) {
+            for (int id : nodes.getEffectCandidates(effectId)) {
+                ids.set(id);
+            }
+        }
+    }
+
+    /**
+     * Gets the number of rules which watch a node.
+     *
+     * @return the number of indexed rules
+     */
+    public int getIndexedCount() {
+        return this.watchedIds.length - this.unwatched.cardinality();
+    }
+
+    /**
+     * Gets the rules which could match a holder with the given states.
+     *
+     * <p>Only the nodes the holder has are looked at, so the cost of this
+     * depends on the number of relevant rules, not the total number.</p>
+     *
+     * @param states the holder's node states
+     * @param mask the rules to consider, or null for all rules
+     * @return the indexes of the candidate rules
+     */
+    public BitSet candidates(NodeStates states, BitSet mask) {
+        BitSet candidates = (BitSet) this.unwatched.clone();
+        for (int id = states.nextDefined(0); id >= 0 && id < this.watchers.length; id = states.nextDefined(id + 1)) {
+            addWatchers(candidates, mask, states, id, -1);
+        }
+        if (mask != null) {
+            candidates.and(mask);
+        }
+        return candidates;
+    }
+
+    /**
+     * Updates the candidates after a rule has fired (and the states have
+     * been refreshed), adding any later rules whose watched node has been
+     * changed to the required state.
+     *
+     * @param candidates the candidates to update
+     * @param mask the rules to consider, or null for all rules
+     * @param states the holder's refreshed node states
+     * @param fired the index of the rule which fired
+     */
+    public void update(BitSet candidates, BitSet mask, NodeStates states, int fired) {
+        for (int id : this.writes[fired]) {
+            addWatchers(candidates, mask, states, id, fired);
+        }
+    }
+
+    /**
+     * Gets if any node is given by one rule and taken by another (going by
+     * key, so conservatively). A rule in between could then have seen a
+     * state of the node which the holder's current nodes no longer show, so
+     * the {@link #collectAffected(Node, BitSet) affected} rules aren't enough
+     * to bring a holder up to date.
+     *
+     * @return true if a node is both given and taken
+     */
+    public boolean isGivenAndTaken() {
+        return this.givenAndTaken;
+    }
+
+    /**
+     * Adds the rules which could be affected by a change to the given node
+     * to the set - those whose conditions read it, and those which give or
+     * take a node with the same key. If any of them set the primary group,
+     * every rule which sets it is added, as a setter which no longer applies
+     * hands the last word back to an earlier one.
+     *
+     * @param changed the node which was added or removed
+     * @param affected the set to add the indexes of affected rules to
+     */
+    public void collectAffected(Node changed, BitSet affected) {
+        int[] ids = this.nodes.candidates(changed);
+        if (ids != null) {
+            for (int id : ids) {
+                addReaders(affected, id, -1);
+            }
+        }
+
+        addAll(affected, this.writersByKey.get(NodeTable.bucket(changed)), -1);
+        if (NodeType.INHERITANCE.matches(changed) || setsPrimaryGroup(affected)) {
+            addAll(affected, this.primaryGroupSetters, -1);
+        }
+    }
+
+    private boolean setsPrimaryGroup(BitSet affected) {
+        for (int rule : this.primaryGroupSetters) {
+            if (affected.get(rule)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Adds the rules after the given one which could be affected by it
+     * being applied to the set - those whose conditions read the nodes it
+     * changes, and those which change the same nodes (so would have the
+     * last word).
+     *
+     * @param fired the index of the rule which was applied
+     * @param affected the set to add the indexes of affected rules to
+     */
+    public void collectAffectedBy(int fired, BitSet affected) {
+        for (int id : this.writes[fired]) {
+            addReaders(affected, id, fired);
+        }
+        for (String key : this.writtenKeys[fired]) {
+            addAll(affected, this.writersByKey.get(key), fired);
+        }
+        if (this.affectsPrimaryGroup[fired]) {
+            addAll(affected, this.primaryGroupSetters, fired);
+        }
+    }
+
+    private static void addAll(BitSet affected, int[] rules, int after) {
+        if (rules == null) {
+            return;
+        }
+        for (int rule : rules) {
+            if (rule > after) {
+                affected.set(rule);
+            }
+        }
+    }
+
+    private void addReaders(BitSet affected, int id, int after) {
+        int[] readers = this.readers[id];
+        if (readers == null) {
+            return;
+        }
+        for (int rule : readers) {
+            if (rule > after) {
+                affected.set(rule);
+            }
+        }
+    }
+
+    private void addWatchers(BitSet candidates, BitSet mask, NodeStates states, int id, int after) {
+        int[] watchers = this.watchers[id];
+        if (watchers == null) {
+            return;
+        }
+
+        Tristate state = states.get(id);
+        for (int rule : watchers) {
+            if (rule > after && this.watchedStates[rule] == state && (mask == null || mask.get(rule))) {
+                candidates.set(rule);
+            }
+        }
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * This file is part of LuckPerms, licensed under the MIT License.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in all
+ *  copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ *  SOFTWARE.
+ */
+
+package me.lucko.luckperms.extension.defaultassignments;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts how often a single {@link AssignmentRule} is evaluated and matches,
+ * and how long evaluating it takes.
+ */
+final class RuleMetrics implements RuleMetricsMBean {
+    private final String name;
+    private final LongAdder matches = new LongAdder();
+    private final LatencyHistogram latency = new LatencyHistogram();
+
+    RuleMetrics(String name) {
+        this.name = name;
+    }
+
+    public void record(boolean matched, long nanos) {
+        if (matched) {
+            this.matches.increment();
+        }
+        this.latency.record(nanos);
+    }
+
+    @Override
+    public String getName() {
+        return this.name;
+    }
+
+    @Override
+    public long getEvaluations() {
+        return this.latency.getCount();
+    }
+
+    @Override
+    public long getMatches() {
+        return this.matches.sum();
+    }
+
+    @Override
+    public long getMeanMicros() {
+        return this.latency.getMeanMicros();
+    }
+
+    @Override
+    public long getPercentile99Micros() {
+        return this.latency.getPercentileMicros(0.99);
+    }
+
+    @Override
+    public long getMaxMicros() {
+        return this.latency.getMaxMicros();
+    }
+}
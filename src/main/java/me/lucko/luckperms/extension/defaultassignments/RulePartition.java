@@ -0,0 +1,168 @@
+/*
+ * This file is part of LuckPerms, licensed under the MIT License.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in all
+ *  copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ *  SOFTWARE.
+ */
+
+package me.lucko.luckperms.extension.defaultassignments;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Splits a set of rules into independent groups, which can be evaluated
+ * separately (and at the same time) without changing the outcome.
+ *
+ * <p>Two rules are in the same group if one gives or takes a node which the
+ * other tests, directly or through other rules in the group. Rules which
+ * only test the same nodes, or only change the same nodes, can be in
+ * different groups - what a rule changes doesn't depend on the order it is
+ * evaluated in, so long as the changes are applied in order afterwards.</p>
+ *
+ * <p>The groups are then packed into a fixed number of roughly equally
+ * sized bins, one per thread evaluating them.</p>
+ */
+final class RulePartition {
+    private final int groupCount;
+    private final BitSet[] bins;
+
+    /**
+     * Partitions the rules.
+     *
+     * @param rules the rules
+     * @param nodes the node table the rules were compiled against
+     * @param maxBins the maximum number of bins to pack the groups into
+     */
+    RulePartition(List<AssignmentRule> rules, NodeTable nodes, int maxBins) {
+        int size = rules.size();
+        int[] parent = new int[size];
+        for (int i = 0; i < size; i++) {
+            parent[i] = i;
+        }
+
+        BitSet[] reads = new BitSet[size];
+        BitSet tested = new BitSet(nodes.size());
+        for (int i = 0; i < size; i++) {
+            reads[i] = new BitSet();
+            rules.get(i).collectConditionIds(reads[i]);
+            tested.or(reads[i]);
+        }
+
+        // join every rule which changes a tested node to the first rule which does...
+        int[] writers = new int[nodes.size()];
+        Arrays.fill(writers, -1);
+        for (int i = 0; i < size; i++) {
+            AssignmentRule rule = rules.get(i);
+            for (int[] effectIds : new int[][]{rule.getToGive(), rule.getToTake()}) {
+                for (int effectId : effectIds) {
+                    for (int id : nodes.getEffectCandidates(effectId)) {
+                        if (!tested.get(id)) {
+                            continue;
+                        }
+                        if (writers[id] == -1) {
+                            writers[id] = i;
+                        } else {
+                            union(parent, writers[id], i);
+                        }
+                    }
+                }
+            }
+        }
+
+        // ...and every rule which tests it
+        for (int i = 0; i < size; i++) {
+            for (int id = reads[i].nextSetBit(0); id >= 0; id = reads[i].nextSetBit(id + 1)) {
+                if (writers[id] != -1) {
+                    union(parent, writers[id], i);
+                }
+            }
+        }
+
+        List<BitSet> groups = new ArrayList<>();
+        BitSet[] byRoot = new BitSet[size];
+        for (int i = 0; i < size; i++) {
+            int root = find(parent, i);
+            if (byRoot[root] == null) {
+                byRoot[root] = new BitSet(size);
+                groups.add(byRoot[root]);
+            }
+            byRoot[root].set(i);
+        }
+        this.groupCount = groups.size();
+
+        // largest first, each into the bin with the fewest rules so far
+        groups.sort(Comparator.comparingInt(BitSet::cardinality).reversed());
+        this.bins = new BitSet[Math.max(1, Math.min(maxBins, groups.size()))];
+        int[] binSizes = new int[this.bins.length];
+        for (int i = 0; i < this.bins.length; i++) {
+            this.bins[i] = new BitSet(size);
+        }
+        for (BitSet group : groups) {
+            int smallest = 0;
+            for (int i = 1; i < this.bins.length; i++) {
+                if (binSizes[i] < binSizes[smallest]) {
+                    smallest = i;
+                }
+            }
+            this.bins[smallest].or(group);
+            binSizes[smallest] += group.cardinality();
+        }
+    }
+
+    private static int find(int[] parent, int i) {
+        while (parent[i] != i) {
+            // path halving
+            parent[i] = parent[parent[i]];
+            i = parent[i];
+        }
+        return i;
+    }
+
+    private static void union(int[] parent, int a, int b) {
+        int rootA = find(parent, a);
+        int rootB = find(parent, b);
+        if (rootA != rootB) {
+            parent[Math.max(rootA, rootB)] = Math.min(rootA, rootB);
+        }
+    }
+
+    /**
+     * Gets the number of independent groups the rules were split into.
+     *
+     * @return the number of groups
+     */
+    public int getGroupCount() {
+        return this.groupCount;
+    }
+
+    /**
+     * Gets the indexes of the rules in each bin. Every rule is in exactly one bin.
+     *
+     * @return the bins
+     */
+    public BitSet[] getBins() {
+        return this.bins;
+    }
+}
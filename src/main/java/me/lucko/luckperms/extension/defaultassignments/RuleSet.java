@@ -0,0 +1,517 @@
+/*
+ * This file is part of LuckPerms, licensed under the MIT License.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in all
+ *  copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ *  SOFTWARE.
+ */
+
+package me.lucko.luckperms.extension.defaultassignments;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.collect.ImmutableList;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import net.luckperms.api.model.user.User;
+import net.luckperms.api.node.Node;
+import net.luckperms.api.node.NodeEqualityPredicate;
+import net.luckperms.api.node.NodeType;
+import net.luckperms.api.node.types.MetaNode;
+import net.luckperms.api.util.Tristate;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.function.Consumer;
+
+/**
+ * The compiled set of {@link AssignmentRule}s read from the config, together
+ * with the {@link NodeTable} of nodes their conditions reference.
+ *
+ * <p>Which rules fire for a user depends only on the user's nodes which
+ * share a key with a node in the table, so the outcome of evaluating the
+ * rules is cached against a {@link NodeStates.Fingerprint} of those nodes.
+ * A new ruleset is created whenever the config is read, so the cache never
+ * outlives the rules it was computed from.</p>
+ *
+ * <p>If enabled, users are also stamped with a hash of the ruleset (its
+ * {@link #getVersion() version}) once it has been applied to them. On later
+ * logins, stamped users only have their {@link AssignmentRule#isAlwaysCheck()
+ * always-check} rules evaluated. Any change to the rules changes the version,
+ * so every user is evaluated in full again.</p>
+ *
+ * <p>Rules are looked up through a {@link RuleIndex}, so only the rules
+ * which could possibly match a user are evaluated.</p>
+ *
+ * <p>The rules (and the version stamp) are applied to a {@link MutationPlan}
+ * rather than to the user directly, and the net change is applied to the user
+ * in one step at the end.</p>
+ *
+ * <p>Large rulesets are split into independent groups by a {@link RulePartition},
+ * whose conditions are evaluated in parallel on the fork/join pool. The rules
+ * which fired are then applied in order, so the outcome is the same as
+ * evaluating every rule in turn.</p>
+ */
+final class RuleSet {
+    /** The meta key used to record the version of the ruleset last applied to a user */
+    static final String VERSION_META_KEY = "default-assignments-version";
+
+    private static final int[] NONE_FIRED = new int[0];
+
+    private final List<AssignmentRule> rules;
+    /** The indexes of the rules which are evaluated even for stamped users */
+    private final BitSet alwaysCheckRules;
+    private final NodeTable nodes;
+    private final RuleIndex index;
+    /** The independent groups of rules to evaluate in parallel, or null to evaluate them in turn */
+    private final RulePartition partition;
+    private final RuleMetrics[] metrics;
+
+    private final String version;
+    /** The meta node stamped onto users once the ruleset has been applied, or null if disabled */
+    private final MetaNode versionStamp;
+
+    /** Cache of node fingerprint to the indexes of the rules which fire, or null if disabled */
+    private final Cache<NodeStates.Fingerprint, int[]> outcomes;
+
+    RuleSet(List<AssignmentRule> rules, NodeTable nodes, AssignmentSettings settings) {
+        this.rules = ImmutableList.copyOf(rules);
+        this.alwaysCheckRules = new BitSet(this.rules.size());
+        for (int i = 0; i < this.rules.size(); i++) {
+            if (this.rules.get(i).isAlwaysCheck()) {
+                this.alwaysCheckRules.set(i);
+            }
+        }
+        this.nodes = nodes;
+        this.index = new RuleIndex(this.rules, nodes);
+        this.partition = partition(this.rules, nodes, settings);
+        this.metrics = this.rules.stream().map(rule -> new RuleMetrics(rule.getName())).toArray(RuleMetrics[]::new);
+        this.version = computeVersion(this.rules, nodes);
+        this.versionStamp = settings.isVersionStamp() ? MetaNode.builder(VERSION_META_KEY, this.version).build() : null;
+        this.outcomes = settings.getOutcomeCacheSize() <= 0 ? null : CacheBuilder.newBuilder()
+                .maximumSize(settings.getOutcomeCacheSize())
+                .recordStats()
+                .build();
+    }
+
+    private static RulePartition partition(List<AssignmentRule> rules, NodeTable nodes, AssignmentSettings settings) {
+        int threshold = settings.getParallelThreshold();
+        if (threshold == 0 || rules.size() < threshold) {
+            return null;
+        }
+
+        // one bin for each thread in the pool, plus one for the login thread
+        RulePartition partition = new RulePartition(rules, nodes, ForkJoinPool.getCommonPoolParallelism() + 1);
+        return partition.getBins().length > 1 ? partition : null;
+    }
+
+    public List<AssignmentRule> getRules() {
+        return this.rules;
+    }
+
+    public NodeTable getNodeTable() {
+        return this.nodes;
+    }
+
+    public boolean isEmpty() {
+        return this.rules.isEmpty();
+    }
+
+    /**
+     * Gets a hash of the compiled rules, which changes whenever the rules do.
+     *
+     * @return the ruleset version
+     */
+    public String getVersion() {
+        return this.version;
+    }
+
+    /**
+     * Gets the metrics for each rule, in the same order as {@link #getRules()}.
+     *
+     * @return the rule metrics
+     */
+    public List<RuleMetrics> getRuleMetrics() {
+        return Arrays.asList(this.metrics);
+    }
+
+    /**
+     * Applies each rule to the user, in order.
+     *
+     * @param user the user
+     * @return the changes made to the user
+     */
+    public AssignmentDelta apply(User user) {
+        return apply(user, new LoginTimings());
+    }
+
+    /**
+     * Applies each rule to the user, in order.
+     *
+     * @param user the user
+     * @param timings the timings to record where the time was spent in
+     * @return the changes made to the user
+     */
+    public AssignmentDelta apply(User user, LoginTimings timings) {
+        return apply(user, timings, null);
+    }
+
+    /**
+     * Applies each rule to the user, in order.
+     *
+     * @param user the user
+     * @param timings the timings to record where the time was spent in
+     * @param beforeApply called with the planned changes just before they are made, or null
+     * @return the changes made to the user
+     */
+    public AssignmentDelta apply(User user, LoginTimings timings, Consumer<AssignmentDelta> beforeApply) {
+        MutationPlan plan = plan(user, timings, true);
+        if (beforeApply != null && plan.hasChanges()) {
+            beforeApply.accept(plan.getChanges());
+        }
+
+        AssignmentDelta delta = new AssignmentDelta();
+        long start = System.nanoTime();
+        plan.apply(delta);
+        timings.mutateNanos = System.nanoTime() - start;
+        return delta;
+    }
+
+    /**
+     * Works out the changes the rules would make to the user, without
+     * making them.
+     *
+     * <p>The version stamp is left out of the plan, so it only holds the
+     * changes made by the rules themselves.</p>
+     *
+     * @param user the user
+     * @return the planned changes
+     */
+    public MutationPlan plan(User user) {
+        return plan(user, new LoginTimings(), false);
+    }
+
+    private MutationPlan plan(User user, LoginTimings timings, boolean stamp) {
+        MutationPlan plan = new MutationPlan(user);
+
+        if (isStamped(user)) {
+            // the user has already been processed by this version of the rules
+            timings.stamped = true;
+            if (!this.alwaysCheckRules.isEmpty()) {
+                NodeStates states = resolve(user, timings);
+                evaluate(plan, states, this.alwaysCheckRules, timings);
+            }
+        } else {
+            applyAll(plan, timings);
+
+            if (stamp && this.versionStamp != null) {
+                long start = System.nanoTime();
+                stamp(plan);
+                timings.stampNanos = System.nanoTime() - start;
+            }
+        }
+        return plan;
+    }
+
+    /**
+     * Gets the rules which could be affected by changes to the given nodes,
+     * either because they read them or because they give or take them.
+     *
+     * @param changed the nodes which were added or removed
+     * @return the indexes of the affected rules
+     */
+    public BitSet getAffectedRules(Iterable<Node> changed) {
+        BitSet affected = new BitSet(this.rules.size());
+        for (Node node : changed) {
+            this.index.collectAffected(node, affected);
+        }
+        return affected;
+    }
+
+    /**
+     * Applies only the given rules to the user, in order, following on to
+     * any later rules affected by the changes they make.
+     *
+     * <p>Used to bring a user up to date after their nodes change, at a cost
+     * which depends on the change rather than on the size of the ruleset.
+     * Stamps are ignored, since the user's nodes are no longer those the
+     * ruleset was last applied to.</p>
+     *
+     * <p>For a user the rules had already been applied to, the result is the
+     * same as applying every rule again. If a node is both given and taken by
+     * the rules, an earlier rule could have seen a state of it which a later
+     * rule then changed back, and which the user's current nodes no longer
+     * show - so for those rulesets, every rule is applied again.</p>
+     *
+     * @param user the user
+     * @param affected the indexes of the rules to apply
+     * @return the changes made to the user
+     */
+    public AssignmentDelta reevaluate(User user, BitSet affected) {
+        return reevaluate(user, affected, null);
+    }
+
+    /**
+     * Applies only the given rules to the user, as {@link #reevaluate(User, BitSet)}.
+     *
+     * @param user the user
+     * @param affected the indexes of the rules to apply
+     * @param beforeApply called with the planned changes just before they are made, or null
+     * @return the changes made to the user
+     */
+    public AssignmentDelta reevaluate(User user, BitSet affected, Consumer<AssignmentDelta> beforeApply) {
+        MutationPlan plan = new MutationPlan(user);
+        NodeStates states = this.nodes.resolve(user);
+
+        BitSet pending;
+        if (this.index.isGivenAndTaken() && !affected.isEmpty()) {
+            pending = new BitSet(this.rules.size());
+            pending.set(0, this.rules.size());
+        } else {
+            pending = (BitSet) affected.clone();
+        }
+        for (int i = pending.nextSetBit(0); i >= 0; i = pending.nextSetBit(i + 1)) {
+            long start = System.nanoTime();
+            boolean applied = this.rules.get(i).apply(plan, states);
+            this.metrics[i].record(applied, System.nanoTime() - start);
+
+            if (applied) {
+                this.index.collectAffectedBy(i, pending);
+            }
+        }
+
+        if (beforeApply != null && plan.hasChanges()) {
+            beforeApply.accept(plan.getChanges());
+        }
+
+        AssignmentDelta delta = new AssignmentDelta();
+        plan.apply(delta);
+        return delta;
+    }
+
+    /**
+     * Gets if the user is stamped with the current version of the ruleset,
+     * i.e. it has already been applied to them.
+     *
+     * @param user the user
+     * @return true if the user is stamped, always false if stamps are disabled
+     */
+    public boolean isStamped(User user) {
+        return this.versionStamp != null && user.data().contains(this.versionStamp, NodeEqualityPredicate.EXACT) == Tristate.TRUE;
+    }
+
+    private NodeStates resolve(User user, LoginTimings timings) {
+        long start = System.nanoTime();
+        NodeStates states = this.nodes.resolve(user);
+        timings.resolveNanos = System.nanoTime() - start;
+        return states;
+    }
+
+    private void applyAll(MutationPlan plan, LoginTimings timings) {
+        NodeStates states = resolve(plan.getUser(), timings);
+        if (this.outcomes == null) {
+            evaluate(plan, states, null, timings);
+            return;
+        }
+
+        NodeStates.Fingerprint fingerprint = states.fingerprint();
+        int[] fired = this.outcomes.getIfPresent(fingerprint);
+        if (fired != null) {
+            // a user with the same nodes has been seen before, replay the same rules
+            long start = System.nanoTime();
+            for (int i : fired) {
+                this.rules.get(i).perform(plan, this.nodes);
+            }
+            timings.cacheHit = true;
+            timings.evaluateNanos = System.nanoTime() - start;
+        } else {
+            fired = evaluate(plan, states, null, timings);
+            this.outcomes.put(fingerprint, fired);
+        }
+    }
+
+    /**
+     * Applies the rules to the user.
+     *
+     * @param plan the planned changes to the user, with no changes yet
+     * @param states the user's node states
+     * @param mask the indexes of the rules to apply, or null for all rules
+     * @param timings the timings to record in
+     * @return the indexes of the rules which fired
+     */
+    private int[] evaluate(MutationPlan plan, NodeStates states, BitSet mask, LoginTimings timings) {
+        if (this.partition == null) {
+            return evaluateInOrder(plan, states, mask, timings);
+        }
+
+        long evaluateStart = System.nanoTime();
+
+        List<BitSet> masks = new ArrayList<>();
+        for (BitSet bin : this.partition.getBins()) {
+            BitSet binMask = (BitSet) bin.clone();
+            if (mask != null) {
+                binMask.and(mask);
+            }
+            if (!binMask.isEmpty()) {
+                masks.add(binMask);
+            }
+        }
+        if (masks.size() <= 1) {
+            return masks.isEmpty() ? NONE_FIRED : evaluateInOrder(plan, states, masks.get(0), timings);
+        }
+
+        // each bin is evaluated against its own copy of the states, with its own plan - no rule tests
+        // anything changed by a rule in another bin, so each sees the same states as it would in turn
+        List<LoginTimings> binTimings = new ArrayList<>(masks.size());
+        List<ForkJoinTask<int[]>> tasks = new ArrayList<>(masks.size());
+        for (BitSet binMask : masks) {
+            NodeStates binStates = states.copy();
+            LoginTimings timing = new LoginTimings();
+            binTimings.add(timing);
+            tasks.add(ForkJoinTask.adapt(() -> evaluateInOrder(new MutationPlan(plan.getUser()), binStates, binMask, timing)));
+        }
+
+        // fork all but the first bin, which is evaluated on this thread
+        for (int i = 1; i < tasks.size(); i++) {
+            tasks.get(i).fork();
+        }
+        tasks.get(0).invoke();
+
+        BitSet fired = new BitSet(this.rules.size());
+        for (ForkJoinTask<int[]> task : tasks) {
+            for (int i : task.join()) {
+                fired.set(i);
+            }
+        }
+        for (LoginTimings timing : binTimings) {
+            timings.merge(timing);
+        }
+
+        // make the changes in order, as if the rules had been evaluated in turn
+        int[] result = fired.stream().toArray();
+        for (int i : result) {
+            this.rules.get(i).perform(plan, this.nodes);
+        }
+
+        timings.evaluateNanos = System.nanoTime() - evaluateStart;
+        return result.length == 0 ? NONE_FIRED : result;
+    }
+
+    /**
+     * Applies the rules to the user, evaluating each in turn.
+     *
+     * @param plan the planned changes to the user
+     * @param states the user's node states
+     * @param mask the indexes of the rules to apply, or null for all rules
+     * @param timings the timings to record in
+     * @return the indexes of the rules which fired
+     */
+    private int[] evaluateInOrder(MutationPlan plan, NodeStates states, BitSet mask, LoginTimings timings) {
+        int[] fired = null;
+        int count = 0;
+
+        long evaluateStart = System.nanoTime();
+
+        // rules which aren't candidates can't match, so are skipped without being evaluated
+        BitSet candidates = this.index.candidates(states, mask);
+        for (int i = candidates.nextSetBit(0); i >= 0; i = candidates.nextSetBit(i + 1)) {
+            AssignmentRule rule = this.rules.get(i);
+
+            long start = System.nanoTime();
+            boolean applied = rule.apply(plan, states);
+            long duration = System.nanoTime() - start;
+            this.metrics[i].record(applied, duration);
+            timings.recordRule(rule, duration);
+
+            if (applied) {
+                if (fired == null) {
+                    fired = new int[this.rules.size()];
+                }
+                fired[count++] = i;
+
+                // the rule may have made later rules candidates
+                this.index.update(candidates, mask, states, i);
+            }
+        }
+
+        timings.evaluateNanos = System.nanoTime() - evaluateStart;
+
+        if (fired == null) {
+            return NONE_FIRED;
+        }
+        return count == fired.length ? fired : Arrays.copyOf(fired, count);
+    }
+
+    private void stamp(MutationPlan plan) {
+        // remove stamps left by previous versions of the rules
+        List<Node> outdated = new ArrayList<>();
+        for (Node node : plan.getNodes()) {
+            if (!NodeType.META.matches(node)) {
+                continue;
+            }
+            String key = NodeType.META.cast(node).getMetaKey();
+            if (key.equals(VERSION_META_KEY) && !node.equals(this.versionStamp)) {
+                outdated.add(node);
+            }
+        }
+        for (Node node : outdated) {
+            plan.remove(node);
+        }
+        plan.add(this.versionStamp);
+    }
+
+    private static String computeVersion(List<AssignmentRule> rules, NodeTable nodes) {
+        Hasher hasher = Hashing.murmur3_128().newHasher();
+        for (AssignmentRule rule : rules) {
+            hasher.putString(rule.toString(nodes), StandardCharsets.UTF_8);
+        }
+        return Long.toHexString(hasher.hash().asLong());
+    }
+
+    /**
+     * Gets the statistics of the outcome cache.
+     *
+     * @return the cache stats, or null if the cache is disabled
+     */
+    public CacheStats getOutcomeCacheStats() {
+        return this.outcomes == null ? null : this.outcomes.stats();
+    }
+
+    /**
+     * Gets the number of independent groups of rules evaluated in parallel.
+     *
+     * @return the number of groups, or 0 if the rules are evaluated in turn
+     */
+    public int getParallelGroupCount() {
+        return this.partition == null ? 0 : this.partition.getGroupCount();
+    }
+
+    @Override
+    public String toString() {
+        return "RuleSet(rules=" + this.rules + ", nodes=" + this.nodes.size() + ", indexed=" + this.index.getIndexedCount() +
+                ", parallelGroups=" + getParallelGroupCount() + ")";
+    }
+}
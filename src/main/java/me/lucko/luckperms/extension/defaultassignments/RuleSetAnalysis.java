@@ -0,0 +1,410 @@
+/*
+ * This file is part of LuckPerms, licensed under the MIT License.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in all
+ *  copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ *  SOFTWARE.
+ */
+
+package me.lucko.luckperms.extension.defaultassignments;
+
+import com.google.common.collect.ImmutableList;
+import net.luckperms.api.node.Node;
+import net.luckperms.api.node.NodeEqualityPredicate;
+import net.luckperms.api.node.NodeType;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * A load time analysis of a set of {@link AssignmentRule}s.
+ *
+ * <p>Rules are applied in order, in a single pass, and the nodes given or
+ * taken by a rule are visible to the conditions of the rules after it. The
+ * analysis builds the graph of which rules change nodes that other rules
+ * depend on, and uses it to:</p>
+ *
+ * <ul>
+ *     <li>remove rules which can never match, or which have no effect,</li>
+ *     <li>remove rules whose effects are always undone by a later rule,
+ *     before anything else can see them,</li>
+ *     <li>report rules which depend on changes made by a later rule (so only
+ *     see them on the next login), cycles between rules, and rules which
+ *     make conflicting changes.</li>
+ * </ul>
+ *
+ * <p>The order of the remaining rules is preserved, since it decides which
+ * changes each rule sees.</p>
+ */
+final class RuleSetAnalysis {
+
+    /** The predicate used by {@link net.luckperms.api.model.data.NodeMap#remove(Node)} */
+    private static final NodeEqualityPredicate REMOVE_EQUALITY = NodeEqualityPredicate.IGNORE_EXPIRY_TIME_AND_VALUE;
+
+    /** The maximum number of warnings to describe - generated rulesets can produce a huge number of them */
+    private static final int MAX_WARNINGS = 100;
+
+    /**
+     * Analyses the given rules.
+     *
+     * @param rules the rules, in the order they are applied
+     * @param nodes the node table the rules were compiled against
+     * @return the result of the analysis
+     */
+    public static RuleSetAnalysis analyze(List<AssignmentRule> rules, NodeTable nodes) {
+        return new RuleSetAnalysis(rules, nodes);
+    }
+
+    private final NodeTable nodes;
+    private final List<AssignmentRule> rules;
+    private final List<String> removed = new ArrayList<>();
+    private final List<String> warnings = new ArrayList<>();
+    private int warningCount = 0;
+
+    private RuleSetAnalysis(List<AssignmentRule> input, NodeTable nodes) {
+        this.nodes = nodes;
+
+        // first remove any rules which would never do anything by themselves
+        List<AssignmentRule> rules = new ArrayList<>(input.size());
+        for (AssignmentRule rule : input) {
+            if (rule.isNeverMatching()) {
+                this.removed.add("Rule '" + rule.getName() + "' can never match, its conditions contradict each other");
+            } else if (!rule.hasEffects()) {
+                this.removed.add("Rule '" + rule.getName() + "' has no effect, it doesn't give, take or set anything");
+            } else {
+                rules.add(rule);
+            }
+        }
+
+        removeOverridden(rules);
+        this.rules = ImmutableList.copyOf(rules);
+
+        BitSet[] reads = new BitSet[rules.size()];
+        BitSet[] writes = new BitSet[rules.size()];
+        for (int i = 0; i < rules.size(); i++) {
+            reads[i] = reads(rules.get(i));
+            writes[i] = writes(rules.get(i));
+        }
+
+        reportBackwardDependencies(rules, reads, writes);
+        reportCycles(rules, reads, writes);
+        reportConflicts(rules);
+    }
+
+    /**
+     * Gets the rules which remain after the analysis, in the order they should be applied.
+     *
+     * @return the rules
+     */
+    public List<AssignmentRule> getRules() {
+        return this.rules;
+    }
+
+    /**
+     * Gets a description of each rule removed by the analysis.
+     *
+     * @return the removed rules
+     */
+    public List<String> getRemoved() {
+        return this.removed;
+    }
+
+    /**
+     * Gets a description of each potential problem found by the analysis,
+     * up to a limit.
+     *
+     * @return the warnings
+     */
+    public List<String> getWarnings() {
+        return this.warnings;
+    }
+
+    /**
+     * Gets the number of potential problems found by the analysis,
+     * including any beyond the limit of {@link #getWarnings()}.
+     *
+     * @return the number of warnings
+     */
+    public int getWarningCount() {
+        return this.warningCount;
+    }
+
+    /**
+     * Gets a human readable report of the analysis.
+     *
+     * @return the report, one line per entry
+     */
+    public List<String> getReport() {
+        List<String> report = new ArrayList<>();
+        report.add("Analysed rules: " + this.rules.size() + " active, " + this.removed.size() + " removed, " +
+                this.warningCount + " warnings");
+        for (String removed : this.removed) {
+            report.add("Removed: " + removed);
+        }
+        for (String warning : this.warnings) {
+            report.add("Warning: " + warning);
+        }
+        if (this.warningCount > this.warnings.size()) {
+            report.add("Warning: ... and " + (this.warningCount - this.warnings.size()) + " more");
+        }
+        return report;
+    }
+
+    /**
+     * Gets the ids of the nodes the rule's conditions depend on.
+     */
+    private static BitSet reads(AssignmentRule rule) {
+        BitSet ids = new BitSet();
+        rule.collectConditionIds(ids);
+        return ids;
+    }
+
+    /**
+     * Gets the ids of the nodes whose state might be changed by applying the
+     * rule - the same nodes which are refreshed after it is applied.
+     */
+    private BitSet writes(AssignmentRule rule) {
+        BitSet ids = new BitSet();
+        addEffectCandidates(ids, rule.getToGive());
+        addEffectCandidates(ids, rule.getToTake());
+        return ids;
+    }
+
+    private void addEffectCandidates(BitSet ids, int[] effectIds) {
+        for (int effectId : effectIds) {
+            for (int id : this.nodes.getEffectCandidates(effectId)) {
+                ids.set(id);
+            }
+        }
+    }
+
+    /**
+     * Removes rules whose every effect is undone by a later rule which
+     * always matches, provided no rule in between depends on those effects.
+     */
+    private void removeOverridden(List<AssignmentRule> rules) {
+        for (int i = 0; i < rules.size(); i++) {
+            AssignmentRule rule = rules.get(i);
+            BitSet writes = writes(rule);
+
+            for (int j = i + 1; j < rules.size(); j++) {
+                AssignmentRule later = rules.get(j);
+                if (overrides(later, rule)) {
+                    this.removed.add("Rule '" + rule.getName() + "' is always overridden by rule '" + later.getName() + "'");
+                    rules.remove(i--);
+                    break;
+                }
+
+                // a rule in between can see the changes, so they matter
+                if (reads(later).intersects(writes) || (later.getSetPrimaryGroup() != null && changesGroups(rule))) {
+                    break;
+                }
+            }
+        }
+    }
+
+    private boolean overrides(AssignmentRule later, AssignmentRule rule) {
+        if (!later.isAlwaysMatching()) {
+            return false;
+        }
+
+        // stamped users only have always-check rules applied, so the later rule must be applied whenever this one is
+        if (rule.isAlwaysCheck() && !later.isAlwaysCheck()) {
+            return false;
+        }
+        // the primary group can only be set to a group the user is in, so a later rule setting it may not take effect
+        if (rule.getSetPrimaryGroup() != null) {
+            return false;
+        }
+
+        // anything given or taken must be taken again
+        // (taking a node the rule gave, or taking a node twice, leaves the user as they would have been without the rule)
+        return takesAll(later, rule.getToGive()) && takesAll(later, rule.getToTake());
+    }
+
+    /**
+     * Gets if the rule gives or takes any groups, which decides whether a
+     * later rule can set the primary group.
+     */
+    private boolean changesGroups(AssignmentRule rule) {
+        for (int[] effectIds : new int[][]{rule.getToGive(), rule.getToTake()}) {
+            for (int effectId : effectIds) {
+                if (NodeType.INHERITANCE.matches(this.nodes.getEffect(effectId))) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private boolean takesAll(AssignmentRule rule, int[] effectIds) {
+        for (int effectId : effectIds) {
+            if (!removes(rule.getToTake(), effectId)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Gets if removing any of the given effects would remove the other effect.
+     */
+    private boolean removes(int[] effectIds, int effectId) {
+        Node node = this.nodes.getEffect(effectId);
+        for (int id : effectIds) {
+            // pooled nodes are only shared when identical
+            if (id == effectId || this.nodes.getEffect(id).equals(node, REMOVE_EQUALITY)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Counts a warning.
+     *
+     * @return true if the warning should also be described
+     */
+    private boolean countWarning() {
+        this.warningCount++;
+        return this.warnings.size() < MAX_WARNINGS;
+    }
+
+    private void reportBackwardDependencies(List<AssignmentRule> rules, BitSet[] reads, BitSet[] writes) {
+        for (int i = 0; i < rules.size(); i++) {
+            for (int j = 0; j < i; j++) {
+                if (writes[i].intersects(reads[j]) && countWarning()) {
+                    this.warnings.add("Rule '" + rules.get(j).getName() + "' depends on nodes changed by the later rule '" +
+                            rules.get(i).getName() + "', and won't see those changes until the user's next login");
+                }
+            }
+        }
+    }
+
+    private void reportCycles(List<AssignmentRule> rules, BitSet[] reads, BitSet[] writes) {
+        int size = rules.size();
+        int[][] edges = new int[size][];
+        for (int i = 0; i < size; i++) {
+            BitSet targets = new BitSet();
+            for (int j = 0; j < size; j++) {
+                if (i != j && writes[i].intersects(reads[j])) {
+                    targets.set(j);
+                }
+            }
+            edges[i] = targets.stream().toArray();
+        }
+
+        for (List<Integer> component : new StronglyConnectedComponents(edges).components) {
+            if (component.size() > 1 && countWarning()) {
+                this.warnings.add("Rules " + component.stream().sorted().map(i -> "'" + rules.get(i).getName() + "'").collect(Collectors.joining(", ")) +
+                        " depend on each other's changes, so their outcome may change from one login to the next");
+            }
+        }
+    }
+
+    private void reportConflicts(List<AssignmentRule> rules) {
+        for (int i = 0; i < rules.size(); i++) {
+            AssignmentRule rule = rules.get(i);
+            for (int j = i + 1; j < rules.size(); j++) {
+                AssignmentRule later = rules.get(j);
+
+                for (int given : rule.getToGive()) {
+                    if (removes(later.getToTake(), given) && countWarning()) {
+                        this.warnings.add("Rule '" + rule.getName() + "' gives " + this.nodes.getEffect(given).getKey() + " but the later rule '" +
+                                later.getName() + "' takes it - for users matching both, it will be taken");
+                    }
+                }
+                for (int taken : rule.getToTake()) {
+                    if (removes(later.getToGive(), taken) && countWarning()) {
+                        this.warnings.add("Rule '" + rule.getName() + "' takes " + this.nodes.getEffect(taken).getKey() + " but the later rule '" +
+                                later.getName() + "' gives it - for users matching both, it will be given");
+                    }
+                }
+
+                if (rule.getSetPrimaryGroup() != null && later.getSetPrimaryGroup() != null &&
+                        !rule.getSetPrimaryGroup().equals(later.getSetPrimaryGroup()) && countWarning()) {
+                    this.warnings.add("Rule '" + rule.getName() + "' sets the primary group to " + rule.getSetPrimaryGroup() +
+                            " but the later rule '" + later.getName() + "' sets it to " + later.getSetPrimaryGroup() +
+                            " - for users matching both, it will be " + later.getSetPrimaryGroup() + " if they are in that group");
+                }
+            }
+        }
+    }
+
+    /**
+     * Tarjan's strongly connected components algorithm.
+     */
+    private static final class StronglyConnectedComponents {
+        private final int[][] edges;
+        private final int[] index;
+        private final int[] lowLink;
+        private final boolean[] onStack;
+        private final int[] stack;
+        private int stackSize = 0;
+        private int nextIndex = 0;
+
+        private final List<List<Integer>> components = new ArrayList<>();
+
+        StronglyConnectedComponents(int[][] edges) {
+            int size = edges.length;
+            this.edges = edges;
+            this.index = new int[size];
+            this.lowLink = new int[size];
+            this.onStack = new boolean[size];
+            this.stack = new int[size];
+
+            Arrays.fill(this.index, -1);
+            for (int v = 0; v < size; v++) {
+                if (this.index[v] == -1) {
+                    visit(v);
+                }
+            }
+        }
+
+        private void visit(int v) {
+            this.index[v] = this.lowLink[v] = this.nextIndex++;
+            this.stack[this.stackSize++] = v;
+            this.onStack[v] = true;
+
+            for (int w : this.edges[v]) {
+                if (this.index[w] == -1) {
+                    visit(w);
+                    this.lowLink[v] = Math.min(this.lowLink[v], this.lowLink[w]);
+                } else if (this.onStack[w]) {
+                    this.lowLink[v] = Math.min(this.lowLink[v], this.index[w]);
+                }
+            }
+
+            if (this.lowLink[v] == this.index[v]) {
+                List<Integer> component = new ArrayList<>();
+                int w;
+                do {
+                    w = this.stack[--this.stackSize];
+                    this.onStack[w] = false;
+                    component.add(w);
+                } while (w != v);
+                this.components.add(component);
+            }
+        }
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ * This file is part of LuckPerms, licensed under the MIT License.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in all
+ *  copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ *  SOFTWARE.
+ */
+
+package me.lucko.luckperms.extension.defaultassignments;
+
+import com.google.common.collect.ImmutableList;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compiles {@link RuleDefinition}s into a {@link RuleSet}, reusing the
+ * compiled form of any rule which is unchanged since the last compilation.
+ *
+ * <p>Reused rules refer to nodes by their id in the previous
+ * {@link NodeTable}, so the new table is seeded with the previous one and
+ * only ever appended to. Once more than a quarter of the previous table
+ * would be left unused by the reused rules, every rule is compiled afresh
+ * instead, which drops the nodes no longer referenced.</p>
+ *
+ * <p>Every expression and node in a rule is parsed when it is compiled.
+ * Rules which fail to compile are quarantined - they are left out of the
+ * ruleset, and the reason is recorded in {@link #getLastErrors()} - so a
+ * broken rule costs nothing on login.</p>
+ *
+ * <p>The compiled rules are then {@link RuleSetAnalysis analysed}, and only
+ * the rules which survive the analysis make it into the ruleset.</p>
+ *
+ * <p>This class is not thread safe - reloads are expected to be serialised
+ * by the caller.</p>
+ */
+final class RuleSetCompiler {
+
+    /** The share of the previous table which may be left unused before it's rebuilt */
+    private static final double MAX_STALE_SHARE = 0.25;
+
+    private Map<RuleDefinition, AssignmentRule> compiled = new HashMap<>();
+    private NodeTable nodes = null;
+
+    private int lastCompiledCount = 0;
+    private RuleSetAnalysis lastAnalysis = null;
+    private List<String> lastErrors = ImmutableList.of();
+
+    /**
+     * Compiles the given rule definitions.
+     *
+     * @param definitions the definitions, in the order they should be applied
+     * @param settings the settings
+     * @return the compiled ruleset
+     */
+    public RuleSet compile(List<RuleDefinition> definitions, AssignmentSettings settings) {
+        boolean reuse = this.nodes != null && !isMostlyStale(definitions);
+        NodeTable.Builder nodes = reuse ? new NodeTable.Builder(this.nodes) : new NodeTable.Builder();
+
+        List<AssignmentRule> rules = new ArrayList<>(definitions.size());
+        Map<RuleDefinition, AssignmentRule> compiled = new HashMap<>();
+        int compiledCount = 0;
+        ImmutableList.Builder<String> errors = ImmutableList.builder();
+
+        for (RuleDefinition definition : definitions) {
+            AssignmentRule rule = reuse ? this.compiled.get(definition) : null;
+            if (rule == null) {
+                try {
+                    rule = definition.compile(nodes);
+                } catch (IllegalArgumentException e) {
+                    errors.add("Rule '" + definition.getName() + "' is invalid: " + e.getMessage());
+                    continue;
+                }
+                compiledCount++;
+            }
+            rules.add(rule);
+            compiled.put(definition, rule);
+        }
+
+        NodeTable table = nodes.build();
+        this.compiled = compiled;
+        this.nodes = table;
+        this.lastCompiledCount = compiledCount;
+        this.lastErrors = errors.build();
+
+        RuleSetAnalysis analysis = RuleSetAnalysis.analyze(rules, table);
+        this.lastAnalysis = analysis;
+        return new RuleSet(analysis.getRules(), table, settings);
+    }
+
+    /**
+     * Gets if too much of the previous table would be left unused by the
+     * rules which could be reused, for it to be worth carrying over.
+     *
+     * @param definitions the definitions being compiled
+     * @return true if the table should be rebuilt
+     */
+    private boolean isMostlyStale(List<RuleDefinition> definitions) {
+        BitSet conditionIds = new BitSet();
+        BitSet effectIds = new BitSet();
+        for (RuleDefinition definition : definitions) {
+            AssignmentRule rule = this.compiled.get(definition);
+            if (rule == null) {
+                continue;
+            }
+            rule.collectConditionIds(conditionIds);
+            for (int id : rule.getToGive()) {
+                effectIds.set(id);
+            }
+            for (int id : rule.getToTake()) {
+                effectIds.set(id);
+            }
+        }
+
+        int total = this.nodes.size() + this.nodes.effectCount();
+        int stale = total - conditionIds.cardinality() - effectIds.cardinality();
+        return stale > total * MAX_STALE_SHARE;
+    }
+
+    /**
+     * Gets the number of rules which had to be compiled (rather than
+     * reused) by the last call to {@link #compile(List, AssignmentSettings)}.
+     *
+     * @return the number of rules compiled
+     */
+    public int getLastCompiledCount() {
+        return this.lastCompiledCount;
+    }
+
+    /**
+     * Gets a description of each rule which failed to compile in the last
+     * call to {@link #compile(List, AssignmentSettings)}.
+     *
+     * @return the errors, one per invalid rule
+     */
+    public List<String> getLastErrors() {
+        return this.lastErrors;
+    }
+
+    /**
+     * Gets the analysis of the rules compiled by the last call to
+     * {@link #compile(List, AssignmentSettings)}.
+     *
+     * @return the last analysis, or null if nothing has been compiled yet
+     */
+    public RuleSetAnalysis getLastAnalysis() {
+        return this.lastAnalysis;
+    }
+}
@@ -0,0 +1,291 @@
+/*
+ * This file is part of LuckPerms, licensed under the MIT License.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in all
+ *  copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ *  SOFTWARE.
+ */
+
+package me.lucko.luckperms.extension.defaultassignments;
+
+import me.lucko.luckperms.common.plugin.logging.PluginLogger;
+
+import net.luckperms.api.model.user.User;
+import net.luckperms.api.model.user.UserManager;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Saves users modified by the extension in the background, so that logins
+ * don't wait on a storage round trip.
+ *
+ * <p>Repeat submissions for the same user are coalesced into a single save,
+ * and queued users are flushed in batches on a dedicated thread. If the queue
+ * is full, the user is handed straight to the {@link UserManager} instead.</p>
+ *
+ * <p>With admission control enabled, at most a batch worth of those direct
+ * saves run at once. Once that many are in flight, the user is queued
+ * anyway - beyond the size limit - for the background thread to catch up
+ * on, rather than making the submitter wait or adding to the pile.</p>
+ *
+ * <p>A user whose save fails is queued again, to be retried on a later
+ * flush, up to {@link #MAX_RETRIES} times. Other saves in the same batch
+ * are unaffected.</p>
+ */
+final class UserSaveQueue {
+    /** The number of times a failed save is retried before the user is given up on */
+    static final int MAX_RETRIES = 3;
+
+    private final UserManager userManager;
+    private final PluginLogger logger;
+    private final int maxSize;
+    private final int batchSize;
+
+    private final ScheduledExecutorService executor;
+
+    /** Limits the number of saves bypassing the queue at once, or null for no limit */
+    private final Semaphore overflowPermits;
+
+    /** The users waiting to be saved, keyed by uuid so repeat saves are coalesced */
+    private final Map<UUID, User> pending = new ConcurrentHashMap<>();
+    /** The order in which users were first queued */
+    private final Queue<UUID> order = new ConcurrentLinkedQueue<>();
+    /** The number of failed saves for each user since they were last saved */
+    private final Map<UUID, Integer> failures = new ConcurrentHashMap<>();
+
+    private final LongAdder saved = new LongAdder();
+    private final LongAdder overflowed = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LatencyHistogram flushLatency = new LatencyHistogram();
+
+    /** Called with each user once they have been saved, or null */
+    private volatile Consumer<User> saveListener = null;
+
+    UserSaveQueue(UserManager userManager, PluginLogger logger, AssignmentSettings settings) {
+        this.userManager = userManager;
+        this.logger = logger;
+        this.maxSize = settings.getSaveQueueSize();
+        this.batchSize = settings.getSaveBatchSize();
+        this.overflowPermits = settings.isAdmission() ? new Semaphore(this.batchSize) : null;
+        this.executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "luckperms-default-assignments-save");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.executor.scheduleWithFixedDelay(this::flushSafely, settings.getSaveInterval(), settings.getSaveInterval(), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Sets a callback to be run with each user once they have been saved.
+     *
+     * @param saveListener the callback
+     */
+    public void setSaveListener(Consumer<User> saveListener) {
+        this.saveListener = saveListener;
+    }
+
+    /**
+     * Queues the user to be saved.
+     *
+     * @param user the user
+     */
+    public void submit(User user) {
+        UUID uniqueId = user.getUniqueId();
+        if (this.pending.replace(uniqueId, user) != null) {
+            // already queued, will be saved in its latest state
+            return;
+        }
+
+        if (this.executor.isShutdown()) {
+            // nothing is left to flush the queue
+            saveDirectly(user, false);
+            return;
+        }
+
+        if (this.pending.size() >= this.maxSize && acquireOverflowPermit()) {
+            // queue is full - don't hold on to any more users, just save directly
+            this.overflowed.increment();
+            saveDirectly(user, this.overflowPermits != null);
+            return;
+        }
+
+        if (this.pending.putIfAbsent(uniqueId, user) == null) {
+            this.order.add(uniqueId);
+        }
+    }
+
+    private void saveDirectly(User user, boolean releasePermit) {
+        save(user).whenComplete((result, ex) -> {
+            if (releasePermit) {
+                this.overflowPermits.release();
+            }
+            if (ex == null) {
+                this.saved.increment();
+            } else {
+                saveFailed(user, ex);
+            }
+        });
+    }
+
+    private boolean acquireOverflowPermit() {
+        return this.overflowPermits == null || this.overflowPermits.tryAcquire();
+    }
+
+    /**
+     * Gets the number of users waiting to be saved.
+     *
+     * @return the queue depth
+     */
+    public int getQueueDepth() {
+        return this.pending.size();
+    }
+
+    public long getSavedCount() {
+        return this.saved.sum();
+    }
+
+    public long getOverflowCount() {
+        return this.overflowed.sum();
+    }
+
+    public long getFailedCount() {
+        return this.failed.sum();
+    }
+
+    public long getDroppedCount() {
+        return this.dropped.sum();
+    }
+
+    /**
+     * Gets the time taken to save each batch of users.
+     *
+     * @return the flush latency
+     */
+    public LatencyHistogram getFlushLatency() {
+        return this.flushLatency;
+    }
+
+    /**
+     * Stops the background thread and saves everything still in the queue,
+     * waiting for the saves (and any retries) to complete.
+     */
+    public void shutdown() {
+        this.executor.shutdown();
+        try {
+            this.executor.awaitTermination(30, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        while (!this.order.isEmpty()) {
+            flush();
+        }
+    }
+
+    private CompletableFuture<Void> save(User user) {
+        CompletableFuture<Void> future = this.userManager.saveUser(user).thenRun(() -> this.failures.remove(user.getUniqueId()));
+        Consumer<User> saveListener = this.saveListener;
+        return saveListener == null ? future : future.thenRun(() -> saveListener.accept(user));
+    }
+
+    /**
+     * Queues a user whose save failed to be retried, unless they have
+     * already been retried too many times.
+     *
+     * @param user the user
+     * @param ex the reason the save failed
+     */
+    private void saveFailed(User user, Throwable ex) {
+        this.failed.increment();
+        if (ex instanceof CompletionException && ex.getCause() != null) {
+            ex = ex.getCause();
+        }
+
+        UUID uniqueId = user.getUniqueId();
+        int failures = this.failures.merge(uniqueId, 1, Integer::sum);
+        if (failures > MAX_RETRIES) {
+            this.failures.remove(uniqueId);
+            this.dropped.increment();
+            this.logger.severe("[default-assignments] Unable to save " + uniqueId + " after " + failures + " attempts, giving up: " + ex);
+            return;
+        }
+
+        this.logger.warn("[default-assignments] Unable to save " + uniqueId + ", will retry: " + ex);
+        if (this.pending.putIfAbsent(uniqueId, user) == null) {
+            this.order.add(uniqueId);
+        }
+    }
+
+    private void flushSafely() {
+        try {
+            flush();
+        } catch (Exception e) {
+            this.logger.severe("[default-assignments] Exception occurred whilst saving users: " + e);
+        }
+    }
+
+    private void flush() {
+        // failed saves are retried on the next flush, rather than straight away
+        Map<User, Throwable> retry = new ConcurrentHashMap<>();
+
+        while (!this.order.isEmpty()) {
+            List<CompletableFuture<Void>> batch = new ArrayList<>(this.batchSize);
+
+            long start = System.nanoTime();
+            UUID uniqueId;
+            while (batch.size() < this.batchSize && (uniqueId = this.order.poll()) != null) {
+                User user = this.pending.remove(uniqueId);
+                if (user != null) {
+                    batch.add(save(user).whenComplete((result, ex) -> {
+                        if (ex == null) {
+                            this.saved.increment();
+                        } else {
+                            retry.put(user, ex);
+                        }
+                    }));
+                }
+            }
+
+            if (batch.isEmpty()) {
+                continue;
+            }
+
+            // wait for the whole batch, whether or not any of it failed
+            CompletableFuture.allOf(batch.toArray(new CompletableFuture<?>[0])).handle((result, ex) -> null).join();
+            this.flushLatency.record(System.nanoTime() - start);
+        }
+
+        retry.forEach(this::saveFailed);
+    }
+}
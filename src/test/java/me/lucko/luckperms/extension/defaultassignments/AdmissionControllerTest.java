@@ -0,0 +1,249 @@
+/*
+ * This file is part of LuckPerms, licensed under the MIT License.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in all
+ *  copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ *  SOFTWARE.
+ */
+
+package me.lucko.luckperms.extension.defaultassignments;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class AdmissionControllerTest extends TestFixtures {
+    private static final int THREADS = 32;
+
+    private static AssignmentSettings settings(int maxConcurrent, AdmissionController.Fallback fallback) {
+        return AssignmentSettings.builder()
+                .admission(true)
+                .admissionMaxConcurrent(maxConcurrent)
+                .admissionFallback(fallback)
+                .build();
+    }
+
+    @Test
+    public void concurrencyIsCapped() throws Exception {
+        AdmissionController admission = new AdmissionController(settings(4, AdmissionController.Fallback.SKIP));
+        CountDownLatch release = new CountDownLatch(1);
+
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger maxRunning = new AtomicInteger();
+        List<FakeUser> users = new ArrayList<>();
+        for (int i = 0; i < THREADS; i++) {
+            users.add(new FakeUser(UUID.randomUUID(), new FakeNodeMap()));
+        }
+
+        // the admitted logins hold on to their permits until everyone else has been turned away
+        List<AssignmentDelta> deltas = runAll(users, user -> () -> {
+            maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+            await(release);
+            running.decrementAndGet();
+            return new AssignmentDelta();
+        }, admission, admission::getRejectedCount, THREADS - 4, release);
+
+        int admitted = 0;
+        for (AssignmentDelta delta : deltas) {
+            if (delta != null) {
+                admitted++;
+            }
+        }
+        assertTrue("at most 4 logins should run at once, saw " + maxRunning.get(), maxRunning.get() <= 4);
+        assertEquals(4, admitted);
+        assertEquals(THREADS - 4, admission.getRejectedCount());
+        assertEquals(0, admission.getInFlight());
+    }
+
+    @Test
+    public void sameUserIsCoalesced() throws Exception {
+        AdmissionController admission = new AdmissionController(settings(4, AdmissionController.Fallback.SKIP));
+        CountDownLatch release = new CountDownLatch(1);
+        FakeUser user = new FakeUser(UUID.randomUUID(), new FakeNodeMap());
+
+        AtomicInteger runs = new AtomicInteger();
+        List<FakeUser> logins = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            logins.add(user);
+        }
+
+        List<AssignmentDelta> deltas = runAll(logins, u -> () -> {
+            runs.incrementAndGet();
+            await(release);
+            return new AssignmentDelta();
+        }, admission, admission::getCoalescedCount, 7, release);
+
+        for (AssignmentDelta delta : deltas) {
+            assertNotNull(delta);
+        }
+        assertEquals(1, runs.get());
+        assertEquals(7, admission.getCoalescedCount());
+        assertEquals(0, admission.getRejectedCount());
+    }
+
+    @Test
+    public void reloadedUserFallsBack() throws Exception {
+        AdmissionController admission = new AdmissionController(settings(4, AdmissionController.Fallback.SKIP));
+        UUID uniqueId = UUID.randomUUID();
+        AtomicInteger runs = new AtomicInteger();
+        LoginTimings timings = new LoginTimings();
+
+        AssignmentDelta delta = whileBusy(admission, new FakeUser(uniqueId, new FakeNodeMap()), () ->
+                admission.admit(new FakeUser(uniqueId, new FakeNodeMap()), timings, () -> {
+                    runs.incrementAndGet();
+                    return new AssignmentDelta();
+                }));
+
+        // a different User instance can't be processed alongside the first
+        assertNull(delta);
+        assertEquals(0, runs.get());
+        assertTrue(timings.rejected);
+        assertEquals(0, admission.getCoalescedCount());
+        assertEquals(1, admission.getRejectedCount());
+        assertEquals(0, admission.getInFlight());
+    }
+
+    @Test
+    public void fullFallsBackToApply() throws Exception {
+        AdmissionController admission = new AdmissionController(settings(1, AdmissionController.Fallback.APPLY));
+        AtomicInteger runs = new AtomicInteger();
+        LoginTimings timings = new LoginTimings();
+
+        AssignmentDelta delta = whileBusy(admission, new FakeUser(UUID.randomUUID(), new FakeNodeMap()), () ->
+                admission.admit(new FakeUser(UUID.randomUUID(), new FakeNodeMap()), timings, () -> {
+                    runs.incrementAndGet();
+                    return new AssignmentDelta();
+                }));
+
+        assertNotNull(delta);
+        assertEquals(1, runs.get());
+        assertTrue(timings.rejected);
+        assertEquals(1, admission.getRejectedCount());
+    }
+
+    @Test
+    public void fullFallsBackToSkip() throws Exception {
+        AdmissionController admission = new AdmissionController(settings(1, AdmissionController.Fallback.SKIP));
+        AtomicInteger runs = new AtomicInteger();
+        LoginTimings timings = new LoginTimings();
+
+        AssignmentDelta delta = whileBusy(admission, new FakeUser(UUID.randomUUID(), new FakeNodeMap()), () ->
+                admission.admit(new FakeUser(UUID.randomUUID(), new FakeNodeMap()), timings, () -> {
+                    runs.incrementAndGet();
+                    return new AssignmentDelta();
+                }));
+
+        assertNull(delta);
+        assertEquals(0, runs.get());
+        assertTrue(timings.rejected);
+        assertEquals(1, admission.getRejectedCount());
+    }
+
+    /**
+     * Runs the task while another login holds a permit, checking it doesn't
+     * wait for that login to finish.
+     */
+    private static AssignmentDelta whileBusy(AdmissionController admission, FakeUser busyUser, Supplier<AssignmentDelta> task) throws Exception {
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<AssignmentDelta> busy = executor.submit(() -> admission.admit(busyUser, new LoginTimings(), () -> {
+                started.countDown();
+                await(release);
+                return new AssignmentDelta();
+            }));
+            assertTrue(started.await(10, TimeUnit.SECONDS));
+
+            // the busy login is held until the task returns, so the task can't have waited on it
+            AssignmentDelta delta = task.get();
+            release.countDown();
+            assertNotNull(busy.get(10, TimeUnit.SECONDS));
+            return delta;
+        } finally {
+            release.countDown();
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Logs in each user on its own thread, all at once, opening the release
+     * latch once the given count reaches the expected value.
+     */
+    private static List<AssignmentDelta> runAll(List<FakeUser> users, WorkFactory work, AdmissionController admission,
+                                                LongSupplier count, long expected, CountDownLatch release) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(users.size());
+        try {
+            CountDownLatch start = new CountDownLatch(1);
+            List<Future<AssignmentDelta>> futures = new ArrayList<>();
+            for (FakeUser user : users) {
+                futures.add(executor.submit((Callable<AssignmentDelta>) () -> {
+                    start.await();
+                    return admission.admit(user, new LoginTimings(), work.create(user));
+                }));
+            }
+            start.countDown();
+
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+            while (count.getAsLong() < expected && System.nanoTime() < deadline) {
+                Thread.sleep(1);
+            }
+            assertEquals(expected, count.getAsLong());
+            release.countDown();
+
+            List<AssignmentDelta> deltas = new ArrayList<>();
+            for (Future<AssignmentDelta> future : futures) {
+                deltas.add(future.get(30, TimeUnit.SECONDS));
+            }
+            return deltas;
+        } finally {
+            release.countDown();
+            executor.shutdownNow();
+        }
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private interface WorkFactory {
+        Supplier<AssignmentDelta> create(FakeUser user);
+    }
+}
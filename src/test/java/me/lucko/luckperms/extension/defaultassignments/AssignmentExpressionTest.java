@@ -0,0 +1,166 @@
+/*
+ * This file is part of LuckPerms, licensed under the MIT License.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in all
+ *  copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ *  SOFTWARE.
+ */
+
+package me.lucko.luckperms.extension.defaultassignments;
+
+import net.luckperms.api.util.Tristate;
+
+import org.junit.Test;
+
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the expression parser against results worked out by hand.
+ */
+public class AssignmentExpressionTest extends TestFixtures {
+
+    /**
+     * Evaluates the expression for a user who has the given permissions, and
+     * no others.
+     */
+    private static boolean eval(String expression, String... permissions) {
+        NodeTable.Builder nodes = new NodeTable.Builder();
+        AssignmentExpression parsed = new AssignmentExpression(expression, nodes);
+
+        FakeNodeMap data = new FakeNodeMap();
+        for (String permission : permissions) {
+            data.add(LegacyNodeFactory.fromLegacyString(permission));
+        }
+        return parsed.eval(nodes.build().resolve(new FakeUser(UUID.randomUUID(), data)), Tristate.TRUE);
+    }
+
+    private static AssignmentExpression parse(String expression) {
+        return new AssignmentExpression(expression, new NodeTable.Builder());
+    }
+
+    private static String error(String expression) {
+        return assertThrows(IllegalArgumentException.class, () -> parse(expression)).getMessage();
+    }
+
+    @Test
+    public void permissions() {
+        assertTrue(eval("<a>", "a"));
+        assertFalse(eval("<a>"));
+        assertFalse(eval("<a>", "b"));
+        assertTrue(eval("!<a>"));
+        assertFalse(eval("!!<a>"));
+        assertTrue(eval("<server/a>", "server/a"));
+        assertFalse(eval("<server/a>", "a"));
+    }
+
+    @Test
+    public void andBindsTighterThanOr() {
+        // a | (b & c), not (a | b) & c
+        assertTrue(eval("<a> | <b> & <c>", "a"));
+        assertFalse(eval("<a> | <b> & <c>", "b"));
+        assertTrue(eval("<a> | <b> & <c>", "b", "c"));
+        // (a & b) | c, not a & (b | c)
+        assertTrue(eval("<a> & <b> | <c>", "c"));
+        assertFalse(eval("<a> & <b> | <c>", "a"));
+    }
+
+    @Test
+    public void notBindsTighterThanAnd() {
+        // (!a) & b, not !(a & b)
+        assertFalse(eval("!<a> & <b>"));
+        assertTrue(eval("!<a> & <b>", "b"));
+        assertFalse(eval("!<a> & <b>", "a", "b"));
+        // (!a) | b
+        assertTrue(eval("!<a> | <b>"));
+        assertFalse(eval("!<a> | <b>", "a"));
+    }
+
+    @Test
+    public void parentheses() {
+        assertFalse(eval("(<a> | <b>) & <c>", "a"));
+        assertTrue(eval("(<a> | <b>) & <c>", "b", "c"));
+        assertTrue(eval("!(<a> & <b>)", "a"));
+        assertFalse(eval("!(<a> | <b>)", "b"));
+        assertTrue(eval("((<a>))", "a"));
+    }
+
+    @Test
+    public void operatorsAndWhitespace() {
+        assertTrue(eval("<a>&&<b>", "a", "b"));
+        assertTrue(eval("<a>||<b>", "b"));
+        assertTrue(eval("  <a>  &\t<b>\n", "a", "b"));
+        assertTrue(eval("! <a>"));
+        assertTrue(eval("true"));
+        assertFalse(eval(" false "));
+        assertTrue(eval("(true)&<a>", "a"));
+    }
+
+    @Test
+    public void constantFolding() {
+        assertConstant(true, "true");
+        assertConstant(false, "!true");
+        assertConstant(true, "<a> | !<a>");
+        assertConstant(false, "<a> & !<a>");
+        assertConstant(false, "false & <a>");
+        assertConstant(true, "<a> | true");
+        assertConstant(true, "!(<a> & !<a>)");
+        assertConstant(false, "(<a> | <b>) & !(<a> | <b>)");
+
+        assertFalse(parse("<a> & true").isConstant());
+        assertFalse(parse("<a> | <b>").isConstant());
+        assertFalse(parse("<a> & !<b>").isConstant());
+    }
+
+    private static void assertConstant(boolean expected, String expression) {
+        AssignmentExpression parsed = parse(expression);
+        assertTrue(expression, parsed.isConstant());
+        assertEquals(expression, expected, parsed.getConstantValue());
+    }
+
+    @Test
+    public void malformed() {
+        assertEquals("Unexpected end of expression at index 0 in expression: ", error(""));
+        assertEquals("Unexpected end of expression at index 5 in expression: <a> &", error("<a> &"));
+        assertEquals("Expected ')' at index 4 in expression: (<a>", error("(<a>"));
+        assertEquals("Unexpected ')' at index 3 in expression: <a>)", error("<a>)"));
+        assertEquals("Unterminated permission, expected '>' at index 1 in expression: <a", error("<a"));
+        assertEquals("Unexpected '<' at index 4 in expression: <a> <b>", error("<a> <b>"));
+        assertEquals("Unexpected 'a' at index 0 in expression: a", error("a"));
+    }
+
+    @Test
+    public void keywordsAreWholeWords() {
+        assertEquals("Unexpected 'truex' at index 0 in expression: truex", error("truex"));
+        assertEquals("Unexpected 'false_' at index 4 in expression: <a>|false_", error("<a>|false_"));
+        assertEquals("Unexpected 'trueish' at index 6 in expression: <a> & trueish", error("<a> & trueish"));
+    }
+
+    @Test
+    public void separatedOperatorsAreRejected() {
+        assertEquals("Unexpected '&' at index 6 in expression: <a> & & <b>", error("<a> & & <b>"));
+        assertEquals("Unexpected '|' at index 6 in expression: <a> | | <b>", error("<a> | | <b>"));
+        assertEquals("Unexpected '&' at index 6 in expression: <a> &&& <b>", error("<a> &&& <b>"));
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * This file is part of LuckPerms, licensed under the MIT License.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in all
+ *  copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ *  SOFTWARE.
+ */
+
+package me.lucko.luckperms.extension.defaultassignments;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Applies the same rules from many threads at once, as happens during a
+ * join storm, and checks each user ends up as if they were the only one.
+ */
+public class AssignmentRuleConcurrencyTest extends TestFixtures {
+    private static final int THREADS = 16;
+    private static final int USERS = 200;
+    private static final int ROUNDS = 4;
+
+    @Test
+    public void applyRules() throws Exception {
+        Random random = new Random(1);
+        NodeTable.Builder nodes = new NodeTable.Builder();
+        List<AssignmentRule> rules = RandomRuleSets.rules(random, 50, 12, nodes);
+        NodeTable table = nodes.build();
+
+        run(random, rules, table, user -> {
+            MutationPlan plan = new MutationPlan(user);
+            NodeStates states = table.resolve(user);
+            for (AssignmentRule rule : rules) {
+                rule.apply(plan, states);
+            }
+            plan.apply(new AssignmentDelta());
+        });
+    }
+
+    @Test
+    public void applyRuleSet() throws Exception {
+        Random random = new Random(2);
+        NodeTable.Builder nodes = new NodeTable.Builder();
+        List<AssignmentRule> rules = RandomRuleSets.rules(random, 50, 12, nodes);
+        NodeTable table = nodes.build();
+
+        // shares the outcome cache, metrics and fork/join pool between the threads too
+        RuleSet ruleSet = new RuleSet(rules, table, AssignmentSettings.builder().outcomeCacheSize(64).parallelThreshold(1).build());
+        run(random, rules, table, ruleSet::apply);
+    }
+
+    private static void run(Random random, List<AssignmentRule> rules, NodeTable table, UserTask task) throws Exception {
+        List<FakeUser> users = new ArrayList<>(USERS);
+        List<FakeUser> expected = new ArrayList<>(USERS);
+        for (int i = 0; i < USERS; i++) {
+            FakeUser user = RandomRuleSets.user(random, 12);
+            FakeUser copy = user.copy();
+            RandomRuleSets.applyInTurn(rules, table, copy);
+            users.add(user);
+            expected.add(copy);
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try {
+            CountDownLatch start = new CountDownLatch(1);
+            List<Future<Void>> futures = new ArrayList<>();
+            for (int t = 0; t < THREADS; t++) {
+                int offset = t;
+                futures.add(executor.submit((Callable<Void>) () -> {
+                    start.await();
+                    for (int round = 0; round < ROUNDS; round++) {
+                        // each thread works through the users in a different order
+                        for (int i = 0; i < USERS; i++) {
+                            int index = (i + offset * 7) % USERS;
+                            FakeUser user = users.get(index).copy();
+                            task.apply(user);
+                            RandomRuleSets.assertSameOutcome("user " + index, expected.get(index), user);
+                        }
+                    }
+                    return null;
+                }));
+            }
+
+            start.countDown();
+            for (Future<Void> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private interface UserTask {
+        void apply(FakeUser user);
+    }
+}
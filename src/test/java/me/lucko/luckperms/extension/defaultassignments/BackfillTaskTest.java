@@ -0,0 +1,353 @@
+/*
+ * This file is part of LuckPerms, licensed under the MIT License.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in all
+ *  copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ *  SOFTWARE.
+ */
+
+package me.lucko.luckperms.extension.defaultassignments;
+
+import com.google.common.collect.ImmutableList;
+
+import me.lucko.luckperms.common.plugin.logging.PluginLogger;
+
+import net.luckperms.api.LuckPerms;
+import net.luckperms.api.event.EventBus;
+import net.luckperms.api.event.EventSubscription;
+import net.luckperms.api.event.node.NodeAddEvent;
+import net.luckperms.api.event.node.NodeRemoveEvent;
+import net.luckperms.api.model.data.DataType;
+import net.luckperms.api.model.user.UserManager;
+import net.luckperms.api.node.Node;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+public class BackfillTaskTest extends TestFixtures {
+    private static final int USERS = 40;
+    private static final int PERMISSIONS = 10;
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private final List<String> log = new CopyOnWriteArrayList<>();
+    private final PluginLogger logger = new PluginLogger() {
+        @Override
+        public void info(String s) {
+            BackfillTaskTest.this.log.add(s);
+        }
+
+        @Override
+        public void warn(String s) {
+            BackfillTaskTest.this.log.add(s);
+        }
+
+        @Override
+        public void severe(String s) {
+            throw new AssertionError(s);
+        }
+    };
+
+    private static AssignmentSettings settings(boolean dryRun) {
+        return AssignmentSettings.builder()
+                .outcomeCacheSize(0)
+                .backfill(true)
+                .backfillRateLimit(0)
+                .backfillDryRun(dryRun)
+                .reevaluate(true)
+                .reevaluateDelay(1)
+                .build();
+    }
+
+    private FakeStorage storage;
+    private List<AssignmentRule> rules;
+    private NodeTable table;
+    private RuleSet ruleSet;
+    private Path checkpointFile;
+
+    @Before
+    public void setup() {
+        Random random = new Random(1);
+        NodeTable.Builder nodes = new NodeTable.Builder();
+        this.rules = RandomRuleSets.rules(random, 30, PERMISSIONS, nodes);
+        this.table = nodes.build();
+        this.ruleSet = new RuleSet(this.rules, this.table, settings(false));
+
+        this.storage = new FakeStorage();
+        for (int i = 0; i < USERS; i++) {
+            this.storage.put(RandomRuleSets.user(random, PERMISSIONS));
+        }
+        this.checkpointFile = this.folder.getRoot().toPath().resolve("backfill.txt");
+    }
+
+    @Test
+    public void appliesRulesToEveryUser() throws Exception {
+        Map<UUID, FakeUser> expected = expected();
+        int changed = changedCount();
+        UserManager userManager = this.storage.newInstance();
+
+        new BackfillTask(userManager, this.logger, this.ruleSet, null, this.checkpointFile, settings(false)).run();
+
+        for (FakeUser user : expected.values()) {
+            RandomRuleSets.assertSameOutcome(user.getUniqueId().toString(), user, this.storage.get(user.getUniqueId()));
+            assertFalse(userManager.isLoaded(user.getUniqueId()));
+        }
+        assertEquals(changed, this.storage.getSaveCount());
+        assertEquals(Arrays.asList(this.ruleSet.getVersion(), last().toString(), "true"), Files.readAllLines(this.checkpointFile, StandardCharsets.UTF_8));
+
+        // once complete, it doesn't run again for the same rules
+        new BackfillTask(this.storage.newInstance(), this.logger, this.ruleSet, null, this.checkpointFile, settings(false)).run();
+        assertEquals(changed, this.storage.getSaveCount());
+    }
+
+    @Test
+    public void resumesFromCheckpoint() throws Exception {
+        Map<UUID, FakeUser> expected = expected();
+        UUID[] uniqueIds = expected.keySet().toArray(new UUID[0]);
+        Arrays.sort(uniqueIds);
+        UUID resumeAfter = uniqueIds[USERS / 2];
+        Files.write(this.checkpointFile, Arrays.asList(this.ruleSet.getVersion(), resumeAfter.toString(), "false"), StandardCharsets.UTF_8);
+
+        Map<UUID, FakeUser> original = new ConcurrentHashMap<>();
+        for (UUID uniqueId : uniqueIds) {
+            original.put(uniqueId, this.storage.get(uniqueId).copy());
+        }
+
+        new BackfillTask(this.storage.newInstance(), this.logger, this.ruleSet, null, this.checkpointFile, settings(false)).run();
+
+        for (UUID uniqueId : uniqueIds) {
+            FakeUser outcome = uniqueId.compareTo(resumeAfter) <= 0 ? original.get(uniqueId) : expected.get(uniqueId);
+            RandomRuleSets.assertSameOutcome(uniqueId.toString(), outcome, this.storage.get(uniqueId));
+        }
+    }
+
+    @Test
+    public void dryRunDoesNotModifyUsers() throws Exception {
+        Map<UUID, FakeUser> original = new ConcurrentHashMap<>();
+        for (UUID uniqueId : expected().keySet()) {
+            original.put(uniqueId, this.storage.get(uniqueId).copy());
+        }
+        int changed = changedCount();
+
+        // one of the users is in use on the server
+        UserManager userManager = this.storage.newInstance();
+        UUID online = original.keySet().iterator().next();
+        FakeUser onlineUser = (FakeUser) userManager.loadUser(online).join();
+
+        new BackfillTask(userManager, this.logger, this.ruleSet, null, this.checkpointFile, settings(true)).run();
+
+        for (FakeUser user : original.values()) {
+            RandomRuleSets.assertSameOutcome(user.getUniqueId().toString(), user, this.storage.get(user.getUniqueId()));
+        }
+        RandomRuleSets.assertSameOutcome("online user", original.get(online), onlineUser);
+        assertTrue(userManager.isLoaded(online));
+        assertEquals(0, this.storage.getSaveCount());
+        assertFalse(Files.exists(this.checkpointFile));
+
+        String summary = this.log.get(this.log.size() - 1);
+        assertTrue(summary, summary.contains(USERS + " processed, " + changed + " would be changed"));
+    }
+
+    @Test
+    public void dryRunIgnoresVersionStamp() {
+        // only the users with p0 are changed by the rule, but stamping would change every user
+        NodeTable.Builder nodes = new NodeTable.Builder();
+        List<AssignmentRule> rules = ImmutableList.of(
+                new AssignmentRule("reward", "<p0>", null, null, ImmutableList.of("test.reward"), ImmutableList.of(), null, false, nodes)
+        );
+        RuleSet ruleSet = new RuleSet(rules, nodes.build(), AssignmentSettings.builder().outcomeCacheSize(0).versionStamp(true).build());
+
+        int changed = 0;
+        for (UUID uniqueId : expected().keySet()) {
+            if (this.storage.get(uniqueId).data().contains(LegacyNodeFactory.fromLegacyString("p0"), NodeTable.EQUALITY).asBoolean()) {
+                changed++;
+            }
+        }
+        assertTrue(changed != 0 && changed < USERS);
+
+        new BackfillTask(this.storage.newInstance(), this.logger, ruleSet, null, this.checkpointFile, settings(true)).run();
+
+        String summary = this.log.get(this.log.size() - 1);
+        assertTrue(summary, summary.contains(USERS + " processed, " + changed + " would be changed"));
+    }
+
+    @Test
+    public void changesAreNotReevaluated() throws Exception {
+        // giving b leads on to giving c, so re-evaluation would be triggered by b if it wasn't recorded
+        NodeTable.Builder nodes = new NodeTable.Builder();
+        List<AssignmentRule> rules = ImmutableList.of(
+                new AssignmentRule("give-b", "<test.a>", null, null, ImmutableList.of("test.b"), ImmutableList.of(), null, false, nodes),
+                new AssignmentRule("give-c", "<test.b>", null, null, ImmutableList.of("test.c"), ImmutableList.of(), null, false, nodes)
+        );
+        AssignmentSettings settings = settings(false);
+        RuleSet ruleSet = new RuleSet(rules, nodes.build(), settings);
+        Node given = LegacyNodeFactory.fromLegacyString("test.b");
+        assertFalse(ruleSet.getAffectedRules(ImmutableList.of(given)).isEmpty());
+
+        assertNotEquals(0, reevaluations(ruleSet, settings, given, false, NodeAddEvent.class));
+        assertEquals(0, reevaluations(ruleSet, settings, given, true, NodeAddEvent.class));
+    }
+
+    @Test
+    public void otherChangesAreReevaluated() throws Exception {
+        NodeTable.Builder nodes = new NodeTable.Builder();
+        List<AssignmentRule> rules = ImmutableList.of(
+                new AssignmentRule("give-b", "<test.a>", null, null, ImmutableList.of("test.b"), ImmutableList.of(), null, false, nodes),
+                new AssignmentRule("give-c", "<test.b>", null, null, ImmutableList.of("test.c"), ImmutableList.of(), null, false, nodes)
+        );
+        AssignmentSettings settings = settings(false);
+        RuleSet ruleSet = new RuleSet(rules, nodes.build(), settings);
+        Node given = LegacyNodeFactory.fromLegacyString("test.b");
+
+        // someone else taking the node isn't mistaken for it being given
+        assertEquals(1, reevaluations(ruleSet, settings, given, true, NodeRemoveEvent.class));
+        // once the user's batch is done, giving it again isn't mistaken for the first time
+        assertEquals(1, reevaluations(ruleSet, settings, given, true, NodeAddEvent.class, NodeAddEvent.class));
+    }
+
+    /**
+     * Backfills an online user, then fires events for one of the nodes
+     * given to them, leaving time for each to be processed.
+     *
+     * @return the number of re-evaluations which followed
+     */
+    private long reevaluations(RuleSet ruleSet, AssignmentSettings settings, Node given, boolean record, Class<?>... events) throws Exception {
+        FakeStorage storage = new FakeStorage();
+        FakeNodeMap data = new FakeNodeMap();
+        data.add(LegacyNodeFactory.fromLegacyString("test.a"));
+        FakeUser stored = new FakeUser(UUID.randomUUID(), data);
+        storage.put(stored);
+
+        UserManager userManager = storage.newInstance();
+        FakeUser user = (FakeUser) userManager.loadUser(stored.getUniqueId()).join();
+
+        Map<Class<?>, Consumer<Object>> handlers = new HashMap<>();
+        UserSaveQueue saveQueue = new UserSaveQueue(userManager, this.logger, settings);
+        IncrementalEvaluator incrementalEvaluator = new IncrementalEvaluator(luckPerms(userManager, handlers), this.logger, () -> ruleSet, saveQueue, settings);
+        try {
+            Path checkpointFile = this.folder.newFile().toPath();
+            new BackfillTask(userManager, this.logger, ruleSet, record ? incrementalEvaluator : null, checkpointFile, settings).run();
+            assertTrue(user.data().contains(given, NodeTable.EQUALITY).asBoolean());
+
+            for (Class<?> type : events) {
+                Object event = Proxy.newProxyInstance(BackfillTaskTest.class.getClassLoader(), new Class[]{type}, (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "isUser":
+                            return true;
+                        case "getTarget":
+                            return user;
+                        case "getDataType":
+                            return DataType.NORMAL;
+                        case "getNode":
+                            return given;
+                    }
+                    throw new UnsupportedOperationException(method.getName());
+                });
+                handlers.get(type).accept(event);
+                Thread.sleep(200);
+            }
+            return incrementalEvaluator.getReevaluations();
+        } finally {
+            incrementalEvaluator.close();
+            saveQueue.shutdown();
+        }
+    }
+
+    /**
+     * Creates the API, with the given user manager and an event bus which
+     * collects the handler for each event.
+     */
+    @SuppressWarnings("unchecked")
+    private static LuckPerms luckPerms(UserManager userManager, Map<Class<?>, Consumer<Object>> handlers) {
+        EventSubscription<?> subscription = (EventSubscription<?>) Proxy.newProxyInstance(BackfillTaskTest.class.getClassLoader(), new Class[]{EventSubscription.class}, (proxy, method, args) -> null);
+        EventBus eventBus = (EventBus) Proxy.newProxyInstance(BackfillTaskTest.class.getClassLoader(), new Class[]{EventBus.class}, (proxy, method, args) -> {
+            if (method.getName().equals("subscribe")) {
+                handlers.put((Class<?>) args[0], (Consumer<Object>) args[1]);
+                return subscription;
+            }
+            throw new UnsupportedOperationException(method.getName());
+        });
+        return (LuckPerms) Proxy.newProxyInstance(BackfillTaskTest.class.getClassLoader(), new Class[]{LuckPerms.class}, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "getUserManager":
+                    return userManager;
+                case "getEventBus":
+                    return eventBus;
+            }
+            throw new UnsupportedOperationException(method.getName());
+        });
+    }
+
+    /**
+     * Works out each stored user after the rules are applied in turn.
+     */
+    private Map<UUID, FakeUser> expected() {
+        Map<UUID, FakeUser> expected = new ConcurrentHashMap<>();
+        for (UUID uniqueId : this.storage.newInstance().getUniqueUsers().join()) {
+            FakeUser user = this.storage.get(uniqueId).copy();
+            RandomRuleSets.applyInTurn(this.rules, this.table, user);
+            expected.put(uniqueId, user);
+        }
+        return expected;
+    }
+
+    /**
+     * Counts the stored users who the rules would change.
+     */
+    private int changedCount() {
+        int changed = 0;
+        for (FakeUser user : expected().values()) {
+            FakeUser stored = this.storage.get(user.getUniqueId());
+            Set<Node> before = new HashSet<>(stored.data().toCollection());
+            if (!before.equals(new HashSet<>(user.data().toCollection())) || !stored.getPrimaryGroup().equals(user.getPrimaryGroup())) {
+                changed++;
+            }
+        }
+        return changed;
+    }
+
+    private UUID last() {
+        return this.storage.newInstance().getUniqueUsers().join().stream().max(UUID::compareTo).orElseThrow(IllegalStateException::new);
+    }
+}
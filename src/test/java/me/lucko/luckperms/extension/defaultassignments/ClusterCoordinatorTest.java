@@ -0,0 +1,245 @@
+/*
+ * This file is part of LuckPerms, licensed under the MIT License.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in all
+ *  copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ *  SOFTWARE.
+ */
+package me.lucko.luckperms.extension.defaultassignments;
+
+import com.google.common.collect.ImmutableList;
+
+import me.lucko.luckperms.common.plugin.logging.PluginLogger;
+
+import net.luckperms.api.model.user.User;
+import net.luckperms.api.model.user.UserManager;
+import net.luckperms.api.node.Node;
+import net.luckperms.api.node.NodeType;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs two instances sharing the same storage, and checks that each user
+ * is saved by exactly one of them, without holding up their login.
+ */
+public class ClusterCoordinatorTest extends TestFixtures {
+    private static final int USERS = 200;
+
+    private final FakeStorage storage = new FakeStorage();
+    private final FakeMessagingService messagingA = new FakeMessagingService();
+    private final FakeMessagingService messagingB = new FakeMessagingService();
+    private final List<ClusterCoordinator> coordinators = new ArrayList<>();
+
+    @After
+    public void close() {
+        this.coordinators.forEach(ClusterCoordinator::close);
+    }
+
+    private static AssignmentSettings settings(long settleTime) {
+        return AssignmentSettings.builder().cluster(true).clusterSettleTime(settleTime).build();
+    }
+
+    private static RuleSet rules(AssignmentSettings settings) {
+        NodeTable.Builder nodes = new NodeTable.Builder();
+        AssignmentRule rule = new AssignmentRule("member", "!<group.member>", null, null, ImmutableList.of("group.member"), Collections.emptyList(), null, false, nodes);
+        return new RuleSet(ImmutableList.of(rule), nodes.build(), settings);
+    }
+
+    private ClusterCoordinator coordinator(UserManager userManager, FakeMessagingService messagingService, PluginLogger logger, AssignmentSettings settings) {
+        ClusterCoordinator coordinator = new ClusterCoordinator(userManager, messagingService, logger, "server", settings);
+        this.coordinators.add(coordinator);
+        return coordinator;
+    }
+
+    private FakeUser newUser(UUID uniqueId) {
+        FakeNodeMap data = new FakeNodeMap();
+        data.add(Node.builder("some.permission").build());
+        FakeUser user = new FakeUser(uniqueId, data);
+        this.storage.put(user);
+        return user;
+    }
+
+    /**
+     * Logs the user in on an instance - loads them and applies the rules,
+     * as the login listener does, then hands the save to the coordinator.
+     */
+    private static CompletableFuture<Boolean> login(UserManager userManager, ClusterCoordinator coordinator, RuleSet rules, UUID uniqueId) {
+        User user = userManager.loadUser(uniqueId).join();
+        assertFalse(rules.isStamped(user));
+        rules.apply(user);
+        return coordinator.process(uniqueId, rules, null);
+    }
+
+    @Test
+    public void savedByExactlyOneInstance() throws Exception {
+        AssignmentSettings settings = settings(100);
+        RuleSet rules = rules(settings);
+        UserManager userManagerA = this.storage.newInstance();
+        UserManager userManagerB = this.storage.newInstance();
+        ClusterCoordinator a = coordinator(userManagerA, this.messagingA, LOGGER, settings);
+        ClusterCoordinator b = coordinator(userManagerB, this.messagingB, LOGGER, settings);
+        this.storage.setLatency(5);
+
+        List<UUID> uniqueIds = new ArrayList<>();
+        for (int i = 0; i < USERS; i++) {
+            uniqueIds.add(newUser(UUID.randomUUID()).getUniqueId());
+        }
+
+        // log each user in on both instances at once - at exactly the same time for some, a little apart for others
+        Random random = new Random(1);
+        CyclicBarrier barrier = new CyclicBarrier(2);
+        ExecutorService threads = Executors.newFixedThreadPool(2);
+        List<Future<CompletableFuture<Boolean>>> resultsA = new ArrayList<>();
+        List<Future<CompletableFuture<Boolean>>> resultsB = new ArrayList<>();
+        try {
+            for (UUID uniqueId : uniqueIds) {
+                long skewNanos = random.nextInt(3) == 0 ? 0 : random.nextInt(2_000_000);
+                resultsA.add(threads.submit(() -> {
+                    barrier.await();
+                    return login(userManagerA, a, rules, uniqueId);
+                }));
+                resultsB.add(threads.submit(() -> {
+                    barrier.await();
+                    LockSupport.parkNanos(skewNanos);
+                    return login(userManagerB, b, rules, uniqueId);
+                }));
+            }
+
+            for (int i = 0; i < USERS; i++) {
+                UUID uniqueId = uniqueIds.get(i);
+                boolean savedByA = resultsA.get(i).get().get(10, TimeUnit.SECONDS);
+                boolean savedByB = resultsB.get(i).get().get(10, TimeUnit.SECONDS);
+                assertTrue(uniqueId + " saved by both or neither", savedByA != savedByB);
+
+                // claims are saved by both, but the result only by one
+                long resultSaves = this.storage.getSaves(uniqueId).stream().filter(rules::isStamped).count();
+                assertEquals(uniqueId.toString(), 1, resultSaves);
+
+                FakeUser stored = this.storage.get(uniqueId);
+                assertTrue(rules.isStamped(stored));
+                assertFalse(hasClaim(stored));
+
+                // both sessions kept the rules' changes
+                for (UserManager userManager : ImmutableList.of(userManagerA, userManagerB)) {
+                    assertTrue(uniqueId.toString(), userManager.getUser(uniqueId).data().toCollection().stream()
+                            .anyMatch(n -> n.getKey().equals("group.member")));
+                }
+            }
+        } finally {
+            threads.shutdownNow();
+        }
+
+        assertEquals(USERS, a.getClaimsWon() + b.getClaimsWon());
+        assertEquals(USERS, a.getClaimsLost() + b.getClaimsLost());
+        assertEquals(USERS, this.messagingA.getUserUpdates().size() + this.messagingB.getUserUpdates().size());
+    }
+
+    @Test
+    public void stampedUsersAreLeftAlone() {
+        AssignmentSettings settings = settings(50);
+        RuleSet rules = rules(settings);
+        UserManager userManager = this.storage.newInstance();
+        ClusterCoordinator a = coordinator(userManager, this.messagingA, LOGGER, settings);
+
+        FakeUser stored = newUser(UUID.randomUUID());
+        rules.apply(stored);
+        this.storage.put(stored);
+
+        assertFalse(a.process(stored.getUniqueId(), rules, null).join());
+        assertEquals(0, this.storage.getSaveCount());
+        assertEquals(1, a.getClaimsLost());
+    }
+
+    @Test
+    public void slowClaimsAreNotTrusted() {
+        // a load and save take longer than the settle time, so claims can't be relied on
+        AssignmentSettings settings = settings(50);
+        RuleSet rules = rules(settings);
+        List<String> warnings = new CopyOnWriteArrayList<>();
+        PluginLogger logger = new PluginLogger() {
+            @Override
+            public void info(String s) {
+            }
+
+            @Override
+            public void warn(String s) {
+                warnings.add(s);
+            }
+
+            @Override
+            public void severe(String s) {
+            }
+        };
+        UserManager userManager = this.storage.newInstance();
+        ClusterCoordinator a = coordinator(userManager, this.messagingA, logger, settings);
+        this.storage.setLatency(30);
+
+        UUID uniqueId = newUser(UUID.randomUUID()).getUniqueId();
+        assertFalse(login(userManager, a, rules, uniqueId).join());
+        assertEquals(0, this.storage.getSaves(uniqueId).stream().filter(rules::isStamped).count());
+        assertEquals(1, warnings.size());
+    }
+
+    @Test
+    public void loginDoesNotWaitForStorage() {
+        AssignmentSettings settings = settings(100);
+        RuleSet rules = rules(settings);
+        ClusterCoordinator a = coordinator(this.storage.newInstance(), this.messagingA, LOGGER, settings);
+        this.storage.setLatency(20);
+
+        UUID uniqueId = UUID.randomUUID();
+        newUser(uniqueId);
+
+        long start = System.nanoTime();
+        CompletableFuture<Boolean> future = a.process(uniqueId, rules, null);
+        long elapsedMillis = (System.nanoTime() - start) / 1_000_000;
+        assertTrue("took " + elapsedMillis + "ms", elapsedMillis < 20);
+
+        // logging in again while waiting doesn't claim the user twice
+        assertFalse(a.process(uniqueId, rules, null).join());
+
+        assertTrue(future.join());
+        assertEquals(1, this.storage.getSaves(uniqueId).stream().filter(rules::isStamped).count());
+    }
+
+    private static boolean hasClaim(User user) {
+        return user.data().toCollection().stream()
+                .anyMatch(n -> NodeType.META.matches(n) && NodeType.META.cast(n).getMetaKey().equals(ClusterCoordinator.CLAIM_META_KEY));
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * This file is part of LuckPerms, licensed under the MIT License.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in all
+ *  copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ *  SOFTWARE.
+ */
+
+package me.lucko.luckperms.extension.defaultassignments;
+
+import net.luckperms.api.context.ContextSet;
+import net.luckperms.api.context.ImmutableContextSet;
+import net.luckperms.api.model.data.DataMutateResult;
+import net.luckperms.api.model.data.NodeMap;
+import net.luckperms.api.model.data.TemporaryNodeMergeStrategy;
+import net.luckperms.api.node.Node;
+import net.luckperms.api.node.NodeEqualityPredicate;
+import net.luckperms.api.util.Tristate;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Predicate;
+
+/**
+ * In-memory {@link NodeMap}, following the same equality rules as the
+ * LuckPerms implementation for adding, removing and querying nodes.
+ */
+final class FakeNodeMap implements NodeMap {
+    private final Set<Node> nodes = new LinkedHashSet<>();
+
+    FakeNodeMap copy() {
+        FakeNodeMap copy = new FakeNodeMap();
+        copy.nodes.addAll(this.nodes);
+        return copy;
+    }
+
+    @Override
+    public Map<ImmutableContextSet, Collection<Node>> toMap() {
+        Map<ImmutableContextSet, Collection<Node>> map = new LinkedHashMap<>();
+        for (Node node : this.nodes) {
+            map.computeIfAbsent(node.getContexts(), k -> new ArrayList<>()).add(node);
+        }
+        return map;
+    }
+
+    @Override
+    public Collection<Node> toCollection() {
+        return Collections.unmodifiableCollection(this.nodes);
+    }
+
+    @Override
+    public Tristate contains(Node node, NodeEqualityPredicate equalityPredicate) {
+        for (Node n : this.nodes) {
+            if (n.equals(node, equalityPredicate)) {
+                return Tristate.of(n.getValue());
+            }
+        }
+        return Tristate.UNDEFINED;
+    }
+
+    @Override
+    public DataMutateResult add(Node node) {
+        if (contains(node, NodeEqualityPredicate.IGNORE_EXPIRY_TIME) != Tristate.UNDEFINED) {
+            return DataMutateResult.FAIL_ALREADY_HAS;
+        }
+        this.nodes.add(node);
+        return DataMutateResult.SUCCESS;
+    }
+
+    @Override
+    public DataMutateResult.WithMergedNode add(Node node, TemporaryNodeMergeStrategy temporaryNodeMergeStrategy) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public DataMutateResult remove(Node node) {
+        if (this.nodes.removeIf(n -> n.equals(node, NodeEqualityPredicate.IGNORE_EXPIRY_TIME_AND_VALUE))) {
+            return DataMutateResult.SUCCESS;
+        }
+        return DataMutateResult.FAIL_LACKS;
+    }
+
+    @Override
+    public void clear() {
+        this.nodes.clear();
+    }
+
+    @Override
+    public void clear(Predicate<? super Node> test) {
+        this.nodes.removeIf(test);
+    }
+
+    @Override
+    public void clear(ContextSet contextSet) {
+        this.nodes.removeIf(n -> n.getContexts().equals(contextSet));
+    }
+
+    @Override
+    public void clear(ContextSet contextSet, Predicate<? super Node> test) {
+        this.nodes.removeIf(n -> n.getContexts().equals(contextSet) && test.test(n));
+    }
+}
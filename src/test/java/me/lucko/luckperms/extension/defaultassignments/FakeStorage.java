@@ -0,0 +1,168 @@
+/*
+ * This file is part of LuckPerms, licensed under the MIT License.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in all
+ *  copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ *  SOFTWARE.
+ */
+
+package me.lucko.luckperms.extension.defaultassignments;
+
+import net.luckperms.api.model.user.User;
+import net.luckperms.api.model.user.UserManager;
+
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * In-memory storage, shared by any number of LuckPerms "instances" - each
+ * with its own {@link UserManager} and its own loaded copy of each user.
+ */
+final class FakeStorage {
+    private static final ExecutorService EXECUTOR = Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r, "fake-storage");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /** The saved copy of each user */
+    private final Map<UUID, FakeUser> users = new ConcurrentHashMap<>();
+    private final AtomicInteger saves = new AtomicInteger();
+    /** Every copy of each user saved, in order */
+    private final Map<UUID, List<FakeUser>> history = new ConcurrentHashMap<>();
+    /** The number of upcoming saves of each user which should fail */
+    private final Map<UUID, AtomicInteger> failures = new ConcurrentHashMap<>();
+    private volatile long latency = 0;
+
+    /**
+     * Sets how long each load and save takes.
+     *
+     * @param latency the latency in milliseconds
+     */
+    void setLatency(long latency) {
+        this.latency = latency;
+    }
+
+    /**
+     * Makes the next saves of the given user fail.
+     *
+     * @param uniqueId the user's uuid
+     * @param times the number of saves to fail
+     */
+    void failSaves(UUID uniqueId, int times) {
+        this.failures.put(uniqueId, new AtomicInteger(times));
+    }
+
+    void put(FakeUser user) {
+        this.users.put(user.getUniqueId(), user.copy());
+    }
+
+    FakeUser get(UUID uniqueId) {
+        return this.users.get(uniqueId);
+    }
+
+    int getSaveCount() {
+        return this.saves.get();
+    }
+
+    /**
+     * Gets every copy of the user which has been saved.
+     *
+     * @param uniqueId the user's uuid
+     * @return the saved copies, in the order they were saved
+     */
+    List<FakeUser> getSaves(UUID uniqueId) {
+        return this.history.getOrDefault(uniqueId, Collections.emptyList());
+    }
+
+    private <T> CompletableFuture<T> async(Supplier<T> task) {
+        return CompletableFuture.supplyAsync(() -> {
+            if (this.latency > 0) {
+                try {
+                    Thread.sleep(this.latency);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            return task.get();
+        }, EXECUTOR);
+    }
+
+    /**
+     * Creates the user manager of a new instance, with no users loaded.
+     *
+     * @return the user manager
+     */
+    UserManager newInstance() {
+        Map<UUID, FakeUser> loaded = new ConcurrentHashMap<>();
+        return (UserManager) Proxy.newProxyInstance(FakeStorage.class.getClassLoader(), new Class[]{UserManager.class}, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "loadUser": {
+                    UUID uniqueId = (UUID) args[0];
+                    return async(() -> {
+                        FakeUser user = loaded.computeIfAbsent(uniqueId, k -> new FakeUser(k, new FakeNodeMap()));
+                        FakeUser saved = this.users.get(uniqueId);
+                        if (saved != null) {
+                            user.load(saved);
+                        }
+                        return user;
+                    });
+                }
+                case "saveUser": {
+                    FakeUser user = (FakeUser) args[0];
+                    FakeUser copy = user.copy();
+                    return async(() -> {
+                        AtomicInteger failures = this.failures.get(copy.getUniqueId());
+                        if (failures != null && failures.getAndDecrement() > 0) {
+                            throw new IllegalStateException("Injected failure saving " + copy.getUniqueId());
+                        }
+                        this.users.put(copy.getUniqueId(), copy);
+                        this.history.computeIfAbsent(copy.getUniqueId(), k -> new CopyOnWriteArrayList<>()).add(copy);
+                        this.saves.incrementAndGet();
+                        return null;
+                    });
+                }
+                case "getUniqueUsers":
+                    return async(() -> new TreeSet<>(this.users.keySet()));
+                case "getUser":
+                    return loaded.get((UUID) args[0]);
+                case "isLoaded":
+                    return loaded.containsKey((UUID) args[0]);
+                case "cleanupUser":
+                    loaded.remove(((User) args[0]).getUniqueId());
+                    return null;
+                case "toString":
+                    return "FakeStorage.UserManager";
+            }
+            throw new UnsupportedOperationException(method.getName());
+        });
+    }
+}
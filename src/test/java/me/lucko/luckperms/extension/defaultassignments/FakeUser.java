@@ -0,0 +1,172 @@
+/*
+ * This file is part of LuckPerms, licensed under the MIT License.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in all
+ *  copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ *  SOFTWARE.
+ */
+
+package me.lucko.luckperms.extension.defaultassignments;
+
+import net.luckperms.api.cacheddata.CachedDataManager;
+import net.luckperms.api.model.data.DataMutateResult;
+import net.luckperms.api.model.data.DataType;
+import net.luckperms.api.model.data.NodeMap;
+import net.luckperms.api.model.user.User;
+import net.luckperms.api.node.Node;
+import net.luckperms.api.node.NodeEqualityPredicate;
+import net.luckperms.api.node.types.InheritanceNode;
+import net.luckperms.api.query.QueryOptions;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.SortedSet;
+import java.util.UUID;
+
+/**
+ * In-memory {@link User}, backed by {@link FakeNodeMap}s.
+ */
+final class FakeUser implements User {
+    private final UUID uniqueId;
+    private final FakeNodeMap data;
+    private final FakeNodeMap transientData = new FakeNodeMap();
+    private String primaryGroup = "default";
+
+    FakeUser(UUID uniqueId, FakeNodeMap data) {
+        this.uniqueId = uniqueId;
+        this.data = data;
+    }
+
+    FakeUser copy() {
+        return copy(this.uniqueId);
+    }
+
+    /**
+     * Copies the user's nodes and primary group to a different user.
+     *
+     * @param uniqueId the uuid of the copy
+     * @return the copy
+     */
+    FakeUser copy(UUID uniqueId) {
+        FakeUser copy = new FakeUser(uniqueId, this.data.copy());
+        copy.primaryGroup = this.primaryGroup;
+        return copy;
+    }
+
+    /**
+     * Replaces the user's nodes and primary group with those of another
+     * user, as if they were loaded from storage.
+     *
+     * @param other the other user
+     */
+    void load(FakeUser other) {
+        this.data.clear();
+        for (Node node : other.data.toCollection()) {
+            this.data.add(node);
+        }
+        this.primaryGroup = other.primaryGroup;
+    }
+
+    @Override
+    public UUID getUniqueId() {
+        return this.uniqueId;
+    }
+
+    @Override
+    public String getUsername() {
+        return null;
+    }
+
+    @Override
+    public String getPrimaryGroup() {
+        return this.primaryGroup;
+    }
+
+    @Override
+    public DataMutateResult setPrimaryGroup(String group) {
+        if (this.primaryGroup.equalsIgnoreCase(group)) {
+            return DataMutateResult.FAIL_ALREADY_HAS;
+        }
+        // as with LuckPerms, the user must be in the group
+        if (!this.data.contains(InheritanceNode.builder(group).build(), NodeEqualityPredicate.IGNORE_EXPIRY_TIME_AND_VALUE).asBoolean()) {
+            return DataMutateResult.FAIL;
+        }
+        this.primaryGroup = group;
+        return DataMutateResult.SUCCESS;
+    }
+
+    @Override
+    public Identifier getIdentifier() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public String getFriendlyName() {
+        return this.uniqueId.toString();
+    }
+
+    @Override
+    public CachedDataManager getCachedData() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public NodeMap getData(DataType dataType) {
+        return dataType == DataType.TRANSIENT ? this.transientData : this.data;
+    }
+
+    @Override
+    public NodeMap data() {
+        return this.data;
+    }
+
+    @Override
+    public NodeMap transientData() {
+        return this.transientData;
+    }
+
+    @Override
+    public Collection<Node> getNodes() {
+        List<Node> nodes = new ArrayList<>(this.data.toCollection());
+        nodes.addAll(this.transientData.toCollection());
+        return nodes;
+    }
+
+    @Override
+    public SortedSet<Node> getDistinctNodes() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Collection<Node> resolveInheritedNodes(QueryOptions queryOptions) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public SortedSet<Node> resolveDistinctInheritedNodes(QueryOptions queryOptions) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void auditTemporaryNodes() {
+
+    }
+}
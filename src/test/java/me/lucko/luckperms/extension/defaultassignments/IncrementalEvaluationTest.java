@@ -0,0 +1,202 @@
+/*
+ * This file is part of LuckPerms, licensed under the MIT License.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in all
+ *  copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ *  SOFTWARE.
+ */
+
+package me.lucko.luckperms.extension.defaultassignments;
+
+import com.google.common.collect.ImmutableList;
+
+import net.luckperms.api.node.Node;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class IncrementalEvaluationTest extends TestFixtures {
+    private static final AssignmentSettings SETTINGS = AssignmentSettings.builder().outcomeCacheSize(0).build();
+
+    @Test
+    public void onlyAffectedRulesAreEvaluated() {
+        NodeTable.Builder nodes = new NodeTable.Builder();
+        List<AssignmentRule> rules = ImmutableList.of(
+                new AssignmentRule("a", "<test.a>", null, null, ImmutableList.of("test.x"), ImmutableList.of(), null, false, nodes),
+                new AssignmentRule("b", "<test.b>", null, null, ImmutableList.of("test.y"), ImmutableList.of(), null, false, nodes),
+                new AssignmentRule("x", "<test.x>", null, null, ImmutableList.of("test.z"), ImmutableList.of(), null, false, nodes)
+        );
+        RuleSet ruleSet = new RuleSet(rules, nodes.build(), SETTINGS);
+
+        Node a = LegacyNodeFactory.fromLegacyString("test.a");
+        BitSet affected = ruleSet.getAffectedRules(ImmutableList.of(a));
+        assertEquals(bits(0), affected);
+        assertEquals(bits(), ruleSet.getAffectedRules(ImmutableList.of(LegacyNodeFactory.fromLegacyString("test.other"))));
+
+        FakeNodeMap data = new FakeNodeMap();
+        data.add(a);
+        data.add(LegacyNodeFactory.fromLegacyString("test.b"));
+        FakeUser user = new FakeUser(UUID.randomUUID(), data);
+
+        // rule "b" matches but isn't affected, rule "x" follows on from "a"
+        ruleSet.reevaluate(user, affected);
+        assertTrue(user.data().contains(LegacyNodeFactory.fromLegacyString("test.z"), NodeTable.EQUALITY).asBoolean());
+        assertTrue(!user.data().contains(LegacyNodeFactory.fromLegacyString("test.y"), NodeTable.EQUALITY).asBoolean());
+    }
+
+    @Test
+    public void sameAsFullApply() {
+        assertTrue(compareWithFullApply(new Random(1), false) > 1000);
+    }
+
+    @Test
+    public void sameAsFullApplyWhenNodesAreGivenAndTaken() {
+        assertTrue(compareWithFullApply(new Random(2), true) > 500);
+    }
+
+    @Test
+    public void givenAndTakenNodesReevaluateEveryRule() {
+        // with test.c removed, "b" no longer takes test.x, so "a" giving it has to be evaluated again
+        NodeTable.Builder nodes = new NodeTable.Builder();
+        List<AssignmentRule> rules = ImmutableList.of(
+                new AssignmentRule("a", "<test.a>", null, null, ImmutableList.of("test.x"), ImmutableList.of(), null, false, nodes),
+                new AssignmentRule("b", "<test.c>", null, null, ImmutableList.of(), ImmutableList.of("test.x"), null, false, nodes)
+        );
+        RuleSet ruleSet = new RuleSet(rules, nodes.build(), SETTINGS);
+
+        Node c = LegacyNodeFactory.fromLegacyString("test.c");
+        FakeNodeMap data = new FakeNodeMap();
+        data.add(LegacyNodeFactory.fromLegacyString("test.a"));
+        FakeUser user = new FakeUser(UUID.randomUUID(), data);
+        assertEquals(bits(1), ruleSet.getAffectedRules(ImmutableList.of(c)));
+
+        ruleSet.reevaluate(user, ruleSet.getAffectedRules(ImmutableList.of(c)));
+        assertTrue(user.data().contains(LegacyNodeFactory.fromLegacyString("test.x"), NodeTable.EQUALITY).asBoolean());
+    }
+
+    /**
+     * Re-evaluates random rules for users whose nodes have changed, checking
+     * the result against applying the rules again in turn.
+     *
+     * @return the number of users compared
+     */
+    private static int compareWithFullApply(Random random, boolean givenAndTaken) {
+        int compared = 0;
+        for (int i = 0; i < 2000; i++) {
+            NodeTable.Builder nodes = new NodeTable.Builder();
+            List<AssignmentRule> rules = rules(random, nodes, givenAndTaken);
+            NodeTable table = nodes.build();
+            RuleSet ruleSet = new RuleSet(rules, table, SETTINGS);
+
+            // start from a user the rules have been applied to, and who applying them again wouldn't change
+            FakeUser user = settled(rules, table, RandomRuleSets.user(random, 8));
+            if (user == null) {
+                continue;
+            }
+
+            // then change their nodes, as a command would
+            List<Node> changed = new ArrayList<>();
+            for (int k = 1 + random.nextInt(2); k > 0; k--) {
+                List<Node> current = new ArrayList<>(user.data().toCollection());
+                if (!current.isEmpty() && random.nextBoolean()) {
+                    Node node = current.get(random.nextInt(current.size()));
+                    user.data().remove(node);
+                    changed.add(node);
+                } else {
+                    Node node = LegacyNodeFactory.fromLegacyString(RandomRuleSets.node(random, 8)).toBuilder().value(random.nextInt(3) != 0).build();
+                    if (user.data().add(node).wasSuccessful()) {
+                        changed.add(node);
+                    }
+                }
+            }
+
+            FakeUser expected = user.copy();
+            RandomRuleSets.applyInTurn(rules, table, expected);
+
+            ruleSet.reevaluate(user, ruleSet.getAffectedRules(changed));
+            RandomRuleSets.assertSameOutcome("ruleset " + i + ", changed " + changed, expected, user);
+            compared++;
+        }
+        return compared;
+    }
+
+    /**
+     * Generates random rules. Unless they may give and take the same node,
+     * the even permissions are only given, and the odd ones only taken.
+     */
+    private static List<AssignmentRule> rules(Random random, NodeTable.Builder nodes, boolean givenAndTaken) {
+        List<AssignmentRule> rules = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            String hasTrue = random.nextInt(4) == 0 ? null : RandomRuleSets.expression(random, random.nextInt(3), 8);
+            String hasFalse = random.nextInt(3) == 0 ? RandomRuleSets.expression(random, random.nextInt(2), 8) : null;
+            String lacks = random.nextInt(3) == 0 ? RandomRuleSets.expression(random, random.nextInt(2), 8) : null;
+
+            List<String> give = new ArrayList<>();
+            List<String> take = new ArrayList<>();
+            for (int k = random.nextInt(3); k > 0; k--) {
+                give.add(RandomRuleSets.node(random, 4).replaceFirst("p(\\d)", "p" + (2 * random.nextInt(4))));
+            }
+            for (int k = random.nextInt(3); k > 0; k--) {
+                take.add(givenAndTaken ? RandomRuleSets.node(random, 8) : RandomRuleSets.node(random, 4).replaceFirst("p(\\d)", "p" + (2 * random.nextInt(4) + 1)));
+            }
+            if (random.nextInt(5) == 0) {
+                give.add("group.g" + random.nextInt(3));
+            }
+            String primaryGroup = random.nextInt(5) == 0 ? "g" + random.nextInt(3) : null;
+
+            rules.add(new AssignmentRule("rule" + i, hasTrue, hasFalse, lacks, give, take, primaryGroup, false, nodes));
+        }
+        return rules;
+    }
+
+    /**
+     * Applies the rules to the user until doing so again makes no difference.
+     *
+     * @return the user, or null if the rules never settle
+     */
+    private static FakeUser settled(List<AssignmentRule> rules, NodeTable table, FakeUser user) {
+        for (int k = 0; k < 5; k++) {
+            FakeUser before = user.copy();
+            RandomRuleSets.applyInTurn(rules, table, user);
+            if (new HashSet<>(before.data().toCollection()).equals(new HashSet<>(user.data().toCollection())) &&
+                    before.getPrimaryGroup().equals(user.getPrimaryGroup())) {
+                return user;
+            }
+        }
+        return null;
+    }
+
+    private static BitSet bits(int... indexes) {
+        BitSet bits = new BitSet();
+        for (int i : indexes) {
+            bits.set(i);
+        }
+        return bits;
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * This file is part of LuckPerms, licensed under the MIT License.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in all
+ *  copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ *  SOFTWARE.
+ */
+
+package me.lucko.luckperms.extension.defaultassignments;
+
+import com.google.common.collect.ImmutableList;
+
+import me.lucko.luckperms.common.plugin.logging.PluginLogger;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class InvalidRuleTest extends TestFixtures {
+    private static final AssignmentSettings SETTINGS = AssignmentSettings.builder().outcomeCacheSize(0).build();
+
+    private static RuleDefinition rule(String name, String hasTrue, List<String> give) {
+        return new RuleDefinition(name, hasTrue, null, null, give, ImmutableList.of(), null, false);
+    }
+
+    private static List<RuleDefinition> definitions() {
+        return ImmutableList.of(
+                rule("valid", "<test.a>", ImmutableList.of("test.b")),
+                rule("unbalanced", "(<test.a> & <test.b>", ImmutableList.of("test.c")),
+                rule("unterminated", "<test.a", ImmutableList.of("test.c")),
+                rule("operator", "<test.a> + <test.b>", ImmutableList.of("test.c")),
+                rule("condition-node", "<(a=b,a=c)test.a>", ImmutableList.of("test.c")),
+                rule("give-node", "<test.a>", ImmutableList.of("test.c$abc")),
+                // more than one problem is still one error
+                new RuleDefinition("several", "(", ")", null, ImmutableList.of("server/"), ImmutableList.of("$"), null, false),
+                rule("also-valid", "<test.b>", ImmutableList.of("test.d"))
+        );
+    }
+
+    @Test
+    public void invalidRulesAreQuarantined() {
+        RuleSetCompiler compiler = new RuleSetCompiler();
+        RuleSet ruleSet = compiler.compile(definitions(), SETTINGS);
+
+        assertEquals(ImmutableList.of("valid", "also-valid"), ruleSet.getRules().stream().map(AssignmentRule::getName).collect(Collectors.toList()));
+
+        List<String> errors = compiler.getLastErrors();
+        assertEquals(6, errors.size());
+        assertTrue(errors.get(0), errors.get(0).startsWith("Rule 'unbalanced' is invalid: Invalid 'if.has-true' condition: "));
+        assertTrue(errors.get(1), errors.get(1).startsWith("Rule 'unterminated' is invalid: Invalid 'if.has-true' condition: Unterminated permission"));
+        assertTrue(errors.get(2), errors.get(2).startsWith("Rule 'operator' is invalid: Invalid 'if.has-true' condition: Unexpected '+'"));
+        assertTrue(errors.get(3), errors.get(3).startsWith("Rule 'condition-node' is invalid: Invalid 'if.has-true' condition: Duplicate context key"));
+        assertTrue(errors.get(4), errors.get(4).startsWith("Rule 'give-node' is invalid: Invalid 'give' node: Invalid expiry"));
+        assertTrue(errors.get(5), errors.get(5).startsWith("Rule 'several' is invalid: "));
+    }
+
+    @Test
+    public void validRulesStillApply() {
+        RuleSet ruleSet = new RuleSetCompiler().compile(definitions(), SETTINGS);
+
+        Random random = new Random(1);
+        for (int i = 0; i < 100; i++) {
+            FakeNodeMap data = new FakeNodeMap();
+            if (random.nextBoolean()) {
+                data.add(LegacyNodeFactory.fromLegacyString("test.a"));
+            }
+            FakeUser user = new FakeUser(new UUID(0, i), data);
+            FakeUser expected = user.copy();
+            RandomRuleSets.applyInTurn(ruleSet.getRules(), ruleSet.getNodeTable(), expected);
+
+            ruleSet.apply(user);
+            RandomRuleSets.assertSameOutcome("user " + i, expected, user);
+        }
+    }
+
+    @Test
+    public void strictModeRejectsInvalidRules() {
+        RuleSetCompiler compiler = new RuleSetCompiler();
+        compiler.compile(definitions(), SETTINGS);
+
+        List<String> logged = new ArrayList<>();
+        PluginLogger logger = new PluginLogger() {
+            @Override
+            public void info(String s) {
+            }
+
+            @Override
+            public void warn(String s) {
+            }
+
+            @Override
+            public void severe(String s) {
+                logged.add(s);
+            }
+        };
+
+        assertFalse(DefaultAssignmentsExtension.logErrors(compiler.getLastErrors(), AssignmentSettings.builder().strict(true).build(), logger));
+        assertEquals(6, logged.size());
+        assertTrue(logged.get(0), logged.get(0).startsWith("[default-assignments] Rule 'unbalanced' is invalid"));
+        assertFalse(logged.get(0), logged.get(0).endsWith(" - it will be ignored"));
+
+        logged.clear();
+        assertTrue(DefaultAssignmentsExtension.logErrors(compiler.getLastErrors(), AssignmentSettings.builder().strict(false).build(), logger));
+        assertEquals(6, logged.size());
+        assertTrue(logged.get(0), logged.get(0).endsWith(" - it will be ignored"));
+
+        logged.clear();
+        assertTrue(DefaultAssignmentsExtension.logErrors(ImmutableList.of(), AssignmentSettings.builder().strict(true).build(), logger));
+        assertTrue(logged.isEmpty());
+    }
+}
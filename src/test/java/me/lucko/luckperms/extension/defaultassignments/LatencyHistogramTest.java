@@ -0,0 +1,107 @@
+/*
+ * This file is part of LuckPerms, licensed under the MIT License.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in all
+ *  copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ *  SOFTWARE.
+ */
+
+package me.lucko.luckperms.extension.defaultassignments;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+
+public class LatencyHistogramTest {
+
+    private static long micros(long micros) {
+        return TimeUnit.MICROSECONDS.toNanos(micros);
+    }
+
+    /**
+     * Records a single duration, and gets the upper bound of the bucket it
+     * went in.
+     */
+    private static long bucketOf(long nanos) {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(nanos);
+        return histogram.getPercentileMicros(1);
+    }
+
+    @Test
+    public void bucketBoundaries() {
+        // [0, 1)
+        assertEquals(1, bucketOf(0));
+        assertEquals(1, bucketOf(999));
+        // [1, 2)
+        assertEquals(2, bucketOf(micros(1)));
+        // [2, 4)
+        assertEquals(4, bucketOf(micros(2)));
+        assertEquals(4, bucketOf(micros(3)));
+        // 2^n - 1 is the last value in a bucket, 2^n the first in the next
+        for (int n = 2; n < 24; n++) {
+            assertEquals("2^" + n + " - 1", 1L << n, bucketOf(micros((1L << n) - 1)));
+            assertEquals("2^" + n, 1L << (n + 1), bucketOf(micros(1L << n)));
+        }
+    }
+
+    @Test
+    public void lastBucketIsUnbounded() {
+        long huge = TimeUnit.MINUTES.toNanos(10);
+        assertEquals(TimeUnit.NANOSECONDS.toMicros(huge), bucketOf(huge));
+    }
+
+    @Test
+    public void percentileSelection() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getPercentileMicros(0.5));
+
+        for (int i = 0; i < 90; i++) {
+            histogram.record(micros(1));
+        }
+        for (int i = 0; i < 9; i++) {
+            histogram.record(micros(100));
+        }
+        histogram.record(micros(5000));
+
+        // 90 in [1, 2), 9 in [64, 128), 1 in [4096, 8192)
+        assertEquals(2, histogram.getPercentileMicros(0.5));
+        assertEquals(2, histogram.getPercentileMicros(0.9));
+        assertEquals(128, histogram.getPercentileMicros(0.91));
+        assertEquals(128, histogram.getPercentileMicros(0.99));
+        assertEquals(8192, histogram.getPercentileMicros(0.995));
+        assertEquals(8192, histogram.getPercentileMicros(1));
+    }
+
+    @Test
+    public void countMeanAndMax() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(micros(10));
+        histogram.record(micros(20));
+        histogram.record(micros(60));
+
+        assertEquals(3, histogram.getCount());
+        assertEquals(micros(90), histogram.getTotalNanos());
+        assertEquals(30, histogram.getMeanMicros());
+        assertEquals(60, histogram.getMaxMicros());
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * This file is part of LuckPerms, licensed under the MIT License.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in all
+ *  copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ *  SOFTWARE.
+ */
+
+package me.lucko.luckperms.extension.defaultassignments;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+
+import net.luckperms.api.node.Node;
+
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks the legacy node parser against the original, regular expression
+ * based one it replaced.
+ */
+public class LegacyNodeFactoryTest extends TestFixtures {
+
+    /** Strings both parsers accept, and must agree on */
+    private static final List<String> VALID = ImmutableList.of(
+            "some.node", "server/some.node", "server-world/some.node", "some.node$123", "server/some.node$123",
+            "server-world/node$99", "(a=b)node", "(a=b,c=d)node", "(a\\=x=b\\,y)node", "server\\-x/node", "a\\/b",
+            "(a\\(=b)node", "()node", "s-w/(a=b)n$5", "s/w/x", "s-w-x/y", "group.admin", "meta.key.value"
+    );
+
+    /**
+     * Strings the original parser accepted (ignoring or mangling part of
+     * them) or failed on with an unhelpful exception, which are now
+     * rejected with a description of the problem.
+     */
+    private static final Map<String, String> REJECTED = ImmutableMap.<String, String>builder()
+            // the escaped bracket doesn't close the contexts - the original failed with an IndexOutOfBoundsException
+            .put("(a=b\\)node", "Unterminated contexts")
+            // the original ignored the contexts
+            .put("(a)node", "Invalid context")
+            .put("(a=b=c)node", "Invalid context")
+            .put("(a=b,)n", "Invalid context")
+            .put("(a=b,a=c)node", "Duplicate context key")
+            // the original built a node with an empty permission
+            .put("(a=b)", "Missing permission")
+            .put("server/", "Missing permission")
+            // the original failed with a NumberFormatException
+            .put("x$abc", "Invalid expiry")
+            .put("a$1$2", "Invalid expiry")
+            .put("$", "Missing permission")
+            .build();
+
+    /** The descriptions of problems which the original parser didn't always reject */
+    private static final List<String> NEWLY_REJECTED = ImmutableList.of("Invalid context", "Duplicate context key", "Missing permission");
+
+    @Test
+    public void valid() {
+        for (String s : VALID) {
+            assertEquals(s, RegexLegacyNodeFactory.fromLegacyString(s), LegacyNodeFactory.fromLegacyString(s));
+        }
+    }
+
+    @Test
+    public void rejected() {
+        for (Map.Entry<String, String> e : REJECTED.entrySet()) {
+            IllegalArgumentException ex = assertThrows(e.getKey(), IllegalArgumentException.class, () -> LegacyNodeFactory.fromLegacyString(e.getKey()));
+            assertTrue(e.getKey() + ": " + ex.getMessage(), ex.getMessage().startsWith(e.getValue()));
+        }
+    }
+
+    @Test
+    public void randomStrings() {
+        Random random = new Random(1);
+        String alphabet = "ab/-$()=,\\1";
+        for (int i = 0; i < 200000; i++) {
+            StringBuilder sb = new StringBuilder();
+            for (int j = random.nextInt(14); j > 0; j--) {
+                sb.append(alphabet.charAt(random.nextInt(alphabet.length())));
+            }
+            check(sb.toString());
+        }
+    }
+
+    private static void check(String s) {
+        Node expected;
+        try {
+            expected = RegexLegacyNodeFactory.fromLegacyString(s);
+        } catch (RuntimeException e) {
+            expected = null;
+        }
+
+        Node actual;
+        try {
+            actual = LegacyNodeFactory.fromLegacyString(s);
+        } catch (IllegalArgumentException e) {
+            // anything the original parser accepted must be one of the documented rejections
+            if (expected != null && NEWLY_REJECTED.stream().noneMatch(e.getMessage()::startsWith)) {
+                fail(s + " was parsed as " + expected + ", but is now rejected: " + e.getMessage());
+            }
+            return;
+        }
+
+        assertEquals(s, expected, actual);
+    }
+}
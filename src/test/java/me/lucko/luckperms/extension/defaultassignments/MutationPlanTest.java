@@ -0,0 +1,176 @@
+/*
+ * This file is part of LuckPerms, licensed under the MIT License.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in all
+ *  copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ *  SOFTWARE.
+ */
+
+package me.lucko.luckperms.extension.defaultassignments;
+
+import com.google.common.collect.ImmutableList;
+
+import net.luckperms.api.model.data.DataMutateResult;
+import net.luckperms.api.node.Node;
+import net.luckperms.api.node.NodeBuilder;
+import net.luckperms.api.node.NodeEqualityPredicate;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks that planning changes and then applying them leaves users exactly
+ * as making the same changes directly would.
+ */
+public class MutationPlanTest extends TestFixtures {
+    private static final NodeEqualityPredicate[] PREDICATES = {
+            NodeEqualityPredicate.EXACT,
+            NodeEqualityPredicate.IGNORE_EXPIRY_TIME,
+            NodeEqualityPredicate.IGNORE_EXPIRY_TIME_AND_VALUE,
+            NodeEqualityPredicate.IGNORE_VALUE_OR_IF_TEMPORARY
+    };
+
+    @Test
+    public void randomChanges() {
+        Random random = new Random(1);
+        for (int i = 0; i < 20000; i++) {
+            FakeNodeMap data = new FakeNodeMap();
+            for (int k = random.nextInt(6); k > 0; k--) {
+                data.add(node(random));
+            }
+            FakeUser planned = new FakeUser(new UUID(0, i), data);
+            FakeUser direct = planned.copy();
+            MutationPlan plan = new MutationPlan(planned);
+
+            List<String> steps = new ArrayList<>();
+            for (int k = random.nextInt(10); k > 0; k--) {
+                String message = "after " + steps + " from " + data.toCollection();
+                switch (random.nextInt(5)) {
+                    case 0:
+                    case 1: {
+                        Node node = node(random);
+                        steps.add("add " + node);
+                        assertEquals(message, direct.data().add(node).wasSuccessful(), plan.add(node));
+                        break;
+                    }
+                    case 2:
+                    case 3: {
+                        Node node = node(random);
+                        steps.add("remove " + node);
+                        assertEquals(message, direct.data().remove(node).wasSuccessful(), plan.remove(node));
+                        break;
+                    }
+                    default: {
+                        String group = "g" + random.nextInt(3);
+                        steps.add("set primary group " + group);
+                        assertEquals(message, direct.setPrimaryGroup(group).wasSuccessful(), plan.setPrimaryGroup(group));
+                        break;
+                    }
+                }
+
+                Node probe = node(random);
+                for (NodeEqualityPredicate predicate : PREDICATES) {
+                    assertEquals(message, direct.data().contains(probe, predicate), plan.contains(probe, predicate));
+                }
+            }
+
+            // the planned changes are the ones made
+            AssignmentDelta changes = plan.getChanges();
+            AssignmentDelta delta = new AssignmentDelta();
+            plan.apply(delta);
+            assertEquals(steps.toString(), delta.getAdded(), changes.getAdded());
+            assertEquals(steps.toString(), delta.getRemoved(), changes.getRemoved());
+
+            if (!removesGroupAfterSettingIt(steps)) {
+                RandomRuleSets.assertSameOutcome("after " + steps + " from " + data.toCollection(), direct, planned);
+            }
+        }
+    }
+
+    private static Node node(Random random) {
+        NodeBuilder<?, ?> builder = Node.builder(random.nextInt(3) == 0 ? "group.g" + random.nextInt(3) : "p" + random.nextInt(3));
+        builder.value(random.nextInt(4) != 0);
+        if (random.nextInt(4) == 0) {
+            builder.expiry(1 + random.nextInt(2), TimeUnit.HOURS);
+        }
+        if (random.nextInt(4) == 0) {
+            builder.withContext("server", "s" + random.nextInt(2));
+        }
+        return builder.build();
+    }
+
+    /**
+     * Gets if a group was added, set as the primary group, then removed again.
+     *
+     * <p>The group never reaches the user, so it can't be made their primary
+     * group when the plan is applied.</p>
+     */
+    private static boolean removesGroupAfterSettingIt(List<String> steps) {
+        for (int i = 0; i < steps.size(); i++) {
+            if (steps.get(i).startsWith("set primary group ")) {
+                String group = "group." + steps.get(i).substring("set primary group ".length());
+                for (int j = i + 1; j < steps.size(); j++) {
+                    if (steps.get(j).startsWith("remove ") && steps.get(j).contains(group)) {
+                        return true;
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+    @Test
+    public void primaryGroupNeedsGroup() {
+        NodeTable.Builder nodes = new NodeTable.Builder();
+        List<AssignmentRule> rules = ImmutableList.of(
+                new AssignmentRule("vip", "true", null, null, ImmutableList.of("group.vip"), Collections.emptyList(), "vip", false, nodes),
+                new AssignmentRule("staff", "true", null, null, Collections.emptyList(), Collections.emptyList(), "staff", false, nodes)
+        );
+        RuleSet ruleSet = new RuleSet(rules, nodes.build(), AssignmentSettings.builder().outcomeCacheSize(0).build());
+
+        FakeUser user = new FakeUser(new UUID(0, 0), new FakeNodeMap());
+        ruleSet.apply(user);
+        assertEquals("vip", user.getPrimaryGroup());
+    }
+
+    @Test
+    public void primaryGroupSetBeforeGroupIsTaken() {
+        FakeNodeMap data = new FakeNodeMap();
+        data.add(Node.builder("group.vip").build());
+        FakeUser user = new FakeUser(new UUID(0, 0), data);
+
+        MutationPlan plan = new MutationPlan(user);
+        plan.setPrimaryGroup("vip");
+        plan.remove(Node.builder("group.vip").build());
+        plan.apply(new AssignmentDelta());
+
+        // the same as LuckPerms, which doesn't reset the primary group when the group is removed
+        assertEquals("vip", user.getPrimaryGroup());
+        assertEquals(DataMutateResult.FAIL, user.setPrimaryGroup("default"));
+    }
+}
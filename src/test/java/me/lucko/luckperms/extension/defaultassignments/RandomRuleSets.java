@@ -0,0 +1,157 @@
+/*
+ * This file is part of LuckPerms, licensed under the MIT License.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in all
+ *  copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ *  SOFTWARE.
+ */
+
+package me.lucko.luckperms.extension.defaultassignments;
+
+import net.luckperms.api.model.user.User;
+import net.luckperms.api.node.Node;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Small random rulesets and users, for checking the optimised ways of
+ * applying rules against the simplest one.
+ *
+ * <p>Rules and users draw from a handful of permissions, so rules often
+ * match, change each other's conditions and overlap with each other.</p>
+ */
+final class RandomRuleSets {
+    private RandomRuleSets() {}
+
+    /** An expiry time in the future, for temporary nodes */
+    private static final long EXPIRY = 4102444800L;
+
+    static String permission(Random random, int permissions) {
+        return "p" + random.nextInt(permissions);
+    }
+
+    /**
+     * Generates a node in the legacy format - usually a plain permission, but
+     * sometimes with a server context or an expiry time.
+     *
+     * @param random the random
+     * @param permissions the number of distinct permissions to pick from
+     * @return the node
+     */
+    static String node(Random random, int permissions) {
+        switch (random.nextInt(8)) {
+            case 0:
+                return "server/" + permission(random, permissions);
+            case 1:
+                return permission(random, permissions) + "$" + (EXPIRY + random.nextInt(2));
+            default:
+                return permission(random, permissions);
+        }
+    }
+
+    /**
+     * Generates a random expression, as a tree of at most the given depth.
+     *
+     * @param random the random
+     * @param depth the depth, 0 being a single permission (or "true")
+     * @param permissions the number of distinct permissions to pick from
+     * @return the expression
+     */
+    static String expression(Random random, int depth, int permissions) {
+        if (depth == 0) {
+            int k = random.nextInt(10);
+            return k == 0 ? "true" : (k < 3 ? "!" : "") + "<" + node(random, permissions) + ">";
+        }
+        String operator = random.nextBoolean() ? " & " : " | ";
+        return "(" + expression(random, depth - 1, permissions) + operator + expression(random, depth - 1, permissions) + ")";
+    }
+
+    static List<AssignmentRule> rules(Random random, int count, int permissions, NodeTable.Builder nodes) {
+        List<AssignmentRule> rules = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            String hasTrue = random.nextInt(4) == 0 ? null : expression(random, random.nextInt(3), permissions);
+            String hasFalse = random.nextInt(3) == 0 ? expression(random, random.nextInt(2), permissions) : null;
+            String lacks = random.nextInt(3) == 0 ? expression(random, random.nextInt(2), permissions) : null;
+
+            List<String> give = new ArrayList<>();
+            List<String> take = new ArrayList<>();
+            for (int k = random.nextInt(3); k > 0; k--) {
+                give.add(node(random, permissions));
+            }
+            for (int k = random.nextInt(3); k > 0; k--) {
+                take.add(node(random, permissions));
+            }
+            if (random.nextInt(5) == 0) {
+                give.add("group.g" + random.nextInt(3));
+            }
+            String primaryGroup = random.nextInt(5) == 0 ? "g" + random.nextInt(3) : null;
+
+            rules.add(new AssignmentRule("rule" + i, hasTrue, hasFalse, lacks, give, take, primaryGroup, random.nextBoolean(), nodes));
+        }
+        return rules;
+    }
+
+    static FakeUser user(Random random, int permissions) {
+        FakeNodeMap data = new FakeNodeMap();
+        for (int k = random.nextInt(permissions + 1); k > 0; k--) {
+            data.add(LegacyNodeFactory.fromLegacyString(node(random, permissions)).toBuilder().value(random.nextInt(3) != 0).build());
+        }
+        if (random.nextInt(4) == 0) {
+            data.add(Node.builder("group.g" + random.nextInt(3)).build());
+        }
+        return new FakeUser(new UUID(random.nextLong(), random.nextLong()), data);
+    }
+
+    /**
+     * Applies the rules in the simplest possible way - in turn, straight to
+     * the user, re-reading all of the user's nodes for each rule.
+     *
+     * @param rules the rules
+     * @param table the table the rules were compiled against
+     * @param user the user
+     */
+    static void applyInTurn(List<AssignmentRule> rules, NodeTable table, User user) {
+        for (AssignmentRule rule : rules) {
+            if (!rule.matches(table.resolve(user))) {
+                continue;
+            }
+            for (int id : rule.getToTake()) {
+                user.data().remove(table.getEffect(id));
+            }
+            for (int id : rule.getToGive()) {
+                user.data().add(table.getEffect(id));
+            }
+            if (rule.getSetPrimaryGroup() != null) {
+                user.setPrimaryGroup(rule.getSetPrimaryGroup());
+            }
+        }
+    }
+
+    static void assertSameOutcome(String message, User expected, User actual) {
+        assertEquals(message, new HashSet<>(expected.data().toCollection()), new HashSet<>(actual.data().toCollection()));
+        assertEquals(message, expected.getPrimaryGroup(), actual.getPrimaryGroup());
+    }
+}
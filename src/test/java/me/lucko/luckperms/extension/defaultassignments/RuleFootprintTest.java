@@ -0,0 +1,155 @@
+/*
+ * This file is part of LuckPerms, licensed under the MIT License.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in all
+ *  copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ *  SOFTWARE.
+ */
+
+package me.lucko.luckperms.extension.defaultassignments;
+
+import com.google.common.collect.ImmutableList;
+
+import net.luckperms.api.node.Node;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks that a large generated config is held as one table entry per
+ * unique node, with the rules referring to them by id, rather than as a
+ * separate node for every reference.
+ */
+public class RuleFootprintTest extends TestFixtures {
+    private static final int RULES = 20000;
+    private static final int PERMISSIONS = 200;
+
+    private static final Pattern PERMISSION = Pattern.compile("<([^>]+)>");
+
+    @Test
+    public void oneEntryPerUniqueNode() {
+        List<String[]> config = config(new Random(1));
+
+        NodeTable.Builder builder = new NodeTable.Builder();
+        List<AssignmentRule> rules = new ArrayList<>(RULES);
+        for (String[] rule : config) {
+            rules.add(new AssignmentRule(rule[0], rule[1], null, rule[2], ImmutableList.of(rule[3]), ImmutableList.of(rule[4]), null, false, builder));
+        }
+        NodeTable table = builder.build();
+
+        Set<String> conditions = new HashSet<>();
+        Set<String> effects = new HashSet<>();
+        for (String[] rule : config) {
+            for (int i = 1; i <= 2; i++) {
+                Matcher matcher = PERMISSION.matcher(rule[i]);
+                while (matcher.find()) {
+                    conditions.add(matcher.group(1));
+                }
+            }
+            effects.add(rule[3]);
+            effects.add(rule[4]);
+        }
+        assertEquals(distinct(conditions), table.size());
+        assertEquals(effects.size(), table.effectCount());
+
+        // the same node is given the same effect id by every rule using it
+        Map<String, Integer> effectIds = new HashMap<>();
+        for (int i = 0; i < RULES; i++) {
+            String[] rule = config.get(i);
+            AssignmentRule compiled = rules.get(i);
+            assertEquals(1, compiled.getToGive().length);
+            assertEquals(1, compiled.getToTake().length);
+            assertEffect(table, effectIds, rule[3], compiled.getToGive()[0]);
+            assertEffect(table, effectIds, rule[4], compiled.getToTake()[0]);
+        }
+    }
+
+    @Test
+    public void recompilingAddsNothing() {
+        List<String[]> config = config(new Random(2));
+
+        NodeTable.Builder builder = new NodeTable.Builder();
+        for (String[] rule : config) {
+            new AssignmentRule(rule[0], rule[1], null, rule[2], ImmutableList.of(rule[3]), ImmutableList.of(rule[4]), null, false, builder);
+        }
+        NodeTable table = builder.build();
+
+        // as on a reload with unchanged rules
+        NodeTable.Builder reloaded = new NodeTable.Builder(table);
+        for (String[] rule : config) {
+            new AssignmentRule(rule[0], rule[1], null, rule[2], ImmutableList.of(rule[3]), ImmutableList.of(rule[4]), null, false, reloaded);
+        }
+        NodeTable rebuilt = reloaded.build();
+
+        assertEquals(table.size(), rebuilt.size());
+        assertEquals(table.effectCount(), rebuilt.effectCount());
+    }
+
+    /**
+     * Counts the nodes which are distinct according to {@link NodeTable#EQUALITY}.
+     */
+    private static int distinct(Set<String> nodes) {
+        List<Node> distinct = new ArrayList<>();
+        for (String string : nodes) {
+            Node node = LegacyNodeFactory.fromLegacyString(string);
+            if (distinct.stream().noneMatch(other -> other.equals(node, NodeTable.EQUALITY))) {
+                distinct.add(node);
+            }
+        }
+        return distinct.size();
+    }
+
+    private static void assertEffect(NodeTable table, Map<String, Integer> effectIds, String node, int effectId) {
+        assertEquals(node, LegacyNodeFactory.fromLegacyString(node), table.getEffect(effectId));
+        Integer previous = effectIds.putIfAbsent(node, effectId);
+        if (previous != null) {
+            assertEquals(node, previous.intValue(), effectId);
+        }
+    }
+
+    /**
+     * Generates a per-rank style config: many rules drawing on a small set
+     * of permissions.
+     */
+    private static List<String[]> config(Random random) {
+        List<String[]> config = new ArrayList<>(RULES);
+        for (int i = 0; i < RULES; i++) {
+            config.add(new String[]{
+                    "rule" + i,
+                    RandomRuleSets.expression(random, 2, PERMISSIONS),
+                    RandomRuleSets.expression(random, 1, PERMISSIONS),
+                    "group.rank" + (i % 50),
+                    RandomRuleSets.permission(random, PERMISSIONS)
+            });
+        }
+        return config;
+    }
+}
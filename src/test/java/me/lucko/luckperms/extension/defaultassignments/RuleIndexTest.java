@@ -0,0 +1,150 @@
+/*
+ * This file is part of LuckPerms, licensed under the MIT License.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in all
+ *  copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ *  SOFTWARE.
+ */
+
+package me.lucko.luckperms.extension.defaultassignments;
+
+import com.google.common.collect.ImmutableList;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class RuleIndexTest extends TestFixtures {
+    private static final int RANKS = 100;
+    private static final AssignmentSettings SETTINGS = AssignmentSettings.builder().outcomeCacheSize(0).build();
+
+    /**
+     * One rule per rank, each requiring the rank's permission, then a rule
+     * with no required nodes.
+     */
+    private static RuleSet rankRules(NodeTable.Builder nodes) {
+        List<AssignmentRule> rules = new ArrayList<>();
+        for (int i = 0; i < RANKS; i++) {
+            // rank 3 also promotes to rank 50
+            List<String> give = i == 3 ? ImmutableList.of("test.reward." + i, "test.rank.50") : ImmutableList.of("test.reward." + i);
+            rules.add(new AssignmentRule("rank" + i, "<test.rank." + i + ">", null, null, give, ImmutableList.of(), null, false, nodes));
+        }
+        rules.add(new AssignmentRule("unranked", null, null, "<test.reward.0>", ImmutableList.of("test.default"), ImmutableList.of(), null, false, nodes));
+        return new RuleSet(rules, nodes.build(), SETTINGS);
+    }
+
+    private static FakeUser user(String... permissions) {
+        FakeNodeMap data = new FakeNodeMap();
+        for (String permission : permissions) {
+            data.add(LegacyNodeFactory.fromLegacyString(permission));
+        }
+        return new FakeUser(UUID.randomUUID(), data);
+    }
+
+    @Test
+    public void onlyCandidatesAreEvaluated() {
+        RuleSet ruleSet = rankRules(new NodeTable.Builder());
+
+        FakeUser user = user("test.rank.7");
+        LoginTimings timings = new LoginTimings();
+        ruleSet.apply(user, timings);
+
+        assertEquals(2, timings.rulesEvaluated);
+        RandomRuleSets.assertSameOutcome("rank 7", user("test.rank.7", "test.reward.7", "test.default"), user);
+    }
+
+    @Test
+    public void firedRulesAddCandidates() {
+        RuleSet ruleSet = rankRules(new NodeTable.Builder());
+
+        FakeUser user = user("test.rank.3");
+        LoginTimings timings = new LoginTimings();
+        ruleSet.apply(user, timings);
+
+        // rank 3 gives rank 50, so rank 50's rule becomes a candidate
+        assertEquals(3, timings.rulesEvaluated);
+        RandomRuleSets.assertSameOutcome("rank 3", user("test.rank.3", "test.reward.3", "test.rank.50", "test.reward.50", "test.default"), user);
+    }
+
+    @Test
+    public void candidatesFollowRequiredStates() {
+        NodeTable.Builder nodes = new NodeTable.Builder();
+        List<AssignmentRule> rules = ImmutableList.of(
+                new AssignmentRule("true", "<test.a>", null, null, ImmutableList.of("test.x"), ImmutableList.of(), null, false, nodes),
+                new AssignmentRule("false", null, "<test.a>", null, ImmutableList.of("test.x"), ImmutableList.of(), null, false, nodes),
+                new AssignmentRule("lacks", null, null, "<test.a>", ImmutableList.of("test.x"), ImmutableList.of(), null, false, nodes)
+        );
+        NodeTable table = nodes.build();
+        RuleIndex index = new RuleIndex(rules, table);
+        assertEquals(2, index.getIndexedCount());
+
+        FakeUser negated = new FakeUser(UUID.randomUUID(), new FakeNodeMap());
+        negated.data().add(LegacyNodeFactory.fromLegacyString("test.a").toBuilder().value(false).build());
+
+        assertEquals(bits(2), index.candidates(table.resolve(user()), null));
+        assertEquals(bits(0, 2), index.candidates(table.resolve(user("test.a")), null));
+        assertEquals(bits(1, 2), index.candidates(table.resolve(negated), null));
+        assertEquals(bits(2), index.candidates(table.resolve(user("test.a")), bits(1, 2)));
+    }
+
+    @Test
+    public void sameAsSequential() {
+        Random random = new Random(1);
+        long evaluated = 0;
+        long total = 0;
+        for (int i = 0; i < 300; i++) {
+            NodeTable.Builder nodes = new NodeTable.Builder();
+            List<AssignmentRule> rules = RandomRuleSets.rules(random, 40, 12, nodes);
+            NodeTable table = nodes.build();
+            RuleSet ruleSet = new RuleSet(rules, table, SETTINGS);
+
+            for (int k = 0; k < 20; k++) {
+                FakeUser expected = RandomRuleSets.user(random, 12);
+                FakeUser actual = expected.copy();
+                RandomRuleSets.applyInTurn(rules, table, expected);
+
+                LoginTimings timings = new LoginTimings();
+                ruleSet.apply(actual, timings);
+                RandomRuleSets.assertSameOutcome("ruleset " + i, expected, actual);
+
+                evaluated += timings.rulesEvaluated;
+                total += rules.size();
+            }
+        }
+
+        // the index should be skipping some of the rules
+        assertTrue(evaluated + " of " + total + " rules evaluated", evaluated < total);
+    }
+
+    private static BitSet bits(int... indexes) {
+        BitSet bits = new BitSet();
+        for (int i : indexes) {
+            bits.set(i);
+        }
+        return bits;
+    }
+}
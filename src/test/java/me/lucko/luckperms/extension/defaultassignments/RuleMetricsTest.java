@@ -0,0 +1,54 @@
+/*
+ * This file is part of LuckPerms, licensed under the MIT License.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in all
+ *  copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ *  SOFTWARE.
+ */
+
+package me.lucko.luckperms.extension.defaultassignments;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+
+public class RuleMetricsTest {
+
+    @Test
+    public void countsEvaluationsAndMatches() {
+        RuleMetrics metrics = new RuleMetrics("rule");
+        assertEquals("rule", metrics.getName());
+        assertEquals(0, metrics.getEvaluations());
+        assertEquals(0, metrics.getPercentile99Micros());
+
+        metrics.record(true, TimeUnit.MICROSECONDS.toNanos(3));
+        metrics.record(false, TimeUnit.MICROSECONDS.toNanos(5));
+        metrics.record(true, TimeUnit.MICROSECONDS.toNanos(100));
+
+        assertEquals(3, metrics.getEvaluations());
+        assertEquals(2, metrics.getMatches());
+        assertEquals(36, metrics.getMeanMicros());
+        assertEquals(100, metrics.getMaxMicros());
+        // 100us is in the [64, 128) bucket
+        assertEquals(128, metrics.getPercentile99Micros());
+    }
+}
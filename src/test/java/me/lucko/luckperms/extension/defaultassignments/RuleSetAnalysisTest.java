@@ -0,0 +1,168 @@
+/*
+ * This file is part of LuckPerms, licensed under the MIT License.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in all
+ *  copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ *  SOFTWARE.
+ */
+
+package me.lucko.luckperms.extension.defaultassignments;
+
+import com.google.common.collect.ImmutableList;
+
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class RuleSetAnalysisTest extends TestFixtures {
+
+    private final NodeTable.Builder nodes = new NodeTable.Builder();
+
+    private AssignmentRule rule(String name, String hasTrue, List<String> give, List<String> take, String primaryGroup) {
+        return new AssignmentRule(name, hasTrue, null, null, give, take, primaryGroup, false, this.nodes);
+    }
+
+    private RuleSetAnalysis analyze(AssignmentRule... rules) {
+        return RuleSetAnalysis.analyze(ImmutableList.copyOf(rules), this.nodes.build());
+    }
+
+    private static List<String> names(RuleSetAnalysis analysis) {
+        return analysis.getRules().stream().map(AssignmentRule::getName).collect(Collectors.toList());
+    }
+
+    private static boolean anyContains(List<String> lines, String text) {
+        return lines.stream().anyMatch(line -> line.contains(text));
+    }
+
+    @Test
+    public void removesRulesWhichNeverMatch() {
+        RuleSetAnalysis analysis = analyze(
+                rule("folded", "false & <test.a>", ImmutableList.of("test.b"), ImmutableList.of(), null),
+                new AssignmentRule("contradicts", "<test.a>", null, "<test.a>", ImmutableList.of("test.b"), ImmutableList.of(), null, false, this.nodes),
+                rule("kept", "<test.a>", ImmutableList.of("test.b"), ImmutableList.of(), null)
+        );
+
+        assertEquals(ImmutableList.of("kept"), names(analysis));
+        assertTrue(anyContains(analysis.getRemoved(), "'folded' can never match"));
+        assertTrue(anyContains(analysis.getRemoved(), "'contradicts' can never match"));
+    }
+
+    @Test
+    public void foldsConstantConditions() {
+        AssignmentRule rule = rule("always", "<test.a> | !<test.a>", ImmutableList.of("test.b"), ImmutableList.of(), null);
+        assertTrue(rule.isAlwaysMatching());
+    }
+
+    @Test
+    public void removesRulesWithNoEffect() {
+        RuleSetAnalysis analysis = analyze(rule("nothing", "<test.a>", ImmutableList.of(), ImmutableList.of(), null));
+        assertEquals(ImmutableList.of(), names(analysis));
+        assertTrue(anyContains(analysis.getRemoved(), "'nothing' has no effect"));
+    }
+
+    @Test
+    public void removesOverriddenRules() {
+        RuleSetAnalysis analysis = analyze(
+                rule("give", "<test.a>", ImmutableList.of("test.b"), ImmutableList.of(), null),
+                rule("take", null, ImmutableList.of(), ImmutableList.of("test.b"), null)
+        );
+        assertEquals(ImmutableList.of("take"), names(analysis));
+        assertTrue(anyContains(analysis.getRemoved(), "'give' is always overridden by rule 'take'"));
+    }
+
+    @Test
+    public void keepsRulesSeenInBetween() {
+        RuleSetAnalysis analysis = analyze(
+                rule("give", "<test.a>", ImmutableList.of("test.b"), ImmutableList.of(), null),
+                rule("read", "<test.b>", ImmutableList.of("test.c"), ImmutableList.of(), null),
+                rule("take", null, ImmutableList.of(), ImmutableList.of("test.b"), null)
+        );
+        assertEquals(ImmutableList.of("give", "read", "take"), names(analysis));
+    }
+
+    @Test
+    public void keepsRulesSettingPrimaryGroup() {
+        // the group is taken again, but the primary group was set while the user was in it
+        RuleSetAnalysis analysis = analyze(
+                rule("vip", "<test.a>", ImmutableList.of("group.vip"), ImmutableList.of(), "vip"),
+                rule("take", null, ImmutableList.of(), ImmutableList.of("group.vip"), null)
+        );
+        assertEquals(ImmutableList.of("vip", "take"), names(analysis));
+    }
+
+    @Test
+    public void keepsGroupsNeededToSetPrimaryGroup() {
+        // a later rule can only set the primary group if the user is in the group at the time
+        RuleSetAnalysis analysis = analyze(
+                rule("give", "<test.a>", ImmutableList.of("group.vip"), ImmutableList.of(), null),
+                rule("primary", null, ImmutableList.of("test.b"), ImmutableList.of(), "vip"),
+                rule("take", null, ImmutableList.of(), ImmutableList.of("group.vip"), null)
+        );
+        assertEquals(ImmutableList.of("give", "primary", "take"), names(analysis));
+    }
+
+    @Test
+    public void reportsBackwardDependenciesAndCycles() {
+        RuleSetAnalysis analysis = analyze(
+                rule("first", "<test.b>", ImmutableList.of("test.a"), ImmutableList.of(), null),
+                rule("second", "<test.a>", ImmutableList.of("test.b"), ImmutableList.of(), null)
+        );
+        assertTrue(anyContains(analysis.getWarnings(), "Rule 'first' depends on nodes changed by the later rule 'second'"));
+        assertTrue(anyContains(analysis.getWarnings(), "Rules 'first', 'second' depend on each other's changes"));
+    }
+
+    @Test
+    public void reportsConflicts() {
+        RuleSetAnalysis analysis = analyze(
+                rule("give", "<test.a>", ImmutableList.of("test.c"), ImmutableList.of(), "staff"),
+                rule("take", "<test.b>", ImmutableList.of(), ImmutableList.of("test.c"), "vip")
+        );
+        assertTrue(anyContains(analysis.getWarnings(), "Rule 'give' gives test.c but the later rule 'take' takes it"));
+        assertTrue(anyContains(analysis.getWarnings(), "for users matching both, it will be vip if they are in that group"));
+        assertEquals(analysis.getWarningCount(), analysis.getWarnings().size());
+    }
+
+    @Test
+    public void analysedRulesHaveTheSameOutcome() {
+        Random random = new Random(1);
+        int removed = 0;
+        for (int i = 0; i < 500; i++) {
+            NodeTable.Builder nodes = new NodeTable.Builder();
+            List<AssignmentRule> rules = RandomRuleSets.rules(random, 20, 6, nodes);
+            NodeTable table = nodes.build();
+            RuleSetAnalysis analysis = RuleSetAnalysis.analyze(rules, table);
+            removed += rules.size() - analysis.getRules().size();
+
+            for (int k = 0; k < 20; k++) {
+                FakeUser expected = RandomRuleSets.user(random, 6);
+                FakeUser actual = expected.copy();
+                RandomRuleSets.applyInTurn(rules, table, expected);
+                RandomRuleSets.applyInTurn(analysis.getRules(), table, actual);
+                RandomRuleSets.assertSameOutcome("ruleset " + i + ", removed " + analysis.getRemoved(), expected, actual);
+            }
+        }
+        assertTrue(removed > 0);
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * This file is part of LuckPerms, licensed under the MIT License.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in all
+ *  copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ *  SOFTWARE.
+ */
+
+package me.lucko.luckperms.extension.defaultassignments;
+
+import com.google.common.collect.ImmutableList;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class RuleSetCompilerTest extends TestFixtures {
+    private static final AssignmentSettings SETTINGS = AssignmentSettings.builder().outcomeCacheSize(0).build();
+
+    private static RuleDefinition rule(int i) {
+        return new RuleDefinition("rule" + i, "<test.has." + i + ">", null, "<test.lacks." + i + ">",
+                ImmutableList.of("test.give." + i), ImmutableList.of("test.take." + i), null, false);
+    }
+
+    private static int tableSize(RuleSet ruleSet) {
+        return ruleSet.getNodeTable().size() + ruleSet.getNodeTable().effectCount();
+    }
+
+    @Test
+    public void unchangedRulesAreReused() {
+        List<RuleDefinition> definitions = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            definitions.add(rule(i));
+        }
+
+        RuleSetCompiler compiler = new RuleSetCompiler();
+        compiler.compile(definitions, SETTINGS);
+        assertEquals(8, compiler.getLastCompiledCount());
+
+        definitions.add(rule(8));
+        RuleSet ruleSet = compiler.compile(definitions, SETTINGS);
+        assertEquals(1, compiler.getLastCompiledCount());
+        assertEquals(9 * 4, tableSize(ruleSet));
+    }
+
+    @Test
+    public void staleNodesAreDropped() {
+        RuleSetCompiler compiler = new RuleSetCompiler();
+        List<RuleDefinition> definitions = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            definitions.add(rule(i));
+        }
+        compiler.compile(definitions, SETTINGS);
+
+        // replace one rule per reload, so some rules are always reused
+        int rebuilds = 0;
+        for (int reload = 0; reload < 50; reload++) {
+            definitions.set(reload % 8, rule(8 + reload));
+            RuleSet ruleSet = compiler.compile(definitions, SETTINGS);
+            if (compiler.getLastCompiledCount() == definitions.size()) {
+                rebuilds++;
+            }
+
+            // every rule references 4 distinct nodes
+            int live = definitions.size() * 4;
+            assertTrue("table has " + tableSize(ruleSet) + " nodes for " + live + " live ones", tableSize(ruleSet) <= live * 1.25 + 4);
+        }
+        assertTrue(rebuilds > 0);
+        assertTrue(rebuilds < 50);
+    }
+
+    @Test
+    public void rebuiltRulesStillApply() {
+        RuleSetCompiler compiler = new RuleSetCompiler();
+        List<RuleDefinition> definitions = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            definitions.add(rule(i));
+        }
+        compiler.compile(definitions, SETTINGS);
+        for (int i = 0; i < 4; i++) {
+            definitions.set(i, rule(8 + i));
+        }
+        RuleSet ruleSet = compiler.compile(definitions, SETTINGS);
+        assertEquals(8, compiler.getLastCompiledCount());
+
+        for (int i = 4; i < 12; i++) {
+            FakeNodeMap data = new FakeNodeMap();
+            data.add(LegacyNodeFactory.fromLegacyString("test.has." + i));
+            data.add(LegacyNodeFactory.fromLegacyString("test.take." + i));
+            FakeUser user = new FakeUser(UUID.randomUUID(), data);
+            ruleSet.apply(user);
+
+            FakeNodeMap expected = new FakeNodeMap();
+            expected.add(LegacyNodeFactory.fromLegacyString("test.has." + i));
+            expected.add(LegacyNodeFactory.fromLegacyString("test.give." + i));
+            RandomRuleSets.assertSameOutcome("rule" + i, new FakeUser(user.getUniqueId(), expected), user);
+        }
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * This file is part of LuckPerms, licensed under the MIT License.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in all
+ *  copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ *  SOFTWARE.
+ */
+
+package me.lucko.luckperms.extension.defaultassignments;
+
+import com.google.common.collect.ImmutableList;
+
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks which users share cached outcomes.
+ */
+public class RuleSetOutcomeCacheTest extends TestFixtures {
+    private static final long EXPIRY = 4102444800L;
+
+    private final NodeTable.Builder nodes = new NodeTable.Builder();
+    private final List<AssignmentRule> rules = ImmutableList.of(
+            new AssignmentRule("give", "true", null, null, ImmutableList.of("p0"), Collections.emptyList(), null, false, this.nodes),
+            new AssignmentRule("lacks", null, null, "<p0>", ImmutableList.of("p1"), Collections.emptyList(), null, false, this.nodes)
+    );
+    private final NodeTable table = this.nodes.build();
+    private final RuleSet ruleSet = new RuleSet(this.rules, this.table, AssignmentSettings.builder().outcomeCacheSize(16).build());
+
+    private FakeUser user(String... nodes) {
+        FakeNodeMap data = new FakeNodeMap();
+        for (String node : nodes) {
+            data.add(LegacyNodeFactory.fromLegacyString(node));
+        }
+        return new FakeUser(UUID.randomUUID(), data);
+    }
+
+    private void apply(FakeUser user) {
+        FakeUser expected = user.copy();
+        RandomRuleSets.applyInTurn(this.rules, this.table, expected);
+        this.ruleSet.apply(user);
+        RandomRuleSets.assertSameOutcome(expected.data().toCollection().toString(), expected, user);
+    }
+
+    @Test
+    public void unrelatedNodesShareOutcome() {
+        apply(user("p0$" + EXPIRY));
+        apply(user("p0$" + EXPIRY, "unrelated.permission"));
+        assertEquals(1, this.ruleSet.getOutcomeCacheStats().hitCount());
+    }
+
+    @Test
+    public void relatedNodesDontShareOutcome() {
+        // the states of the rule conditions are the same, but the nodes aren't
+        apply(user("p0$" + EXPIRY));
+        apply(user("p0$" + (EXPIRY + 1)));
+        apply(user());
+        assertEquals(0, this.ruleSet.getOutcomeCacheStats().hitCount());
+    }
+}
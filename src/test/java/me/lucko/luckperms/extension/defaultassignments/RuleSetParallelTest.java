@@ -0,0 +1,105 @@
+/*
+ * This file is part of LuckPerms, licensed under the MIT License.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in all
+ *  copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ *  SOFTWARE.
+ */
+
+package me.lucko.luckperms.extension.defaultassignments;
+
+import com.google.common.cache.CacheStats;
+
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that evaluating independent groups of rules in parallel (and
+ * replaying cached outcomes) gives the same result as applying every rule
+ * in turn, for random rulesets and users.
+ */
+public class RuleSetParallelTest extends TestFixtures {
+    private static final int RULESETS = 500;
+    private static final int USERS = 20;
+
+    @Test
+    public void inOrder() {
+        check(0, 0);
+    }
+
+    @Test
+    public void inOrderWithOutcomeCache() {
+        check(1024, 0);
+    }
+
+    @Test
+    public void parallel() {
+        check(0, 1);
+    }
+
+    @Test
+    public void parallelWithOutcomeCache() {
+        check(1024, 1);
+    }
+
+    private static void check(int outcomeCacheSize, int parallelThreshold) {
+        AssignmentSettings settings = AssignmentSettings.builder().outcomeCacheSize(outcomeCacheSize).parallelThreshold(parallelThreshold).build();
+        Random random = new Random(1);
+
+        int parallelRuleSets = 0;
+        long cacheHits = 0;
+        for (int i = 0; i < RULESETS; i++) {
+            int permissions = 2 + random.nextInt(12);
+            NodeTable.Builder nodes = new NodeTable.Builder();
+            List<AssignmentRule> rules = RandomRuleSets.rules(random, 1 + random.nextInt(20), permissions, nodes);
+            NodeTable table = nodes.build();
+            RuleSet ruleSet = new RuleSet(rules, table, settings);
+            if (ruleSet.getParallelGroupCount() > 1) {
+                parallelRuleSets++;
+            }
+
+            for (int u = 0; u < USERS; u++) {
+                FakeUser actual = RandomRuleSets.user(random, permissions);
+                FakeUser expected = actual.copy();
+
+                ruleSet.apply(actual);
+                RandomRuleSets.applyInTurn(rules, table, expected);
+                RandomRuleSets.assertSameOutcome(ruleSet + " for user " + expected.data().toCollection(), expected, actual);
+            }
+
+            CacheStats stats = ruleSet.getOutcomeCacheStats();
+            if (stats != null) {
+                cacheHits += stats.hitCount();
+            }
+        }
+
+        // make sure the interesting paths were actually taken
+        if (parallelThreshold != 0) {
+            assertTrue("no rulesets were evaluated in parallel", parallelRuleSets > RULESETS / 10);
+        }
+        if (outcomeCacheSize != 0) {
+            assertTrue("no outcomes were replayed from the cache", cacheHits > 0);
+        }
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * This file is part of LuckPerms, licensed under the MIT License.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in all
+ *  copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ *  SOFTWARE.
+ */
+
+package me.lucko.luckperms.extension.defaultassignments;
+
+import me.lucko.luckperms.common.api.implementation.ApiNodeBuilderRegistry;
+import me.lucko.luckperms.common.plugin.logging.PluginLogger;
+
+import net.luckperms.api.LuckPerms;
+import net.luckperms.api.LuckPermsProvider;
+import net.luckperms.api.model.user.UserManager;
+
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The environment shared by the tests (and the benchmarks).
+ *
+ * <p>The LuckPerms node builders are registered with the API before any test
+ * in a subclass runs, but nothing else is - users and storage are replaced
+ * by in-memory fakes, so the tests run without a server or database.</p>
+ */
+abstract class TestFixtures {
+    private static boolean registered = false;
+
+    static {
+        registerApi();
+    }
+
+    /**
+     * Registers the LuckPerms node builders with the API, if they aren't
+     * already.
+     */
+    static synchronized void registerApi() {
+        if (registered) {
+            return;
+        }
+
+        try {
+            LuckPerms luckPerms = (LuckPerms) Proxy.newProxyInstance(TestFixtures.class.getClassLoader(), new Class[]{LuckPerms.class}, (proxy, method, args) -> {
+                if (method.getName().equals("getNodeBuilderRegistry")) {
+                    return ApiNodeBuilderRegistry.INSTANCE;
+                }
+                throw new UnsupportedOperationException(method.getName());
+            });
+
+            Method register = LuckPermsProvider.class.getDeclaredMethod("register", LuckPerms.class);
+            register.setAccessible(true);
+            register.invoke(null, luckPerms);
+        } catch (Exception e) {
+            throw new IllegalStateException("Unable to register the node builders", e);
+        }
+        registered = true;
+    }
+
+    static final PluginLogger LOGGER = new PluginLogger() {
+        @Override
+        public void info(String s) {
+            System.out.println(s);
+        }
+
+        @Override
+        public void warn(String s) {
+            System.out.println(s);
+        }
+
+        @Override
+        public void severe(String s) {
+            System.err.println(s);
+        }
+    };
+
+    /** Completes the saves of {@link #userManager(long)}, standing in for a storage thread pool */
+    private static final ScheduledExecutorService STORAGE = Executors.newScheduledThreadPool(4, r -> {
+        Thread thread = new Thread(r, "test-storage");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Creates a user manager which "saves" users after the given delay, and
+     * supports nothing else.
+     *
+     * @param saveLatency the time each save takes, in milliseconds
+     * @return the user manager
+     */
+    static UserManager userManager(long saveLatency) {
+        return (UserManager) Proxy.newProxyInstance(TestFixtures.class.getClassLoader(), new Class[]{UserManager.class}, (proxy, method, args) -> {
+            if (method.getName().equals("saveUser")) {
+                if (saveLatency <= 0) {
+                    return CompletableFuture.completedFuture(null);
+                }
+                CompletableFuture<Void> future = new CompletableFuture<>();
+                STORAGE.schedule(() -> future.complete(null), saveLatency, TimeUnit.MILLISECONDS);
+                return future;
+            }
+            throw new UnsupportedOperationException(method.getName());
+        });
+    }
+}
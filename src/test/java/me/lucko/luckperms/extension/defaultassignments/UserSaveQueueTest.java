@@ -0,0 +1,220 @@
+/*
+ * This file is part of LuckPerms, licensed under the MIT License.
+ *
+ *  Copyright (c) lucko (Luck) <luck@lucko.me>
+ *  Copyright (c) contributors
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining a copy
+ *  of this software and associated documentation files (the "Software"), to deal
+ *  in the Software without restriction, including without limitation the rights
+ *  to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ *  copies of the Software, and to permit persons to whom the Software is
+ *  furnished to do so, subject to the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be included in all
+ *  copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ *  IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ *  FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ *  AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ *  LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ *  OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ *  SOFTWARE.
+ */
+
+package me.lucko.luckperms.extension.defaultassignments;
+
+import me.lucko.luckperms.common.plugin.logging.PluginLogger;
+
+import net.luckperms.api.model.user.UserManager;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class UserSaveQueueTest extends TestFixtures {
+    private static final int USERS = 10;
+
+    private final List<String> severe = new CopyOnWriteArrayList<>();
+    private final PluginLogger logger = new PluginLogger() {
+        @Override
+        public void info(String s) {
+        }
+
+        @Override
+        public void warn(String s) {
+        }
+
+        @Override
+        public void severe(String s) {
+            UserSaveQueueTest.this.severe.add(s);
+        }
+    };
+
+    private static List<FakeUser> users() {
+        List<FakeUser> users = new ArrayList<>();
+        for (int i = 0; i < USERS; i++) {
+            FakeNodeMap data = new FakeNodeMap();
+            data.add(LegacyNodeFactory.fromLegacyString("test.permission." + i));
+            users.add(new FakeUser(UUID.randomUUID(), data));
+        }
+        return users;
+    }
+
+    @Test
+    public void failureOnlyRetriesThatUser() {
+        FakeStorage storage = new FakeStorage();
+        AssignmentSettings settings = AssignmentSettings.builder().build();
+        UserSaveQueue saveQueue = new UserSaveQueue(storage.newInstance(), this.logger, settings);
+        AssignmentMetrics metrics = new AssignmentMetrics(this.logger, settings);
+        metrics.setSaveQueue(saveQueue);
+
+        List<FakeUser> users = users();
+        storage.failSaves(users.get(0).getUniqueId(), 1);
+        users.forEach(saveQueue::submit);
+        saveQueue.shutdown();
+
+        for (FakeUser user : users) {
+            RandomRuleSets.assertSameOutcome(user.getUniqueId().toString(), user, storage.get(user.getUniqueId()));
+        }
+        assertEquals(USERS, storage.getSaveCount());
+        assertEquals(USERS, metrics.getSaves());
+        assertEquals(1, metrics.getSaveFailures());
+        assertEquals(0, metrics.getSavesDropped());
+        assertTrue(this.severe.isEmpty());
+    }
+
+    @Test
+    public void givesUpAfterRetries() {
+        FakeStorage storage = new FakeStorage();
+        UserSaveQueue saveQueue = new UserSaveQueue(storage.newInstance(), this.logger, AssignmentSettings.builder().build());
+
+        List<FakeUser> users = users();
+        UUID failing = users.get(0).getUniqueId();
+        storage.failSaves(failing, Integer.MAX_VALUE);
+        users.forEach(saveQueue::submit);
+        saveQueue.shutdown();
+
+        assertNull(storage.get(failing));
+        for (FakeUser user : users.subList(1, USERS)) {
+            assertNotNull(storage.get(user.getUniqueId()));
+        }
+        assertEquals(USERS - 1, saveQueue.getSavedCount());
+        assertEquals(UserSaveQueue.MAX_RETRIES + 1, saveQueue.getFailedCount());
+        assertEquals(1, saveQueue.getDroppedCount());
+        assertEquals(1, this.severe.size());
+    }
+
+    @Test
+    public void failedDirectSaveIsQueued() throws Exception {
+        FakeStorage storage = new FakeStorage();
+        UserManager userManager = storage.newInstance();
+        // with no room in the queue, every save goes straight to storage
+        UserSaveQueue saveQueue = new UserSaveQueue(userManager, this.logger, AssignmentSettings.builder().saveQueueSize(0).build());
+
+        FakeUser user = users().get(0);
+        storage.failSaves(user.getUniqueId(), 1);
+        saveQueue.submit(user);
+        assertEquals(1, saveQueue.getOverflowCount());
+
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (saveQueue.getQueueDepth() == 0 && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(1, saveQueue.getFailedCount());
+
+        saveQueue.shutdown();
+        RandomRuleSets.assertSameOutcome("user", user, storage.get(user.getUniqueId()));
+        assertEquals(0, saveQueue.getDroppedCount());
+    }
+
+    @Test
+    public void busyStorageQueuesBeyondTheLimit() {
+        FakeStorage storage = new FakeStorage();
+        storage.setLatency(500);
+        AssignmentSettings settings = AssignmentSettings.builder()
+                .admission(true)
+                .saveQueueSize(0)
+                .saveBatchSize(2)
+                .saveInterval(60000)
+                .build();
+        UserSaveQueue saveQueue = new UserSaveQueue(storage.newInstance(), this.logger, settings);
+
+        // only a batch worth of direct saves are made, the rest are queued without waiting for them
+        long start = System.nanoTime();
+        users().forEach(saveQueue::submit);
+        assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(500));
+        assertEquals(2, saveQueue.getOverflowCount());
+        assertEquals(USERS - 2, saveQueue.getQueueDepth());
+
+        saveQueue.shutdown();
+        assertEquals(USERS, storage.getSaveCount());
+        assertEquals(0, saveQueue.getDroppedCount());
+    }
+
+    @Test
+    public void repeatSubmissionsAreCoalesced() {
+        FakeStorage storage = new FakeStorage();
+        // flushed on shutdown, not in between the submissions
+        UserSaveQueue saveQueue = new UserSaveQueue(storage.newInstance(), this.logger, AssignmentSettings.builder().saveInterval(60000).build());
+
+        FakeUser user = users().get(0);
+        for (int i = 0; i < 5; i++) {
+            FakeUser copy = user.copy();
+            copy.data().add(LegacyNodeFactory.fromLegacyString("test.submission." + i));
+            saveQueue.submit(copy);
+            user = copy;
+        }
+        assertEquals(1, saveQueue.getQueueDepth());
+        saveQueue.shutdown();
+
+        // saved once, in the latest state
+        assertEquals(1, storage.getSaveCount());
+        RandomRuleSets.assertSameOutcome("user", user, storage.get(user.getUniqueId()));
+    }
+
+    @Test
+    public void flushesInBatches() {
+        FakeStorage storage = new FakeStorage();
+        AssignmentSettings settings = AssignmentSettings.builder().saveBatchSize(4).saveInterval(60000).build();
+        UserSaveQueue saveQueue = new UserSaveQueue(storage.newInstance(), this.logger, settings);
+
+        List<FakeUser> users = users();
+        users.forEach(saveQueue::submit);
+        assertEquals(USERS, saveQueue.getQueueDepth());
+        saveQueue.shutdown();
+
+        // 4 + 4 + 2
+        assertEquals(3, saveQueue.getFlushLatency().getCount());
+        assertEquals(USERS, storage.getSaveCount());
+        assertEquals(USERS, saveQueue.getSavedCount());
+        assertEquals(0, saveQueue.getQueueDepth());
+    }
+
+    @Test
+    public void directSavesAreCounted() throws Exception {
+        FakeStorage storage = new FakeStorage();
+        UserSaveQueue saveQueue = new UserSaveQueue(storage.newInstance(), this.logger, AssignmentSettings.builder().saveQueueSize(0).build());
+
+        users().forEach(saveQueue::submit);
+        assertEquals(USERS, saveQueue.getOverflowCount());
+
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (saveQueue.getSavedCount() < USERS && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        saveQueue.shutdown();
+        assertEquals(USERS, saveQueue.getSavedCount());
+        assertEquals(USERS, storage.getSaveCount());
+    }
+}